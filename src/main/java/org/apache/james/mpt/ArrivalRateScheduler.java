@@ -0,0 +1,214 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Starts runs of a script at a constant rate.</p>
+ * <p>
+ * Unlike the {@link LoadGenerator}, where each virtual user waits for
+ * its run to finish before starting the next, runs are started on
+ * schedule however many are still in flight, so a slow server faces
+ * the same offered load as a fast one. Virtual users are created as
+ * needed and reused once their run has finished. When the maximum
+ * number of runs are in flight, the next run waits for one to finish
+ * and starts late. How late each run started is recorded.
+ * </p>
+ */
+public class ArrivalRateScheduler {
+
+    /** One hour, in microseconds */
+    private static final long HIGHEST_TRACKABLE_LAG = TimeUnit.HOURS.toMicros(1);
+
+    private final double rate;
+
+    private final Monitor monitor;
+
+    private int maxInFlight = 0;
+
+    private long duration = 0;
+
+    private int iterations = 0;
+
+    private final Histogram startLag = new Histogram(HIGHEST_TRACKABLE_LAG);
+
+    /**
+     * @param rate runs started per second, positive
+     * @param monitor not null
+     */
+    public ArrivalRateScheduler(double rate, Monitor monitor) {
+        if (!(rate > 0) || Double.isInfinite(rate)) {
+            throw new IllegalArgumentException("Arrival rate must be positive");
+        }
+        this.rate = rate;
+        this.monitor = monitor;
+    }
+
+    /**
+     * Sets the maximum number of runs in flight.
+     * @param maxInFlight number of runs, zero for no limit
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 0) {
+            throw new IllegalArgumentException("Maximum runs in flight must not be negative");
+        }
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Sets how long runs are started for.
+     * @param duration in milliseconds from the start of the load,
+     * zero for no limit
+     */
+    public void setDuration(long duration) {
+        this.duration = duration;
+    }
+
+    /**
+     * Sets how many runs are started.
+     * @param iterations number of runs, zero for no limit
+     */
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
+    /**
+     * Gets how late runs started, compared to the schedule.
+     * @return microseconds, not null
+     */
+    public Histogram getStartLag() {
+        return startLag;
+    }
+
+    /**
+     * Runs the load, waiting until every run has finished.
+     * When neither duration nor iterations are set, the script is run once.
+     *
+     * @param factory creates the virtual users, not null
+     * @param executor runs each run on its own thread, not null
+     * @return the outcome, not null
+     * @throws InterruptedException
+     */
+    public LoadGenerator.Result run(final LoadGenerator.VirtualUserFactory factory, ExecutorService executor) throws InterruptedException {
+        final LoadGenerator.Result result = new LoadGenerator.Result();
+        final int permits = maxInFlight > 0 ? maxInFlight : Integer.MAX_VALUE;
+        final Semaphore inFlight = new Semaphore(permits);
+        final Queue<User> idle = new ConcurrentLinkedQueue<User>();
+        final double interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        final long startMillis = System.currentTimeMillis();
+        final long start = System.nanoTime();
+        final long end = duration > 0 ? start + TimeUnit.MILLISECONDS.toNanos(duration) : Long.MAX_VALUE;
+        final int limit = (iterations > 0 || duration > 0) ? iterations : 1;
+        int users = 0;
+        monitor.note("Starting runs at " + rate + "/s");
+        try {
+            for (long count = 0; limit == 0 || count < limit; count++) {
+                // computed from the start so rounding errors do not accumulate
+                final long intended = start + (long) (count * interval);
+                if (intended >= end) {
+                    break;
+                }
+                final long wait = intended - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                inFlight.acquire();
+                startLag.record(TimeUnit.NANOSECONDS.toMicros(Math.max(0, System.nanoTime() - intended)));
+                User user = idle.poll();
+                if (user == null) {
+                    user = new User(users++);
+                }
+                final User next = user;
+                try {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                next.runIteration(factory, intended, result);
+                            } finally {
+                                idle.add(next);
+                                inFlight.release();
+                            }
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    inFlight.release();
+                    throw e;
+                }
+            }
+        } finally {
+            // wait for the runs in flight
+            inFlight.acquire(permits);
+            result.setElapsed(System.currentTimeMillis() - startMillis);
+        }
+        return result;
+    }
+
+    /**
+     * A virtual user created on its first run.
+     */
+    private static final class User {
+
+        private final int index;
+
+        private LoadGenerator.VirtualUser user;
+
+        public User(int index) {
+            this.index = index;
+        }
+
+        public void runIteration(LoadGenerator.VirtualUserFactory factory, long intendedStart, LoadGenerator.Result result) {
+            try {
+                if (user == null) {
+                    user = factory.newUser(index);
+                }
+                user.runIteration(intendedStart);
+                result.passed();
+            } catch (Exception e) {
+                result.failed(index, e);
+            }
+        }
+    }
+
+    /**
+     * Constructs a <code>String</code> with all attributes
+     * in name = value format.
+     *
+     * @return a <code>String</code> representation
+     * of this object.
+     */
+    public String toString()
+    {
+        final String TAB = " ";
+
+        String result  = "ArrivalRateScheduler ( "
+            + "rate = " + this.rate + TAB
+            + "maxInFlight = " + this.maxInFlight + TAB
+            + "duration = " + this.duration + TAB
+            + "iterations = " + this.iterations + TAB
+            + " )";
+
+        return result;
+    }
+}
@@ -0,0 +1,239 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>Passes messages to another monitor on a background thread.</p>
+ * <p>
+ * Messages are added to a lock-free ring buffer, so threads doing I/O
+ * do not wait for slow logging. A single writer thread takes them in
+ * order and passes them on. When the buffer is full, callers wait for
+ * the writer rather than lose messages. Messages the other monitor
+ * would discard never reach the buffer.
+ * </p>
+ */
+public final class AsyncMonitor implements Monitor {
+
+    /** Default number of messages buffered */
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    /** How long the idle writer waits before looking again */
+    private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final int NOTE = 0;
+
+    private static final int DEBUG = 1;
+
+    private static final int DEBUG_CHARACTER = 2;
+
+    private final Monitor monitor;
+
+    private final boolean noteEnabled;
+
+    private final boolean debugEnabled;
+
+    private final AtomicReferenceArray<Event> buffer;
+
+    private final int mask;
+
+    /** Next sequence claimed by a caller */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** Next sequence taken by the writer */
+    private final AtomicLong head = new AtomicLong();
+
+    private final Thread writer;
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param monitor receives the messages on the writer thread, not null
+     * @param capacity number of messages buffered, rounded up to a power of two
+     */
+    public AsyncMonitor(Monitor monitor, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        int length = 1;
+        while (length < capacity) {
+            length <<= 1;
+        }
+        this.monitor = monitor;
+        this.noteEnabled = monitor.isNoteEnabled();
+        this.debugEnabled = monitor.isDebugEnabled();
+        this.buffer = new AtomicReferenceArray<Event>(length);
+        this.mask = length - 1;
+        writer = new Thread(new Runnable() {
+            public void run() {
+                write();
+            }
+        }, "mpt-monitor");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public boolean isNoteEnabled() {
+        return noteEnabled;
+    }
+
+    public boolean isDebugEnabled() {
+        return debugEnabled;
+    }
+
+    public void note(String message) {
+        if (noteEnabled) {
+            add(new Event(NOTE, message, ' '));
+        }
+    }
+
+    public void debug(char character) {
+        if (debugEnabled) {
+            add(new Event(DEBUG_CHARACTER, null, character));
+        }
+    }
+
+    public void debug(String message) {
+        if (debugEnabled) {
+            add(new Event(DEBUG, message, ' '));
+        }
+    }
+
+    private void add(Event event) {
+        if (closed) {
+            // nothing will take it from the buffer
+            pass(event);
+            return;
+        }
+        final long sequence = tail.getAndIncrement();
+        while (sequence - head.get() >= buffer.length()) {
+            if (!writer.isAlive()) {
+                pass(event);
+                return;
+            }
+            // full, wait for the writer
+            LockSupport.parkNanos(IDLE_WAIT);
+        }
+        buffer.set((int) (sequence & mask), event);
+    }
+
+    private void write() {
+        while (true) {
+            final long next = head.get();
+            final int index = (int) (next & mask);
+            final Event event = buffer.get(index);
+            if (event == null) {
+                if (closed && next == tail.get()) {
+                    return;
+                }
+                // empty, or a caller has claimed the slot but not yet filled it
+                LockSupport.parkNanos(IDLE_WAIT);
+                continue;
+            }
+            buffer.set(index, null);
+            head.set(next + 1);
+            try {
+                pass(event);
+            } catch (RuntimeException e) {
+                // a failing monitor must not stop the writer
+            }
+        }
+    }
+
+    private void pass(Event event) {
+        switch (event.type) {
+            case NOTE:
+                monitor.note(event.message);
+                break;
+            case DEBUG:
+                monitor.debug(event.message);
+                break;
+            default:
+                monitor.debug(event.character);
+        }
+    }
+
+    /**
+     * Waits until every message added so far has been passed on.
+     * @throws InterruptedException
+     */
+    public void flush() throws InterruptedException {
+        final long target = tail.get();
+        while (head.get() < target && writer.isAlive()) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            LockSupport.parkNanos(IDLE_WAIT);
+        }
+    }
+
+    /**
+     * Passes on the messages buffered and stops the writer.
+     * Call once nothing else adds messages; any later
+     * message is passed on by the caller.
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException {
+        closed = true;
+        writer.join();
+    }
+
+    /**
+     * A message waiting to be passed on.
+     */
+    private static final class Event {
+
+        private final int type;
+
+        private final String message;
+
+        private final char character;
+
+        public Event(int type, String message, char character) {
+            this.type = type;
+            this.message = message;
+            this.character = character;
+        }
+    }
+
+    /**
+     * Constructs a <code>String</code> with all attributes
+     * in name = value format.
+     *
+     * @return a <code>String</code> representation
+     * of this object.
+     */
+    public String toString()
+    {
+        final String TAB = " ";
+
+        String result  = "AsyncMonitor ( "
+            + "monitor = " + this.monitor + TAB
+            + "capacity = " + this.buffer.length() + TAB
+            + "buffered = " + (this.tail.get() - this.head.get()) + TAB
+            + " )";
+
+        return result;
+    }
+}
@@ -0,0 +1,398 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.LinkedList;
+
+/**
+ * <p>A non-blocking session driven by {@link MultiplexedRunner}.</p>
+ * <p>
+ * Input is buffered by the runner as it arrives. When an element asks for
+ * a line which is not complete yet, the input consumed since the element
+ * started is restored and a {@link WouldBlockException} is thrown, so the
+ * element can be run again from the start once more input has arrived.
+ * Output is queued and written by the runner when the socket is writable.
+ * </p>
+ */
+final class AsyncSession implements Session {
+
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private final String alias;
+
+    private final InetSocketAddress address;
+
+    private final Monitor monitor;
+
+    private final String shabang;
+
+    private final Charset ascii;
+
+    private final LineBuffer line;
+
+    /** Queued <code>ByteBuffer</code> and <code>PendingFile</code> output */
+    private final LinkedList<Object> outgoing;
+
+    private byte[] input;
+
+    private ByteBuffer inputBuffer;
+
+    /** Start of the input read by the running element */
+    private int committed = 0;
+
+    private int position = 0;
+
+    private int limit = 0;
+
+    /** End of the input already noted, so replayed lines are not logged twice */
+    private int noted = 0;
+
+    private boolean first = true;
+
+    private boolean firstAtMark = true;
+
+    private boolean endOfInput = false;
+
+    private SocketChannel channel;
+
+    /** Recent lines, null when not captured */
+    private WireCapture wireCapture;
+
+    public AsyncSession(final String alias, final InetSocketAddress address, final Monitor monitor, final String shabang) {
+        this.alias = alias;
+        this.address = address;
+        this.monitor = monitor;
+        this.shabang = shabang;
+        ascii = Charset.forName("US-ASCII");
+        line = new LineBuffer();
+        outgoing = new LinkedList<Object>();
+        input = new byte[INITIAL_CAPACITY];
+        inputBuffer = ByteBuffer.wrap(input);
+    }
+
+    public String getAlias() {
+        return alias;
+    }
+
+    /**
+     * Gets the recent lines sent and received.
+     * @return null when lines are not captured
+     */
+    public WireCapture getWireCapture() {
+        return wireCapture;
+    }
+
+    /**
+     * Sets where recent lines sent and received are kept.
+     * The capture is cleared each time the session is connected.
+     * @param wireCapture null to capture nothing
+     */
+    public void setWireCapture(WireCapture wireCapture) {
+        this.wireCapture = wireCapture;
+    }
+
+    /**
+     * Starts a non-blocking connect.
+     * The connect completes once the channel is registered with
+     * {@link #register(Selector, Object)} and the selector reports it.
+     *
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        monitor.note("Connecting " + alias + "....");
+        // a session may be run again on a new connection
+        committed = 0;
+        position = 0;
+        limit = 0;
+        noted = 0;
+        if (wireCapture != null) {
+            wireCapture.clear();
+        }
+        first = true;
+        firstAtMark = true;
+        endOfInput = false;
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        // commands are small writes which must not wait for acknowledgements
+        channel.socket().setTcpNoDelay(true);
+        channel.connect(address);
+    }
+
+    /**
+     * Registers the channel opened by {@link #start()}.
+     *
+     * @param selector not null
+     * @param attachment attached to the selection key
+     * @return the selection key, interested in reads when already connected
+     * and in connection otherwise
+     * @throws IOException
+     */
+    SelectionKey register(Selector selector, Object attachment) throws IOException {
+        final int operations;
+        if (channel.isConnectionPending()) {
+            operations = SelectionKey.OP_CONNECT;
+        } else {
+            operations = SelectionKey.OP_READ;
+        }
+        return channel.register(selector, operations, attachment);
+    }
+
+    /**
+     * Completes a connect started by {@link #start()}.
+     * @return true when connected
+     * @throws IOException
+     */
+    boolean finishConnect() throws IOException {
+        return channel.finishConnect();
+    }
+
+    /**
+     * Marks the start of an element.
+     * Input read from here on is restored when the element has to wait.
+     */
+    void mark() {
+        committed = position;
+        firstAtMark = first;
+    }
+
+    /**
+     * Gets how much input is kept to be read again.
+     * @return bytes buffered since the mark
+     */
+    int getRetained() {
+        return limit - committed;
+    }
+
+    /**
+     * Reads whatever the channel has available into the input buffer.
+     *
+     * @return number of bytes read, -1 at the end of the stream
+     * @throws IOException
+     */
+    int read() throws IOException {
+        if (limit == input.length) {
+            // discard input consumed by completed elements
+            final byte[] target;
+            if (committed == 0) {
+                target = new byte[input.length * 2];
+            } else {
+                target = input;
+            }
+            System.arraycopy(input, committed, target, 0, limit - committed);
+            position -= committed;
+            limit -= committed;
+            noted = Math.max(0, noted - committed);
+            committed = 0;
+            if (target != input) {
+                input = target;
+                inputBuffer = ByteBuffer.wrap(input);
+            }
+        }
+        inputBuffer.limit(input.length);
+        inputBuffer.position(limit);
+        final int read = channel.read(inputBuffer);
+        if (read < 0) {
+            endOfInput = true;
+        } else {
+            limit += read;
+        }
+        return read;
+    }
+
+    public String readLine() throws Exception {
+        return readLineSequence().toString();
+    }
+
+    public CharSequence readLineSequence() throws Exception {
+        int end = -1;
+        for (int i = position; i < limit; i++) {
+            if (input[i] == '\n') {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            if (endOfInput) {
+                throw new EOFException("Connection closed by server: " + alias);
+            }
+            // run the element again when the rest of the line arrives
+            position = committed;
+            first = firstAtMark;
+            throw WouldBlockException.INSTANCE;
+        }
+        line.set(input, position, end - position);
+        position = end + 1;
+        final boolean replay = position <= noted;
+        if (!replay) {
+            noted = position;
+            if (monitor.isNoteEnabled()) {
+                monitor.note("<-" + line);
+            }
+            if (wireCapture != null) {
+                wireCapture.received(line);
+            }
+        }
+        final CharSequence result;
+        if (first && shabang != null) {
+            // fake shabang
+            result = shabang;
+            first = false;
+        } else {
+            result = line;
+        }
+        return result;
+    }
+
+    public void writeLine(String line) throws Exception {
+        if (monitor.isNoteEnabled()) {
+            monitor.note("-> " + line);
+        }
+        if (wireCapture != null) {
+            wireCapture.sent(line);
+        }
+        final ByteBuffer encoded = ascii.encode(line);
+        final ByteBuffer buffer = ByteBuffer.allocate(encoded.remaining() + CRLF.length);
+        buffer.put(encoded).put(CRLF).flip();
+        outgoing.add(buffer);
+    }
+
+    public void writeData(Attachment attachment) throws IOException {
+        if (monitor.isNoteEnabled()) {
+            monitor.note("-> binary file (" + attachment.getSize() + " bytes): " + attachment.getFilename());
+        }
+        if (wireCapture != null) {
+            wireCapture.sent("<binary file (" + attachment.getSize() + " bytes): " + attachment.getFilename() + ">");
+        }
+        if (attachment.getFile() == null) {
+            outgoing.add(ByteBuffer.wrap(attachment.getData()));
+        } else {
+            outgoing.add(new PendingFile(new FileInputStream(attachment.getFile())));
+        }
+        outgoing.add(ByteBuffer.wrap(CRLF));
+    }
+
+    /**
+     * Writes as much queued output as the socket accepts.
+     *
+     * @return true when all output has been written,
+     * false when the runner should wait until the socket is writable
+     * @throws IOException
+     */
+    boolean flush() throws IOException {
+        while (!outgoing.isEmpty()) {
+            final Object next = outgoing.getFirst();
+            if (next instanceof ByteBuffer) {
+                final ByteBuffer buffer = (ByteBuffer) next;
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    return false;
+                }
+            } else if (!((PendingFile) next).transfer()) {
+                return false;
+            }
+            outgoing.removeFirst();
+        }
+        return true;
+    }
+
+    public void stop() throws Exception {
+        while (!outgoing.isEmpty()) {
+            final Object next = outgoing.removeFirst();
+            if (next instanceof PendingFile) {
+                ((PendingFile) next).close();
+            }
+        }
+        if (channel != null && channel.isOpen()) {
+            monitor.note("closing " + alias);
+            channel.close();
+        }
+    }
+
+    /**
+     * A file being transferred to the channel.
+     */
+    private final class PendingFile {
+
+        private final FileInputStream in;
+
+        private final FileChannel source;
+
+        private long position = 0;
+
+        public PendingFile(FileInputStream in) throws IOException {
+            this.in = in;
+            this.source = in.getChannel();
+        }
+
+        /**
+         * @return true when the whole file has been transferred
+         */
+        public boolean transfer() throws IOException {
+            final long size = source.size();
+            while (position < size) {
+                final long transferred = source.transferTo(position, size - position, channel);
+                if (transferred == 0) {
+                    return false;
+                }
+                position += transferred;
+            }
+            close();
+            return true;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Constructs a <code>String</code> with all attributes
+     * in name = value format.
+     *
+     * @return a <code>String</code> representation
+     * of this object.
+     */
+    public String toString()
+    {
+        final String TAB = " ";
+
+        String result =  "Async ( "
+            + "alias = " + alias + TAB
+            + "address = " + this.address + TAB
+            + "buffered = " + (this.limit - this.position) + TAB
+            + "outgoing = " + this.outgoing.size() + TAB
+            + "shabang = " + this.shabang + TAB
+            + " )";
+
+        return result;
+    }
+}
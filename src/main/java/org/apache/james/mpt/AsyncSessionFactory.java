@@ -0,0 +1,89 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Session factory creates non-blocking sessions
+ * to be run by a {@link MultiplexedRunner}.
+ */
+public class AsyncSessionFactory implements SessionFactory {
+
+    protected final String alias;
+    protected final String host;
+    protected final int port;
+    protected final Monitor monitor;
+    protected final String shabang;
+    private InetSocketAddress address;
+    private int wireCapture = 0;
+
+    public AsyncSessionFactory(String alias, String host, int port, final Monitor monitor, final String shabang) {
+        super();
+        this.alias = alias;
+        this.host = host;
+        this.port = port;
+        this.monitor = monitor;
+        this.shabang = shabang;
+    }
+
+    /**
+     * Sets how many characters of recent traffic each session keeps,
+     * to be shown when a run fails.
+     * @param wireCapture number of characters, zero to keep none
+     */
+    public void setWireCapture(int wireCapture) {
+        this.wireCapture = wireCapture;
+    }
+
+    public synchronized Session newSession() {
+        // resolve once rather than for every connection
+        if (address == null) {
+            address = new InetSocketAddress(host, port);
+        }
+        final AsyncSession result = new AsyncSession(alias, address, monitor, shabang);
+        if (wireCapture > 0) {
+            result.setWireCapture(new WireCapture(wireCapture));
+        }
+        return result;
+    }
+
+    /**
+     * Constructs a <code>String</code> with all attributes
+     * in name = value format.
+     *
+     * @return a <code>String</code> representation 
+     * of this object.
+     */
+    public String toString()
+    {
+        final String TAB = " ";
+        
+        String retValue = "AsyncSessionFactory ( "
+            + "alias = " + this.alias + TAB
+            + "host = " + this.host + TAB
+            + "port = " + this.port + TAB
+            + "monitor = " + this.monitor + TAB
+            + "shabang = " + this.shabang + TAB
+            + " )";
+
+        return retValue;
+    }
+}
@@ -1,14 +1,24 @@
 /**
- * 
+ *
  */
 package org.apache.james.mpt;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
 /**
+ * Binary content sent as part of a client request.
+ * The content is either held in memory or read from a file
+ * when it is sent, so large files are never loaded onto the heap.
+ *
  * @author fred
  *
  */
 public class Attachment {
 	private byte[] data;
+	private File file;
 	private String filename;
 	/**
 	 * @param data
@@ -18,8 +28,67 @@ public class Attachment {
 		this.data = data;
 		this.filename = filename;
 	}
-	public byte[] getData() {
-		return data;
+	/**
+	 * Creates an attachment backed by a file.
+	 * The file is not opened until the attachment is sent.
+	 *
+	 * @param file not null
+	 */
+	public Attachment(File file) {
+		this.file = file;
+		this.filename = file.getPath();
+	}
+	/**
+	 * Gets the file backing this attachment.
+	 *
+	 * @return the file, or null when the data is held in memory
+	 */
+	public File getFile() {
+		return file;
+	}
+	/**
+	 * Gets the number of bytes in the attachment.
+	 *
+	 * @return size in bytes
+	 */
+	public long getSize() {
+		if (file == null) {
+			return data.length;
+		}
+		return file.length();
+	}
+	/**
+	 * Gets the content of the attachment.
+	 * File backed attachments are read fully into memory
+	 * so prefer streaming from {@link #getFile()}.
+	 *
+	 * @return the content
+	 * @throws IOException
+	 */
+	public byte[] getData() throws IOException {
+		if (file == null) {
+			return data;
+		}
+		long length = file.length();
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("File size is too big: " + length);
+		}
+		byte[] bytes = new byte[(int) length];
+		InputStream is = new FileInputStream(file);
+		try {
+			int offset = 0;
+			int numRead = 0;
+			while (offset < bytes.length
+					&& (numRead = is.read(bytes, offset, bytes.length - offset)) >= 0) {
+				offset += numRead;
+			}
+			if (offset < bytes.length) {
+				throw new IOException("Could not completely read file " + file.getName());
+			}
+		} finally {
+			is.close();
+		}
+		return bytes;
 	}
 	public String getFilename() {
 		return filename;
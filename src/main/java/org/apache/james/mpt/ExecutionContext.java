@@ -0,0 +1,527 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.james.mpt.ProtocolSession.ProtocolElement;
+
+/**
+ * <p>The state of a single run of a script.</p>
+ * <p>
+ * Test elements are immutable and shared by every run of the script,
+ * everything which changes while the script runs is kept here.
+ * A context is cheap to create and is used by one thread at a time.
+ * </p>
+ */
+final class ExecutionContext {
+
+    private final Iterator<ProtocolElement> elements;
+
+    private final Map<String, Session> sessionMap;
+
+    private final Properties variables;
+
+    private final boolean continueAfterFailure;
+
+    private final LatencyRecorder latencyRecorder;
+
+    private final Random random;
+
+    /** Nanoseconds the run started later than intended */
+    private final long startLag;
+
+    /** True once a tagged command has been sent */
+    private boolean scheduled = false;
+
+    /** <code>System.nanoTime()</code> at which the last tagged command was meant to be sent */
+    private long lastIntendedSent;
+
+    /** Nanoseconds of think time since the last tagged command was sent */
+    private long thinkSinceSent = 0;
+
+    /** Tagged commands awaiting completion, by tag */
+    private final Map<String, PendingCommand> pendingCommands = new LinkedHashMap<String, PendingCommand>();
+
+    private Session currentSession;
+
+    /** Sessions started by this run, null until one is */
+    private Set<Session> startedSessions;
+
+    private String currentBoundary = null;
+
+    private boolean continued = false;
+
+    private boolean continuationExpected = false;
+
+    private ProtocolElement nextTest;
+
+    /** Element waiting for input when run by the multiplexed runner */
+    private ProtocolElement pendingTest;
+
+    /** True when run by the multiplexed runner */
+    private boolean resumable = false;
+
+    /** Time the sleeping element wakes, zero when not sleeping */
+    private long wakeUp = 0;
+
+    /**
+     * @param elements the elements to run, not null
+     * @param sessionMap sessions by alias, not null
+     * @param variables substitution variables, not null
+     * @param continueAfterFailure true when the run continues after a mismatch
+     * @param latencyRecorder null when latencies are not recorded
+     * @param random source of think times, not null
+     * @param startLag nanoseconds the run started later than intended
+     */
+    ExecutionContext(Iterator<ProtocolElement> elements, Map<String, Session> sessionMap, Properties variables,
+            boolean continueAfterFailure, LatencyRecorder latencyRecorder, Random random, long startLag) {
+        this.elements = elements;
+        this.sessionMap = sessionMap;
+        this.variables = variables;
+        this.continueAfterFailure = continueAfterFailure;
+        this.latencyRecorder = latencyRecorder;
+        this.random = random;
+        this.startLag = startLag;
+    }
+
+    /**
+     * Runs every element in turn.
+     *
+     * @throws Exception when an element fails
+     */
+    void execute() throws Exception {
+        try {
+            while (elements.hasNext()) {
+                elements.next().testProtocol(this, continueAfterFailure);
+            }
+        } catch (InvalidServerResponseException e) {
+            throw withWireCapture(e);
+        } catch (SocketTimeoutException e) {
+            throw withWireCapture(e);
+        }
+    }
+
+    /**
+     * Runs elements until the script completes or an element
+     * has to wait for input from an asynchronous session.
+     * The element which had to wait is run again on the next call.
+     *
+     * @return true when all elements have run,
+     * false when more input is needed
+     * @throws Exception when an element fails
+     */
+    boolean resume() throws Exception {
+        resumable = true;
+        while (pendingTest != null || elements.hasNext()) {
+            if (pendingTest == null) {
+                pendingTest = elements.next();
+            }
+            if (currentSession instanceof AsyncSession) {
+                ((AsyncSession) currentSession).mark();
+            }
+            try {
+                pendingTest.testProtocol(this, continueAfterFailure);
+            } catch (WouldBlockException e) {
+                return false;
+            } catch (InvalidServerResponseException e) {
+                throw withWireCapture(e);
+            } catch (SocketTimeoutException e) {
+                throw withWireCapture(e);
+            }
+            pendingTest = null;
+        }
+        return true;
+    }
+
+    /**
+     * Keeps the input the running element has read so far.
+     * When the element has to wait for input from an asynchronous session,
+     * it is run again from the next line rather than from its start,
+     * and the input read is no longer buffered.
+     * Only for elements which can carry on from any line they have read.
+     */
+    void keepInput() {
+        if (currentSession instanceof AsyncSession) {
+            ((AsyncSession) currentSession).mark();
+        }
+    }
+
+    /**
+     * Runs the client elements following a continuation.
+     */
+    void doContinue() {
+        try {
+            if (continuationExpected) {
+                continued = true;
+                while (elements.hasNext()) {
+                    nextTest = elements.next();
+                    if (!nextTest.isClient()) {
+                        break;
+                    }
+                    nextTest.testProtocol(this, continueAfterFailure);
+                }
+                if (!elements.hasNext()) {
+                    nextTest = null;
+                }
+            } else {
+                throw new RuntimeException("Unexpected continuation");
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Pauses the run. When run by the multiplexed runner no thread waits,
+     * the element gives up its thread and is run again after the time
+     * given by {@link #getWakeUp()}.
+     *
+     * @param millis milliseconds to pause
+     * @throws InterruptedException
+     */
+    void sleep(long millis) throws InterruptedException {
+        if (wakeUp != 0) {
+            // run again by the multiplexed runner
+            if (System.currentTimeMillis() < wakeUp) {
+                throw WouldBlockException.INSTANCE;
+            }
+            wakeUp = 0;
+            return;
+        }
+        if (millis <= 0) {
+            return;
+        }
+        // the next command is meant to be sent as much later
+        thinkSinceSent += TimeUnit.MILLISECONDS.toNanos(millis);
+        if (!resumable) {
+            Thread.sleep(millis);
+            return;
+        }
+        wakeUp = System.currentTimeMillis() + millis;
+        throw WouldBlockException.INSTANCE;
+    }
+
+    /**
+     * Pauses the run for a random think time.
+     * The time is drawn once, when the pause starts,
+     * so the same seed gives the same pauses however the run is driven.
+     *
+     * @param thinkTime not null
+     * @throws InterruptedException
+     */
+    void think(ThinkTime thinkTime) throws InterruptedException {
+        sleep(wakeUp == 0 ? thinkTime.nextMillis(random) : 0);
+    }
+
+    /**
+     * @return time in milliseconds the sleeping element wakes,
+     * zero when the run is not sleeping
+     */
+    long getWakeUp() {
+        return wakeUp;
+    }
+
+    Session getCurrentSession() {
+        return currentSession;
+    }
+
+    /**
+     * Makes the session with the given alias current.
+     * A session is connected, or started, when the run first uses it.
+     *
+     * @param alias not null
+     * @throws Exception when there is no session with the alias
+     */
+    void setCurrentSession(String alias) throws Exception {
+        Session session = sessionMap.get(alias);
+        if (session == null) {
+            throw new Exception("No session found for alias " + alias);
+        }
+        if (session instanceof ExternalSession) {
+            // connected when first used
+            final long connectTime = ((ExternalSession) session).awaitConnected();
+            if (connectTime >= 0 && latencyRecorder != null) {
+                latencyRecorder.record(LatencyRecorder.CONNECT, "SESSION: " + alias, connectTime, connectTime + startLag);
+            }
+        } else if (!(session instanceof AsyncSession)) {
+            // asynchronous sessions are connected by the multiplexed runner
+            if (startedSessions == null) {
+                startedSessions = Collections.newSetFromMap(new IdentityHashMap<Session, Boolean>());
+            }
+            if (startedSessions.add(session)) {
+                session.start();
+            }
+        }
+        currentSession = session;
+    }
+
+    String getCurrentBoundary() {
+        return currentBoundary;
+    }
+
+    void setCurrentBoundary(String currentBoundary) {
+        this.currentBoundary = currentBoundary;
+    }
+
+    Properties getVariables() {
+        return variables;
+    }
+
+    boolean isContinued() {
+        return continued;
+    }
+
+    /**
+     * Starts or ends waiting for a continuation.
+     * @param continuationExpected true when a continuation is expected
+     */
+    void expectContinuation(boolean continuationExpected) {
+        this.continuationExpected = continuationExpected;
+        this.continued = false;
+    }
+
+    ProtocolElement getNextTest() {
+        return nextTest;
+    }
+
+    /**
+     * Replaces ${<code>NAME</code>} with variable value.
+     * @param line not null
+     * @return not null
+     */
+    String substituteVariables(String line) {
+        return substituteVariables(line, variables);
+    }
+
+    /**
+     * Replaces ${<code>NAME</code>} with variable value.
+     * @param line not null
+     * @param variables not null
+     * @return not null
+     */
+    static String substituteVariables(String line, Properties variables) {
+        if (variables.size() > 0) {
+            final StringBuffer buffer = new StringBuffer(line);
+            int start = 0;
+            int end = 0;
+            while (start >= 0 && end >= 0) {
+                start = buffer.indexOf("${", end);
+                if (start < 0) {
+                    break;
+                }
+                end = buffer.indexOf("}", start);
+                if (end < 0) {
+                    break;
+                }
+                final String name = buffer.substring(start+2, end);
+                final String value = variables.getProperty(name);
+                if (value != null) {
+                    buffer.replace(start, end + 1, value);
+                    final int variableLength = (end - start + 2);
+                    end = end + (value.length() - variableLength);
+                }
+            }
+            line = buffer.toString();
+        }
+        return line;
+    }
+
+    /**
+     * Adds the lines captured by the sessions to a failure.
+     * @param e not null
+     * @return the failure with the captured lines, or the failure itself
+     * when nothing is captured
+     */
+    private InvalidServerResponseException withWireCapture(InvalidServerResponseException e) {
+        final String captured = WireCapture.dump(sessionMap);
+        if (captured.length() == 0) {
+            return e;
+        }
+        final InvalidServerResponseException result = new InvalidServerResponseException(e.getMessage() + captured);
+        result.initCause(e);
+        return result;
+    }
+
+    private SocketTimeoutException withWireCapture(SocketTimeoutException e) {
+        final String captured = WireCapture.dump(sessionMap);
+        if (captured.length() == 0) {
+            return e;
+        }
+        final SocketTimeoutException result = new SocketTimeoutException(e.getMessage() + captured);
+        result.initCause(e);
+        return result;
+    }
+
+    /**
+     * Remembers when a tagged command is sent,
+     * so its latency can be recorded when the server completes it.
+     *
+     * @param line client line, not null
+     */
+    void commandSent(String line) {
+        if (latencyRecorder == null) {
+            return;
+        }
+        final int tagEnd = line.indexOf(' ');
+        if (tagEnd < 1) {
+            return;
+        }
+        for (int i = 0; i < tagEnd; i++) {
+            final char next = line.charAt(i);
+            if (!Character.isLetterOrDigit(next) && next != '.') {
+                return;
+            }
+        }
+        final int commandStart = tagEnd + 1;
+        int commandEnd = wordEnd(line, commandStart);
+        if (commandEnd == commandStart) {
+            return;
+        }
+        String command = line.substring(commandStart, commandEnd).toUpperCase(Locale.US);
+        if ("UID".equals(command) && commandEnd < line.length()) {
+            // UID FETCH, UID STORE ...
+            final int subCommandEnd = wordEnd(line, commandEnd + 1);
+            if (subCommandEnd > commandEnd + 1) {
+                command = line.substring(commandStart, subCommandEnd).toUpperCase(Locale.US);
+            }
+        }
+        final long sent = System.nanoTime();
+        final long intendedSent = intendedSent(sent);
+        scheduled = true;
+        lastIntendedSent = intendedSent;
+        thinkSinceSent = 0;
+        pendingCommands.put(line.substring(0, tagEnd), new PendingCommand(command, sent, intendedSent));
+    }
+
+    /**
+     * Gets the time at which a command was meant to be sent.
+     * The first command was meant to be sent as much earlier as the run
+     * was meant to start. When the expected latency is known, each later
+     * command was meant to be sent an expected latency and the think time
+     * after the command before it was meant to be sent, or when it was
+     * sent, if earlier. Otherwise, later commands keep the lag of the first.
+     *
+     * @param sent <code>System.nanoTime()</code> at which the command was sent
+     * @return <code>System.nanoTime()</code> at which the command was meant to be sent
+     */
+    private long intendedSent(long sent) {
+        final long expectedLatency = latencyRecorder.getExpectedLatency();
+        if (!scheduled || expectedLatency <= 0) {
+            return sent - startLag;
+        }
+        return Math.min(sent, lastIntendedSent + expectedLatency + thinkSinceSent);
+    }
+
+    private static int wordEnd(String line, int start) {
+        int end = start;
+        while (end < line.length() && Character.isLetter(line.charAt(end))) {
+            end++;
+        }
+        if (end < line.length() && line.charAt(end) != ' ') {
+            return start;
+        }
+        return end;
+    }
+
+    /**
+     * Records the latency of the command completed by a tagged response.
+     *
+     * @param line server line, not null
+     * @param location script location of the response, not null
+     */
+    void responseRead(CharSequence line, String location) {
+        if (pendingCommands.isEmpty()) {
+            return;
+        }
+        for (Iterator<Map.Entry<String, PendingCommand>> iterator = pendingCommands.entrySet().iterator(); iterator.hasNext();) {
+            final Map.Entry<String, PendingCommand> entry = iterator.next();
+            final String tag = entry.getKey();
+            if (line.length() > tag.length() && line.charAt(tag.length()) == ' ' && startsWith(line, tag)) {
+                iterator.remove();
+                final PendingCommand command = entry.getValue();
+                final long now = System.nanoTime();
+                latencyRecorder.record(command.name, location, now - command.sent, now - command.intendedSent);
+                return;
+            }
+        }
+    }
+
+    private static boolean startsWith(CharSequence line, String prefix) {
+        for (int i = 0; i < prefix.length(); i++) {
+            if (line.charAt(i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A tagged command sent to the server.
+     */
+    private static final class PendingCommand {
+
+        private final String name;
+
+        private final long sent;
+
+        /** <code>System.nanoTime()</code> at which the command was meant to be sent */
+        private final long intendedSent;
+
+        public PendingCommand(String name, long sent, long intendedSent) {
+            this.name = name;
+            this.sent = sent;
+            this.intendedSent = intendedSent;
+        }
+    }
+
+    /**
+     * Constructs a <code>String</code> with all attributes
+     * in name = value format.
+     *
+     * @return a <code>String</code> representation
+     * of this object.
+     */
+    public String toString()
+    {
+        final String TAB = " ";
+
+        String result  = "ExecutionContext ( "
+            + "continued = " + this.continued + TAB
+            + "continuationExpected = " + this.continuationExpected + TAB
+            + "currentSession = " + this.currentSession + TAB
+            + "nextTest = " + this.nextTest + TAB
+            + "pendingTest = " + this.pendingTest + TAB
+            + "continueAfterFailure = " + this.continueAfterFailure + TAB
+            + " )";
+
+        return result;
+    }
+}
@@ -0,0 +1,206 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>A server line expected by a script, compiled once when the script is built.</p>
+ * <p>
+ * Most expected lines are plain text, possibly with escaped punctuation,
+ * or plain text followed by <code>.*</code> or <code>.+</code>. These are
+ * matched by comparing characters, with the same result as the regular
+ * expression. Only true regular expressions are matched by a
+ * <code>Pattern</code>.
+ * </p><p>
+ * Instances are immutable and may be shared by any number of
+ * concurrently running scripts.
+ * </p>
+ */
+public final class ExpectedLine {
+
+    private static final String META_CHARACTERS = "\\.^$|?*+()[]{}";
+
+    enum Kind {
+        /** Matches the literal text exactly */
+        LITERAL,
+        /** Starts with the literal text followed by any characters on the line */
+        PREFIX,
+        /** Matched by the pattern */
+        REGEX
+    }
+
+    private final String expected;
+
+    private final Pattern pattern;
+
+    private final Kind kind;
+
+    /** Unescaped text for literal and prefix lines */
+    private final String literal;
+
+    /** Minimum number of characters after a prefix */
+    private final int minimumTail;
+
+    private ExpectedLine(String expected, Pattern pattern, Kind kind, String literal, int minimumTail) {
+        this.expected = expected;
+        this.pattern = pattern;
+        this.kind = kind;
+        this.literal = literal;
+        this.minimumTail = minimumTail;
+    }
+
+    /**
+     * Compiles an expected line.
+     *
+     * @param expected regular expression the whole line must match, not null
+     * @return not null
+     * @throws java.util.regex.PatternSyntaxException when the expression is invalid
+     */
+    public static ExpectedLine compile(String expected) {
+        // always compiled, so syntax errors are found and groups can be captured
+        final Pattern pattern = Pattern.compile(expected);
+        int end = expected.length();
+        int minimumTail = 0;
+        Kind kind = Kind.LITERAL;
+        if (expected.endsWith(".*") || expected.endsWith(".+")) {
+            if (!isEscaped(expected, end - 2)) {
+                kind = Kind.PREFIX;
+                minimumTail = expected.endsWith(".+") ? 1 : 0;
+                end -= 2;
+            }
+        }
+        final String literal = unescape(expected, end);
+        if (literal == null) {
+            return new ExpectedLine(expected, pattern, Kind.REGEX, null, 0);
+        }
+        return new ExpectedLine(expected, pattern, kind, literal, minimumTail);
+    }
+
+    /**
+     * Is the character at the index escaped by an odd number of backslashes?
+     */
+    private static boolean isEscaped(String expected, int index) {
+        int backslashes = 0;
+        for (int i = index - 1; i >= 0 && expected.charAt(i) == '\\'; i--) {
+            backslashes++;
+        }
+        return backslashes % 2 == 1;
+    }
+
+    /**
+     * Converts the start of the expression to the literal text it matches.
+     *
+     * @return the text, or null when the expression is not literal
+     */
+    private static String unescape(String expected, int end) {
+        final StringBuilder result = new StringBuilder(end);
+        for (int i = 0; i < end; i++) {
+            final char next = expected.charAt(i);
+            if (next == '\\') {
+                if (++i == end) {
+                    return null;
+                }
+                final char escaped = expected.charAt(i);
+                // \d, \w, \Q, \1 and friends are not literal
+                if (Character.isLetterOrDigit(escaped)) {
+                    return null;
+                }
+                result.append(escaped);
+            } else if (META_CHARACTERS.indexOf(next) >= 0) {
+                return null;
+            } else {
+                result.append(next);
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Gets how the line is matched.
+     * @return not null
+     */
+    Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Gets the expected line as written in the script.
+     * @return not null
+     */
+    public String getExpected() {
+        return expected;
+    }
+
+    /**
+     * Does the whole of the actual line match?
+     *
+     * @param actual not null
+     * @return true when the line matches
+     */
+    public boolean matches(CharSequence actual) {
+        switch (kind) {
+            case LITERAL:
+                return actual.length() == literal.length() && startsWithLiteral(actual);
+            case PREFIX:
+                return actual.length() >= literal.length() + minimumTail
+                    && startsWithLiteral(actual) && !hasLineTerminator(actual, literal.length());
+            default:
+                return pattern.matcher(actual).matches();
+        }
+    }
+
+    private boolean startsWithLiteral(CharSequence actual) {
+        for (int i = 0; i < literal.length(); i++) {
+            if (actual.charAt(i) != literal.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A dot does not match line terminators, so neither may the tail of a prefix line.
+     */
+    private static boolean hasLineTerminator(CharSequence actual, int start) {
+        for (int i = start; i < actual.length(); i++) {
+            final char next = actual.charAt(i);
+            if (next == '\n' || next == '\r' || next == '\u0085' || next == '\u2028' || next == '\u2029') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Creates a matcher, for capturing groups from the actual line.
+     *
+     * @param actual not null
+     * @return not null
+     */
+    public Matcher matcher(CharSequence actual) {
+        return pattern.matcher(actual);
+    }
+
+    public String toString() {
+        return expected;
+    }
+}
@@ -19,24 +19,39 @@
 
 package org.apache.james.mpt;
 
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Iterator;
 
 import org.apache.tools.ant.BuildException;
 
 final class ExternalSession implements Session {
 
-    /** Number of milliseconds to sleep after empty read */
-    private static final int SHORT_WAIT_FOR_INPUT = 10;
+    /** Number of milliseconds to wait for the server, zero to wait forever */
+    public static final long DEFAULT_TIMEOUT = 0;
 
     private static final byte[] CRLF = { '\r', '\n' };
 
     private final Monitor monitor;
 
-    private final ByteBuffer readBuffer;
+    private static final int BUFFER_SIZE = 2048;
+
+    /** Unread input, always kept ready for reading */
+    private ByteBuffer readBuffer;
+
+    private final LineBuffer line;
 
     private final Charset ascii;
 
@@ -48,6 +63,38 @@ final class ExternalSession implements Session {
     
     private SocketChannel channel;
     
+    private Selector selector;
+    
+    /** When the last connect began, from {@link System#nanoTime()} */
+    private long connectStarted;
+    
+    /** When the last connect finished, from {@link System#nanoTime()}, zero until it has */
+    private long connectFinished;
+    
+    /** Why the last connect failed, null unless it has */
+    private IOException connectFailure;
+    
+    private boolean connected = false;
+    
+    /** Is the first line of this connection still to be read? */
+    private boolean greetingPending = false;
+    
+    /** First line the server sent on this connection, null until read */
+    private String greeting;
+    
+    /** Is the greeting read again, by the next script on this connection? */
+    private boolean replayGreeting = false;
+    
+    private long timeout = DEFAULT_TIMEOUT;
+    
+    private boolean blocking = false;
+    
+    /** Socket input used for blocking reads */
+    private InputStream input;
+    
+    /** Recent lines, null when not captured */
+    private WireCapture wireCapture;
+    
     private final String alias;
     
     private final String host;
@@ -64,126 +111,530 @@ final class ExternalSession implements Session {
         this.host = host;
         this.port = port;
         this.monitor = monitor;
-        readBuffer = ByteBuffer.allocateDirect(2048);
+        line = new LineBuffer();
         ascii = Charset.forName("US-ASCII");
         lineEndBuffer = ByteBuffer.wrap(CRLF);
         this.shabang = shabang;
     }
 
+    /**
+     * Gets the number of milliseconds to wait for the server
+     * before a read or write fails.
+     * @return timeout in milliseconds, zero when waiting forever
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets the number of milliseconds to wait for the server
+     * before a read or write fails.
+     * @param timeout in milliseconds, zero to wait forever
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+        if (input != null) {
+            try {
+                channel.socket().setSoTimeout((int) Math.min(timeout, Integer.MAX_VALUE));
+            } catch (IOException e) {
+                monitor.debug("Cannot set timeout: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Gets the recent lines sent and received.
+     * @return null when lines are not captured
+     */
+    public WireCapture getWireCapture() {
+        return wireCapture;
+    }
+
+    /**
+     * Sets where recent lines sent and received are kept.
+     * The capture is cleared each time the session is connected.
+     * @param wireCapture null to capture nothing
+     */
+    public void setWireCapture(WireCapture wireCapture) {
+        this.wireCapture = wireCapture;
+    }
+
+    /**
+     * Is the channel used in blocking mode?
+     * @return true when reads and writes block the calling thread,
+     * false when they wait on a selector
+     */
+    public boolean isBlocking() {
+        return blocking;
+    }
+
+    /**
+     * Sets whether the channel is used in blocking mode.
+     * Blocking reads park virtual threads rather than pinning them
+     * to a selector. This must be set before the session is started.
+     * @param blocking true for blocking reads and writes,
+     * false to wait on a selector
+     */
+    public void setBlocking(boolean blocking) {
+        this.blocking = blocking;
+    }
+
     public String readLine() throws Exception {
-        StringBuffer buffer = new StringBuffer();
-        readlineInto(buffer);
-        final String result;
+        return readLineSequence().toString();
+    }
+
+    public CharSequence readLineSequence() throws Exception {
+        final boolean debug = monitor.isDebugEnabled();
+        if (debug) {
+            monitor.debug("[Reading line]");
+        }
+        final CharSequence read;
+        if (replayGreeting) {
+            // the server greeted an earlier script on this connection
+            replayGreeting = false;
+            read = greeting;
+        } else {
+            line.clear();
+            while (!line.scan(readBuffer)) {
+                fill();
+            }
+            if (greetingPending) {
+                greetingPending = false;
+                greeting = line.toString();
+            }
+            read = line;
+        }
+        if (wireCapture != null) {
+            wireCapture.received(read);
+        }
+        if (debug) {
+            monitor.debug("[Done]");
+        }
+        if (monitor.isNoteEnabled()) {
+            monitor.note("<-" + read);
+        }
+        final CharSequence result;
         if (first && shabang != null) {
             // fake shabang
-            monitor.note("<-" + buffer.toString());
             result = shabang;
             first = false;
         } else {
-            result = buffer.toString();
-            monitor.note("<-" + result);
+            result = read;
         }
         return result;
     }
 
-    private void readlineInto(StringBuffer buffer) throws Exception {
-        monitor.debug("[Reading line]");
-        readBuffer.flip();
-        while (oneFromLine(buffer))
-            ;
-//      May have partial read
-        readBuffer.compact();
-        monitor.debug("[Done]");
-    }
-
-    private boolean oneFromLine(StringBuffer buffer) throws Exception {
-        final boolean result;
-        if (readBuffer.hasRemaining()) {
-            char next = (char) readBuffer.get();
-            if (next == '\n') {
-                monitor.debug("[LF]");
-//              Reached end of the line
-                result = false;
-            } else if (next == '\r') {
-//              CRLF line endings so drop
-                monitor.debug("[CR]");
-                result = true;
-            } else {
-//              Load buffer
-                monitor.debug(next);
-                buffer.append(next);
-                result = true;
+    /**
+     * Refills the empty read buffer from the channel,
+     * waiting until the server sends something.
+     */
+    private void fill() throws IOException {
+        final boolean debug = monitor.isDebugEnabled();
+        if (debug) {
+            monitor.debug("[Reading into buffer]");
+        }
+        readBuffer.clear();
+        int read;
+        if (input != null) {
+//          Blocks until the server sends something, the socket times out
+            read = input.read(readBuffer.array(), readBuffer.arrayOffset(), readBuffer.capacity());
+            if (read > 0) {
+                readBuffer.position(read);
             }
         } else {
-            monitor.debug("[Reading into buffer]");
-            readBuffer.clear();
-            while (channel.read(readBuffer) == 0) {
+            while ((read = channel.read(readBuffer)) == 0) {
 //              No response yet
-//              Wait a little while
-                Thread.sleep(SHORT_WAIT_FOR_INPUT);
+//              Wait until the server sends something
+                awaitReady(SelectionKey.OP_READ);
             }
-//          Reset for transfer into string buffer
-            readBuffer.flip();
+        }
+//      Reset for scanning
+        readBuffer.flip();
+        if (read < 0) {
+            throw new EOFException("Connection closed by server: " + alias);
+        }
+        if (debug) {
             monitor.debug("[Done]");
-            result = true;
         }
-        return result;
     }
 
     public void start() throws Exception {
-    	
-    	InetSocketAddress address = new InetSocketAddress(host, port);
-		try {
-			monitor.note("Connecting " + alias + "....");
-			channel = SocketChannel.open(address);
-		} catch (IOException e) {
-			throw new BuildException("Error opening channel", e);
-		}
-		
-		while (!channel.finishConnect()) {
-            monitor.note("connecting " + alias + "...");
-            Thread.sleep(2);
+        beginConnect();
+        awaitConnected();
+    }
+
+    /**
+     * Starts connecting without waiting for the connection,
+     * so several sessions connect at the same time.
+     * Does nothing when the session is connecting or connected.
+     * 
+     * @throws IOException
+     */
+    public void beginConnect() throws IOException {
+        if (channel != null) {
+            return;
+        }
+    	if (wireCapture != null) {
+    	    wireCapture.clear();
+    	}
+        monitor.note("Connecting " + alias + "....");
+        connectStarted = System.nanoTime();
+        connectFinished = 0;
+        connectFailure = null;
+        connected = false;
+        greetingPending = true;
+        greeting = null;
+        replayGreeting = false;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            channel.register(selector, 0);
+            channel.connect(new InetSocketAddress(host, port));
+        } catch (IOException e) {
+            throw new BuildException("Error opening channel", e);
         }
     }
 
+    /**
+     * Waits until the session is connected, connecting when
+     * {@link #beginConnect()} has not been called.
+     * 
+     * @return nanoseconds from the start of the connect until it finished,
+     * the first time the session is found connected, and -1 afterwards
+     * @throws SocketTimeoutException when the timeout expires first
+     * @throws Exception
+     */
+    public long awaitConnected() throws Exception {
+        beginConnect();
+        if (connected) {
+            return -1;
+        }
+        try {
+            while (!finishConnect()) {
+                awaitReady(SelectionKey.OP_CONNECT);
+            }
+        } catch (SocketTimeoutException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new BuildException("Error opening channel", e);
+        }
+        connected = true;
+        final long result = connectFinished - connectStarted;
+        
+        // commands are small writes which must not wait for acknowledgements
+        channel.socket().setTcpNoDelay(true);
+        if (blocking) {
+            // deregister so the channel can block
+            selector.close();
+            selector = null;
+            channel.configureBlocking(true);
+            // the socket input honours the timeout, the channel does not
+            channel.socket().setSoTimeout((int) Math.min(timeout, Integer.MAX_VALUE));
+            input = channel.socket().getInputStream();
+            readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        } else {
+            // reads and writes wait on the selector rather than polling
+            readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        readBuffer.flip();
+        return result;
+    }
+
+    /**
+     * Finishes the connect, without waiting, noting when it finished.
+     * 
+     * @return true once the connect has finished
+     * @throws IOException when the connect failed
+     */
+    private boolean finishConnect() throws IOException {
+        if (connectFailure != null) {
+            throw connectFailure;
+        }
+        if (connectFinished == 0) {
+            try {
+                if (!channel.finishConnect()) {
+                    return false;
+                }
+            } catch (IOException e) {
+                connectFailure = e;
+                throw e;
+            }
+            connectFinished = System.nanoTime();
+        }
+        return true;
+    }
+
+    /**
+     * <p>Waits until the connects of several sessions have finished.</p>
+     * <p>
+     * Each connect is finished as soon as the server accepts it, so the
+     * time it took does not depend on when the script first uses the
+     * session. A connect which fails, or has not finished when the
+     * longest timeout of the sessions expires, is reported when the
+     * script uses the session.
+     * </p>
+     * 
+     * @param sessions sessions which have begun connecting, not null
+     * @throws IOException
+     */
+    static void finishConnects(Collection<ExternalSession> sessions) throws IOException {
+        final Selector waiting = Selector.open();
+        try {
+            long timeout = 0;
+            boolean forever = false;
+            int pending = 0;
+            for (Iterator<ExternalSession> iterator = sessions.iterator(); iterator.hasNext();) {
+                final ExternalSession session = iterator.next();
+                if (session.channel != null && !session.connected && !session.isConnectFinished()) {
+                    session.channel.register(waiting, SelectionKey.OP_CONNECT, session);
+                    pending++;
+                    forever |= session.timeout == 0;
+                    timeout = Math.max(timeout, session.timeout);
+                }
+            }
+            if (forever) {
+                timeout = 0;
+            }
+            final long deadline = System.currentTimeMillis() + timeout;
+            while (pending > 0) {
+                long wait = 0;
+                if (timeout > 0) {
+                    wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        return;
+                    }
+                }
+                waiting.select(wait);
+                for (Iterator<SelectionKey> iterator = waiting.selectedKeys().iterator(); iterator.hasNext();) {
+                    final SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (((ExternalSession) key.attachment()).isConnectFinished()) {
+                        key.cancel();
+                        pending--;
+                    }
+                }
+            }
+        } finally {
+            // deregisters the channels, so they can block
+            waiting.close();
+        }
+    }
+
+    /**
+     * Finishes the connect without waiting.
+     * @return true when the connect has finished, or failed
+     */
+    private boolean isConnectFinished() {
+        try {
+            return finishConnect();
+        } catch (IOException e) {
+            // reported when the session is used
+            return true;
+        }
+    }
+
+    /**
+     * Is the session connected?
+     * @return true once a connect has finished, until the session is stopped
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Checks that the connection can run another script.
+     * The server must not have closed it, nor sent anything unread.
+     * Does not wait for the server.
+     * 
+     * @return true when the connection can be reused
+     */
+    public boolean isReusable() {
+        if (!connected || !channel.isOpen() || readBuffer.hasRemaining()) {
+            return false;
+        }
+        try {
+            readBuffer.clear();
+            int read;
+            if (input != null) {
+                final int soTimeout = channel.socket().getSoTimeout();
+                // wait as little as possible
+                channel.socket().setSoTimeout(1);
+                try {
+                    read = input.read(readBuffer.array(), readBuffer.arrayOffset(), readBuffer.capacity());
+                } catch (SocketTimeoutException e) {
+                    read = 0;
+                } finally {
+                    channel.socket().setSoTimeout(soTimeout);
+                }
+                if (read > 0) {
+                    readBuffer.position(read);
+                }
+            } else {
+                read = channel.read(readBuffer);
+            }
+            readBuffer.flip();
+            return read == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Prepares a connection kept from an earlier script to run another.
+     * The greeting the server sent when the session connected is read
+     * again as the first line.
+     */
+    public void reuse() {
+        replayGreeting = greeting != null;
+        if (wireCapture != null) {
+            wireCapture.clear();
+        }
+        monitor.note("Reusing " + alias);
+    }
+
     public void stop() throws Exception {
+        if (channel == null) {
+            // never connected
+            return;
+        }
         monitor.note("closing " + alias);
-        channel.close();
+        try {
+            channel.close();
+        } finally {
+            channel = null;
+            input = null;
+            connected = false;
+            if (selector != null) {
+                selector.close();
+                selector = null;
+            }
+        }
+    }
+
+    /**
+     * Blocks until the channel is ready for the given operation.
+     * 
+     * @param operation <code>SelectionKey</code> operation
+     * @throws SocketTimeoutException when the timeout expires first
+     * @throws IOException
+     */
+    private void awaitReady(final int operation) throws IOException {
+        final SelectionKey key = channel.keyFor(selector);
+        key.interestOps(operation);
+        try {
+            final long deadline = System.currentTimeMillis() + timeout;
+            while (true) {
+                long wait = 0;
+                if (timeout > 0) {
+                    wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        if (operation == SelectionKey.OP_CONNECT) {
+                            throw new SocketTimeoutException("Cannot connect to " + alias + " after " + timeout + "ms");
+                        }
+                        throw new SocketTimeoutException("No response from " + alias + " after " + timeout + "ms");
+                    }
+                }
+                if (selector.select(wait) > 0) {
+                    selector.selectedKeys().clear();
+                    return;
+                }
+            }
+        } finally {
+            key.interestOps(0);
+        }
+    }
+
+    /**
+     * Writes all remaining bytes, waiting whenever the socket buffer is full.
+     * 
+     * @param buffer not null
+     * @throws IOException
+     */
+    private void writeFully(final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0) {
+                awaitReady(SelectionKey.OP_WRITE);
+            }
+        }
     }
 
     public void writeLine(String line) throws Exception {
-        monitor.note("-> " + line);
-        monitor.debug("[Writing line]");
-        ByteBuffer writeBuffer = ascii.encode(line);
-        while (writeBuffer.hasRemaining()) {
-        	channel.write(writeBuffer);
+        final boolean debug = monitor.isDebugEnabled();
+        if (monitor.isNoteEnabled()) {
+            monitor.note("-> " + line);
         }
-        lineEndBuffer.rewind();
-        while (lineEndBuffer.hasRemaining()) {
-        	channel.write(lineEndBuffer);
+        if (wireCapture != null) {
+            wireCapture.sent(line);
+        }
+        if (debug) {
+            monitor.debug("[Writing line]");
+        }
+        // a single write so the line end is not held back by Nagle's algorithm
+        final ByteBuffer encoded = ascii.encode(line);
+        final ByteBuffer writeBuffer = ByteBuffer.allocate(encoded.remaining() + CRLF.length);
+        writeBuffer.put(encoded).put(CRLF).flip();
+        writeFully(writeBuffer);
+        if (debug) {
+            monitor.debug("[Done]");
         }
-        monitor.debug("[Done]");
     }
     
     /**
      * Writes binary data to the channel.
+     * File backed attachments are transferred straight from the file
+     * to the socket without being copied onto the heap.
      * 
-     * @param data
-     * @param fileName
+     * @param attachment not null
      * @throws IOException
      */
     public void writeData(Attachment attachment) throws IOException{
-    	monitor.note("-> binary file (" + attachment.getData().length + " bytes): " + attachment.getFilename());
-    	monitor.debug("[Writing binary data]");
-    	ByteBuffer writeBuffer = ByteBuffer.wrap(attachment.getData());
-        while (writeBuffer.hasRemaining()) {
-        	channel.write(writeBuffer);
-        }    	
+    	final boolean debug = monitor.isDebugEnabled();
+    	if (monitor.isNoteEnabled()) {
+    	    monitor.note("-> binary file (" + attachment.getSize() + " bytes): " + attachment.getFilename());
+    	}
+    	if (wireCapture != null) {
+    	    wireCapture.sent("<binary file (" + attachment.getSize() + " bytes): " + attachment.getFilename() + ">");
+    	}
+    	if (debug) {
+    	    monitor.debug("[Writing binary data]");
+    	}
+    	if (attachment.getFile() == null) {
+    	    writeFully(ByteBuffer.wrap(attachment.getData()));
+    	} else {
+    	    transferFully(attachment.getFile());
+    	}
         lineEndBuffer.rewind();
-        while (lineEndBuffer.hasRemaining()) {
-        	channel.write(lineEndBuffer);
+        writeFully(lineEndBuffer);
+        if (debug) {
+            monitor.debug("[Done]");
+        }
+    }
+
+    /**
+     * Transfers the whole file to the channel,
+     * waiting whenever the socket buffer is full.
+     * 
+     * @param file not null
+     * @throws IOException
+     */
+    private void transferFully(final File file) throws IOException {
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            final FileChannel source = in.getChannel();
+            final long size = source.size();
+            long position = 0;
+            while (position < size) {
+                final long transferred = source.transferTo(position, size - position, channel);
+                if (transferred == 0) {
+                    awaitReady(SelectionKey.OP_WRITE);
+                } else {
+                    position += transferred;
+                }
+            }
+        } finally {
+            in.close();
         }
-        monitor.debug("[Done]");
     }
 
     /**
@@ -205,6 +656,8 @@ final class ExternalSession implements Session {
             + "lineEndBuffer = " + this.lineEndBuffer + TAB
             + "first = " + this.first + TAB
             + "shabang = " + this.shabang + TAB
+            + "timeout = " + this.timeout + TAB
+            + "blocking = " + this.blocking + TAB
             + " )";
     
         return result;
@@ -32,6 +32,9 @@ public class ExternalSessionFactory implements SessionFactory {
     protected final int port;
     protected final Monitor monitor;
     protected final String shabang;
+    private long timeout = ExternalSession.DEFAULT_TIMEOUT;
+    private boolean blocking = false;
+    private int wireCapture = 0;
 
     public ExternalSessionFactory(String alias, String host, int port, final Monitor monitor, final String shabang) {
         super();
@@ -42,8 +45,39 @@ public class ExternalSessionFactory implements SessionFactory {
         this.shabang = shabang;
     }
 
+    /**
+     * Sets the number of milliseconds sessions wait for the server.
+     * @param timeout in milliseconds, zero to wait forever
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Sets whether sessions use blocking reads and writes
+     * rather than waiting on a selector.
+     * @param blocking true for blocking sessions
+     */
+    public void setBlocking(boolean blocking) {
+        this.blocking = blocking;
+    }
+
+    /**
+     * Sets how many characters of recent traffic each session keeps,
+     * to be shown when a run fails.
+     * @param wireCapture number of characters, zero to keep none
+     */
+    public void setWireCapture(int wireCapture) {
+        this.wireCapture = wireCapture;
+    }
+
     public Session newSession() throws BuildException {
         final ExternalSession result = new ExternalSession(alias, host, port, monitor, shabang);
+        result.setTimeout(timeout);
+        result.setBlocking(blocking);
+        if (wireCapture > 0) {
+            result.setWireCapture(new WireCapture(wireCapture));
+        }
         return result;
     }
 
@@ -68,6 +102,8 @@ public class ExternalSessionFactory implements SessionFactory {
             + "port = " + this.port + TAB
             + "monitor = " + this.monitor + TAB
             + "shabang = " + this.shabang + TAB
+            + "timeout = " + this.timeout + TAB
+            + "blocking = " + this.blocking + TAB
             + " )";
 
         return retValue;
@@ -0,0 +1,175 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * <p>Schedules tasks to the nearest tick of a hashed timing wheel.</p>
+ * <p>
+ * Time is divided into ticks and each deadline hashed to the bucket of
+ * its tick, so scheduling is constant time however many tasks wait.
+ * Tasks are never expired early and at most one tick late.
+ * The wheel is not thread safe; it is owned by a single thread.
+ * </p>
+ *
+ * @param <T> type of task
+ */
+final class HashedTimerWheel<T> {
+
+    private final long tickDuration;
+
+    private final List<LinkedList<Timer<T>>> buckets;
+
+    private final int mask;
+
+    private final long start;
+
+    /** Next tick to expire */
+    private long tick = 0;
+
+    private int size = 0;
+
+    /**
+     * @param tickDuration milliseconds per tick, positive
+     * @param ticksPerWheel number of buckets, rounded up to a power of two
+     * @param now current time in milliseconds
+     */
+    public HashedTimerWheel(long tickDuration, int ticksPerWheel, long now) {
+        if (tickDuration < 1) {
+            throw new IllegalArgumentException("Tick duration must be positive");
+        }
+        int length = 1;
+        while (length < ticksPerWheel) {
+            length <<= 1;
+        }
+        this.tickDuration = tickDuration;
+        this.mask = length - 1;
+        this.start = now;
+        buckets = new ArrayList<LinkedList<Timer<T>>>(length);
+        for (int i = 0; i < length; i++) {
+            buckets.add(new LinkedList<Timer<T>>());
+        }
+    }
+
+    /**
+     * @return milliseconds per tick
+     */
+    public long getTickDuration() {
+        return tickDuration;
+    }
+
+    /**
+     * @return number of tasks waiting
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Schedules a task.
+     *
+     * @param task not null
+     * @param deadline time in milliseconds, tasks with past deadlines
+     * expire at the next tick
+     */
+    public void schedule(T task, long deadline) {
+        // round up so the task never expires early
+        final long deadlineTick = Math.max(tick, (deadline - start + tickDuration - 1) / tickDuration);
+        buckets.get((int) (deadlineTick & mask)).add(new Timer<T>(task, deadlineTick));
+        size++;
+    }
+
+    /**
+     * Removes the tasks whose deadlines have passed.
+     *
+     * @param now current time in milliseconds
+     * @param expired tasks whose deadlines have passed are added here, not null
+     */
+    public void expire(long now, List<T> expired) {
+        final long target = (now - start) / tickDuration;
+        if (target < tick || size == 0) {
+            tick = Math.max(tick, target + 1);
+            return;
+        }
+        if (target - tick >= buckets.size()) {
+            // fallen a whole wheel behind, every bucket is due
+            for (int i = 0; i < buckets.size(); i++) {
+                expire(buckets.get(i), target, expired);
+            }
+        } else {
+            for (long next = tick; next <= target; next++) {
+                expire(buckets.get((int) (next & mask)), target, expired);
+            }
+        }
+        tick = target + 1;
+    }
+
+    private void expire(LinkedList<Timer<T>> bucket, long target, List<T> expired) {
+        for (Iterator<Timer<T>> iterator = bucket.iterator(); iterator.hasNext();) {
+            final Timer<T> timer = iterator.next();
+            // later rounds stay in the bucket
+            if (timer.deadlineTick <= target) {
+                iterator.remove();
+                size--;
+                expired.add(timer.task);
+            }
+        }
+    }
+
+    private static final class Timer<T> {
+
+        private final T task;
+
+        private final long deadlineTick;
+
+        public Timer(T task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+
+    /**
+     * Constructs a <code>String</code> with all attributes
+     * in name = value format.
+     *
+     * @return a <code>String</code> representation
+     * of this object.
+     */
+    public String toString()
+    {
+        final String TAB = " ";
+
+        String result  = "HashedTimerWheel ( "
+            + "tickDuration = " + this.tickDuration + TAB
+            + "buckets = " + this.buckets.size() + TAB
+            + "size = " + this.size + TAB
+            + " )";
+
+        return result;
+    }
+}
@@ -0,0 +1,267 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Thread safe histogram of non-negative values with logarithmic buckets.</p>
+ * <p>
+ * Every power of two range is split into 64 linear sub-buckets, in the
+ * style of HdrHistogram, so values are recorded to within 1.6% using a
+ * fixed, small array. Recording is a couple of atomic increments and
+ * never allocates. Values above the highest trackable value are
+ * counted as the highest trackable value.
+ * </p>
+ */
+public final class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    private static final int SUB_BUCKET_HALF_BITS = SUB_BUCKET_BITS - 1;
+
+    private final long highestTrackableValue;
+
+    private final AtomicLongArray counts;
+
+    private final AtomicLong totalCount = new AtomicLong();
+
+    private final AtomicLong total = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param highestTrackableValue highest value recorded exactly, at least one
+     */
+    public Histogram(long highestTrackableValue) {
+        if (highestTrackableValue < 1) {
+            throw new IllegalArgumentException("Highest trackable value must be positive");
+        }
+        this.highestTrackableValue = highestTrackableValue;
+        counts = new AtomicLongArray(indexOf(highestTrackableValue) + 1);
+    }
+
+    private static int indexOf(long value) {
+        final int bucket = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return (bucket << SUB_BUCKET_HALF_BITS) + (int) (value >>> bucket);
+    }
+
+    /**
+     * Gets the highest value equivalent to those recorded at the index.
+     */
+    private static long highestValueAt(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int bucket = (index >> SUB_BUCKET_HALF_BITS) - 1;
+        final long subBucket = index - ((long) bucket << SUB_BUCKET_HALF_BITS);
+        return ((subBucket + 1) << bucket) - 1;
+    }
+
+    /**
+     * Records a value.
+     * @param value not negative
+     */
+    public void record(long value) {
+        record(value, 1);
+    }
+
+    /**
+     * Records a value a number of times.
+     * @param value not negative
+     * @param count number of times
+     */
+    public void record(long value, long count) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value " + value);
+        }
+        final long tracked = Math.min(value, highestTrackableValue);
+        counts.addAndGet(indexOf(tracked), count);
+        totalCount.addAndGet(count);
+        total.addAndGet(tracked * count);
+        long current;
+        while (tracked > (current = max.get())) {
+            if (max.compareAndSet(current, tracked)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * <p>Records a value measured by a client which waits for each
+     * response before sending the next request.</p>
+     * <p>
+     * While the client waited longer than expected, requests it would have
+     * sent every expected interval were not sent, so their latencies were
+     * never measured. These are recorded too, as they would have been:
+     * the value less one interval, less two intervals and so on, down to
+     * the interval. This is HdrHistogram's correction for coordinated omission.
+     * </p>
+     * @param value not negative
+     * @param expectedInterval expected time between requests, zero or less
+     * to record the value alone
+     */
+    public void recordWithExpectedInterval(long value, long expectedInterval) {
+        record(value);
+        if (expectedInterval <= 0) {
+            return;
+        }
+        long missing = value - expectedInterval;
+        while (missing >= expectedInterval) {
+            // missing values sharing a bucket are recorded at once
+            final long lowest = lowestValueAt(missing);
+            final long count = (missing - Math.max(lowest, expectedInterval)) / expectedInterval + 1;
+            record(missing, count);
+            missing -= count * expectedInterval;
+        }
+    }
+
+    /**
+     * Gets the lowest value equivalent to the given value.
+     */
+    private static long lowestValueAt(long value) {
+        final int bucket = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return (value >>> bucket) << bucket;
+    }
+
+    /**
+     * Adds all values recorded by another histogram.
+     * @param other with the same highest trackable value, not null
+     */
+    public void add(Histogram other) {
+        if (other.counts.length() != counts.length()) {
+            throw new IllegalArgumentException("Histograms track different ranges");
+        }
+        for (int i = 0; i < counts.length(); i++) {
+            final long count = other.counts.get(i);
+            if (count > 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+        totalCount.addAndGet(other.totalCount.get());
+        total.addAndGet(other.total.get());
+        long current;
+        final long otherMax = other.max.get();
+        while (otherMax > (current = max.get())) {
+            if (max.compareAndSet(current, otherMax)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Writes the values recorded, so another process can merge them.
+     * Only buckets holding values are written.
+     * @param out not null
+     * @throws IOException
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        int used = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            if (counts.get(i) > 0) {
+                used++;
+            }
+        }
+        out.writeLong(highestTrackableValue);
+        out.writeLong(totalCount.get());
+        out.writeLong(total.get());
+        out.writeLong(max.get());
+        out.writeInt(used);
+        for (int i = 0; i < counts.length() && used > 0; i++) {
+            final long count = counts.get(i);
+            if (count > 0) {
+                out.writeInt(i);
+                out.writeLong(count);
+                used--;
+            }
+        }
+    }
+
+    /**
+     * Reads values written by {@link #writeTo(DataOutput)}.
+     * @param in not null
+     * @return not null
+     * @throws IOException
+     */
+    public static Histogram readFrom(DataInput in) throws IOException {
+        final Histogram result = new Histogram(in.readLong());
+        result.totalCount.set(in.readLong());
+        result.total.set(in.readLong());
+        result.max.set(in.readLong());
+        final int used = in.readInt();
+        for (int i = 0; i < used; i++) {
+            final int index = in.readInt();
+            if (index < 0 || index >= result.counts.length()) {
+                throw new IOException("Bucket " + index + " out of range");
+            }
+            result.counts.set(index, in.readLong());
+        }
+        return result;
+    }
+
+    /**
+     * @return number of values recorded
+     */
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * @return highest value recorded, zero when empty
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return mean of the values recorded, zero when empty
+     */
+    public double getMean() {
+        final long count = totalCount.get();
+        return count == 0 ? 0 : (double) total.get() / count;
+    }
+
+    /**
+     * Gets the value below which the given percentage of values fall.
+     * @param percentile between 0 and 100
+     * @return value at the percentile, zero when empty
+     */
+    public long getValueAtPercentile(double percentile) {
+        final long count = totalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        final long target = Math.max(1, (long) Math.ceil((Math.min(percentile, 100.0) / 100.0) * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValueAt(i), max.get());
+            }
+        }
+        return max.get();
+    }
+}
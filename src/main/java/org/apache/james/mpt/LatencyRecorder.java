@@ -0,0 +1,238 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Records how long the server takes to complete client commands.</p>
+ * <p>
+ * Latencies are recorded in microseconds, grouped both by command
+ * (for example <code>LOGIN</code> or <code>UID FETCH</code>) and by
+ * the script location of the tagged response. A recorder is safe to
+ * share between any number of concurrently running scripts.
+ * </p>
+ * <p>
+ * Latencies measured from the moment commands were sent omit the time
+ * the client was kept waiting before sending them. Corrected latencies
+ * are recorded alongside and reported side by side. They are measured
+ * from when each command was meant to be sent, so a run starting later
+ * than scheduled counts the delay. When an expected latency is set, each
+ * command is meant to be sent an expected latency, plus any think time,
+ * after the command before it was meant to be sent. A command the server
+ * stalls then delays the intended times of the commands which follow,
+ * and their corrected latencies count the delay.
+ * </p>
+ */
+public class LatencyRecorder {
+
+    /** Name under which the time taken to connect sessions is recorded */
+    public static final String CONNECT = "CONNECT";
+
+    /** One hour, in microseconds */
+    private static final long HIGHEST_TRACKABLE_LATENCY = TimeUnit.HOURS.toMicros(1);
+
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+    private final ConcurrentMap<String, Latencies> byCommand = new ConcurrentHashMap<String, Latencies>();
+
+    private final ConcurrentMap<String, Latencies> byLocation = new ConcurrentHashMap<String, Latencies>();
+
+    /** Expected latency in nanoseconds, zero when not known */
+    private volatile long expectedLatency = 0;
+
+    /**
+     * Sets how long the server is expected to take to complete a command.
+     * A command taking longer delays the commands which follow.
+     * @param nanos expected latency in nanoseconds, zero to correct
+     * only for runs starting late
+     */
+    public void setExpectedLatency(long nanos) {
+        expectedLatency = nanos;
+    }
+
+    /**
+     * Gets how long the server is expected to take to complete a command.
+     * @return expected latency in nanoseconds, zero when not known
+     */
+    public long getExpectedLatency() {
+        return expectedLatency;
+    }
+
+    /**
+     * Records the latency of a command sent when intended.
+     *
+     * @param command command name, not null
+     * @param location script location of the tagged response, not null
+     * @param nanos latency in nanoseconds
+     */
+    public void record(String command, String location, long nanos) {
+        record(command, location, nanos, nanos);
+    }
+
+    /**
+     * Records the latency of a command.
+     *
+     * @param command command name, not null
+     * @param location script location of the tagged response, not null
+     * @param nanos latency from when the command was sent, in nanoseconds
+     * @param correctedNanos latency from when the command was meant to be sent,
+     * in nanoseconds
+     */
+    public void record(String command, String location, long nanos, long correctedNanos) {
+        final long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        final long correctedMicros = TimeUnit.NANOSECONDS.toMicros(Math.max(nanos, correctedNanos));
+        latencies(byCommand, command).record(micros, correctedMicros);
+        latencies(byLocation, location).record(micros, correctedMicros);
+    }
+
+    private Latencies latencies(ConcurrentMap<String, Latencies> histograms, String key) {
+        Latencies result = histograms.get(key);
+        if (result == null) {
+            final Latencies created = new Latencies();
+            result = histograms.putIfAbsent(key, created);
+            if (result == null) {
+                result = created;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets the latencies of a command.
+     * @param command not null
+     * @param corrected true for corrected latencies
+     * @return latencies in microseconds, null when none were recorded
+     */
+    Histogram getLatencies(String command, boolean corrected) {
+        final Latencies result = byCommand.get(command);
+        if (result == null) {
+            return null;
+        }
+        return corrected ? result.corrected : result.uncorrected;
+    }
+
+    /**
+     * Has any latency been recorded?
+     * @return true when nothing has been recorded
+     */
+    public boolean isEmpty() {
+        return byCommand.isEmpty();
+    }
+
+    /**
+     * Writes the latencies recorded, so another process can merge them.
+     * @param out not null
+     * @throws IOException
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        writeTo(out, byCommand);
+        writeTo(out, byLocation);
+    }
+
+    private void writeTo(DataOutput out, Map<String, Latencies> histograms) throws IOException {
+        final Map<String, Latencies> copy = new TreeMap<String, Latencies>(histograms);
+        out.writeInt(copy.size());
+        for (Iterator<Map.Entry<String, Latencies>> iterator = copy.entrySet().iterator(); iterator.hasNext();) {
+            final Map.Entry<String, Latencies> entry = iterator.next();
+            out.writeUTF(entry.getKey());
+            entry.getValue().uncorrected.writeTo(out);
+            entry.getValue().corrected.writeTo(out);
+        }
+    }
+
+    /**
+     * Adds latencies written by {@link #writeTo(DataOutput)}
+     * to those recorded.
+     * @param in not null
+     * @throws IOException
+     */
+    public void readFrom(DataInput in) throws IOException {
+        readFrom(in, byCommand);
+        readFrom(in, byLocation);
+    }
+
+    private void readFrom(DataInput in, ConcurrentMap<String, Latencies> histograms) throws IOException {
+        final int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            final Latencies latencies = latencies(histograms, in.readUTF());
+            latencies.uncorrected.add(Histogram.readFrom(in));
+            latencies.corrected.add(Histogram.readFrom(in));
+        }
+    }
+
+    /**
+     * Reports the percentiles of the latencies recorded, in milliseconds.
+     * Corrected percentiles, marked <code>*</code>, follow the
+     * percentiles measured from when commands were sent.
+     *
+     * @return report with one line per command and per location, not null
+     */
+    public String report() {
+        final StringBuilder report = new StringBuilder();
+        report.append(String.format("%-40s %10s %10s %10s %10s %10s %10s %10s %10s %10s %10s %10s%n",
+                "Latency (ms)", "count", "p50", "p90", "p99", "p99.9", "max", "p50*", "p90*", "p99*", "p99.9*", "max*"));
+        append(report, byCommand);
+        append(report, byLocation);
+        report.append(String.format("* corrected for runs starting late and for commands stalled%n"));
+        return report.toString();
+    }
+
+    private void append(StringBuilder report, Map<String, Latencies> histograms) {
+        for (Iterator<Map.Entry<String, Latencies>> iterator = new TreeMap<String, Latencies>(histograms).entrySet().iterator(); iterator.hasNext();) {
+            final Map.Entry<String, Latencies> entry = iterator.next();
+            report.append(String.format("%-40s %10d", entry.getKey(), entry.getValue().uncorrected.getCount()));
+            append(report, entry.getValue().uncorrected);
+            append(report, entry.getValue().corrected);
+            report.append(String.format("%n"));
+        }
+    }
+
+    private void append(StringBuilder report, Histogram histogram) {
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            report.append(String.format(" %10.3f", histogram.getValueAtPercentile(PERCENTILES[i]) / 1000.0));
+        }
+        report.append(String.format(" %10.3f", histogram.getMax() / 1000.0));
+    }
+
+    /**
+     * Latencies measured from when commands were sent
+     * and from when they were meant to be sent.
+     */
+    private static final class Latencies {
+
+        private final Histogram uncorrected = new Histogram(HIGHEST_TRACKABLE_LATENCY);
+
+        private final Histogram corrected = new Histogram(HIGHEST_TRACKABLE_LATENCY);
+
+        public void record(long micros, long correctedMicros) {
+            uncorrected.record(micros);
+            corrected.record(correctedMicros);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Growable, reusable buffer holding a single line of protocol input.
+ * Bytes are read as ISO-8859-1 so every byte maps to exactly one character.
+ * The buffer is cleared and reused for every line so reading does not
+ * allocate once the buffer has grown to the longest line seen.
+ */
+final class LineBuffer implements CharSequence {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private byte[] bytes = new byte[INITIAL_CAPACITY];
+
+    private char[] chars;
+
+    private int length = 0;
+
+    /**
+     * Empties the buffer ready for the next line.
+     */
+    public void clear() {
+        length = 0;
+    }
+
+    /**
+     * Scans the readable bytes of the given buffer for a line feed,
+     * moving the bytes up to it into this line.
+     *
+     * @param buffer in read mode, not null
+     * @return true when the line is complete,
+     * false when all remaining bytes were consumed without finding the end
+     */
+    public boolean scan(ByteBuffer buffer) {
+        final int start = buffer.position();
+        final int limit = buffer.limit();
+        for (int i = start; i < limit; i++) {
+            if (buffer.get(i) == '\n') {
+                append(buffer, i - start);
+                // skip line feed
+                buffer.get();
+                // CRLF line endings so drop
+                if (length > 0 && bytes[length - 1] == '\r') {
+                    length--;
+                }
+                return true;
+            }
+        }
+        append(buffer, limit - start);
+        return false;
+    }
+
+    /**
+     * Replaces the line with the given bytes.
+     * A trailing carriage return is dropped.
+     *
+     * @param source not null
+     * @param offset index of the first byte
+     * @param count number of bytes
+     */
+    public void set(byte[] source, int offset, int count) {
+        if (count > 0 && source[offset + count - 1] == '\r') {
+            count--;
+        }
+        length = 0;
+        ensureCapacity(count);
+        System.arraycopy(source, offset, bytes, 0, count);
+        length = count;
+    }
+
+    private void append(ByteBuffer buffer, int count) {
+        ensureCapacity(length + count);
+        buffer.get(bytes, length, count);
+        length += count;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > bytes.length) {
+            final byte[] grown = new byte[Math.max(capacity, bytes.length * 2)];
+            System.arraycopy(bytes, 0, grown, 0, length);
+            bytes = grown;
+        }
+    }
+
+    public char charAt(int index) {
+        if (index >= length) {
+            throw new IndexOutOfBoundsException(Integer.toString(index));
+        }
+        return (char) (bytes[index] & 0xFF);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Does this line contain the given text?
+     * @param text not null
+     * @return true when the text appears in the line
+     */
+    public boolean contains(CharSequence text) {
+        final int count = text.length();
+        for (int i = 0, last = length - count; i <= last; i++) {
+            int j = 0;
+            while (j < count && (bytes[i + j] & 0xFF) == text.charAt(j)) {
+                j++;
+            }
+            if (j == count) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public CharSequence subSequence(int start, int end) {
+        return toString().substring(start, end);
+    }
+
+    /**
+     * Copies the line into a new <code>String</code>.
+     */
+    public String toString() {
+        if (chars == null || chars.length < length) {
+            chars = new char[bytes.length];
+        }
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) (bytes[i] & 0xFF);
+        }
+        return new String(chars, 0, length);
+    }
+}
@@ -0,0 +1,317 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Runs a script as a number of concurrent virtual users.</p>
+ * <p>
+ * Virtual users are started evenly over the ramp-up period. Each user
+ * runs the script repeatedly until it has completed the configured number
+ * of iterations or the duration, measured from the start of the load, has
+ * passed. When neither is set, every user runs the script once.
+ * </p>
+ */
+public class LoadGenerator {
+
+    /** Maximum number of failure messages kept for the report */
+    private static final int MAX_FAILURE_MESSAGES = 10;
+
+    /** Characters of a failure message written for another process */
+    private static final int MAX_MESSAGE_LENGTH = 16 * 1024;
+
+    private final int users;
+
+    private final Monitor monitor;
+
+    private long rampUp = 0;
+
+    private long duration = 0;
+
+    private int iterations = 0;
+
+    /**
+     * A virtual user, with its own sessions and variables.
+     */
+    public interface VirtualUser {
+
+        /**
+         * Runs the script once.
+         *
+         * @param intendedStart <code>System.nanoTime()</code> at which
+         * the run was meant to start, so latencies can include any delay,
+         * zero when the run was not scheduled
+         * @throws Exception when the script fails
+         */
+        public void runIteration(long intendedStart) throws Exception;
+    }
+
+    /**
+     * Creates the virtual users.
+     */
+    public interface VirtualUserFactory {
+
+        /**
+         * Creates a virtual user.
+         *
+         * @param index number of the user, starting at zero
+         * @return not null
+         * @throws Exception
+         */
+        public VirtualUser newUser(int index) throws Exception;
+    }
+
+    /**
+     * @param users number of virtual users, at least one
+     * @param monitor not null
+     */
+    public LoadGenerator(int users, Monitor monitor) {
+        if (users < 1) {
+            throw new IllegalArgumentException("At least one virtual user is required");
+        }
+        this.users = users;
+        this.monitor = monitor;
+    }
+
+    /**
+     * Sets the period over which virtual users are started.
+     * @param rampUp in milliseconds, zero starts all users at once
+     */
+    public void setRampUp(long rampUp) {
+        this.rampUp = rampUp;
+    }
+
+    /**
+     * Sets how long the load runs.
+     * @param duration in milliseconds from the start of the load,
+     * zero for no limit
+     */
+    public void setDuration(long duration) {
+        this.duration = duration;
+    }
+
+    /**
+     * Sets how many times each virtual user runs the script.
+     * @param iterations number of runs, zero for no limit
+     */
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
+    /**
+     * Runs the load, waiting until every virtual user has finished.
+     *
+     * @param factory creates the virtual users, not null
+     * @param executor runs each virtual user on its own thread, not null
+     * @return the outcome, not null
+     * @throws InterruptedException
+     */
+    public Result run(final VirtualUserFactory factory, ExecutorService executor) throws InterruptedException {
+        final Result result = new Result();
+        final CountDownLatch finished = new CountDownLatch(users);
+        final long start = System.currentTimeMillis();
+        final long startNanos = System.nanoTime();
+        final long deadline = duration > 0 ? start + duration : Long.MAX_VALUE;
+        final int limit = (iterations > 0 || duration > 0) ? iterations : 1;
+        monitor.note("Starting " + users + " virtual users");
+        for (int i = 0; i < users; i++) {
+            final int index = i;
+            final long startAt = start + (rampUp * index) / users;
+            final long intendedStart = startNanos + TimeUnit.MILLISECONDS.toNanos(startAt - start);
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        runUser(factory, index, startAt, intendedStart, deadline, limit, result);
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            });
+        }
+        finished.await();
+        result.setElapsed(System.currentTimeMillis() - start);
+        return result;
+    }
+
+    private void runUser(VirtualUserFactory factory, int index, long startAt, long intendedStart, long deadline, int limit, Result result) {
+        try {
+            final long wait = startAt - System.currentTimeMillis();
+            if (wait > 0) {
+                Thread.sleep(wait);
+            }
+            final VirtualUser user = factory.newUser(index);
+            for (int count = 0; (limit == 0 || count < limit) && System.currentTimeMillis() < deadline; count++) {
+                try {
+                    // later runs follow the last rather than a schedule,
+                    // commands stalled by the server are corrected as they complete
+                    user.runIteration(count == 0 ? intendedStart : 0);
+                    result.passed();
+                } catch (Exception e) {
+                    result.failed(index, e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            result.failed(index, e);
+        }
+    }
+
+    /**
+     * Shortens a message to fit a modified UTF-8 string.
+     * @param message not null
+     * @return not null
+     */
+    private static String truncate(String message) {
+        if (message.length() > MAX_MESSAGE_LENGTH) {
+            return message.substring(0, MAX_MESSAGE_LENGTH) + "...";
+        }
+        return message;
+    }
+
+    /**
+     * The outcome of a load run.
+     */
+    public static final class Result {
+
+        private final AtomicLong passed = new AtomicLong();
+
+        private final AtomicLong failed = new AtomicLong();
+
+        private final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+
+        private long elapsed;
+
+        void passed() {
+            passed.incrementAndGet();
+        }
+
+        void setElapsed(long elapsed) {
+            this.elapsed = elapsed;
+        }
+
+        void failed(int user, Exception e) {
+            failed.incrementAndGet();
+            if (failures.size() < MAX_FAILURE_MESSAGES) {
+                failures.add("user " + user + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * Adds the outcome of another load, run at the same time.
+         * @param other not null
+         */
+        public void add(Result other) {
+            passed.addAndGet(other.getPassed());
+            failed.addAndGet(other.getFailed());
+            for (Iterator<String> iterator = other.getFailures().iterator(); iterator.hasNext() && failures.size() < MAX_FAILURE_MESSAGES;) {
+                failures.add(iterator.next());
+            }
+            elapsed = Math.max(elapsed, other.elapsed);
+        }
+
+        /**
+         * Writes the outcome, so another process can merge it.
+         * @param out not null
+         * @throws IOException
+         */
+        public void writeTo(DataOutput out) throws IOException {
+            final List<String> messages = getFailures();
+            out.writeLong(getPassed());
+            out.writeLong(getFailed());
+            out.writeLong(elapsed);
+            out.writeInt(messages.size());
+            for (Iterator<String> iterator = messages.iterator(); iterator.hasNext();) {
+                out.writeUTF(truncate(iterator.next()));
+            }
+        }
+
+        /**
+         * Reads an outcome written by {@link #writeTo(DataOutput)}.
+         * @param in not null
+         * @return not null
+         * @throws IOException
+         */
+        public static Result readFrom(DataInput in) throws IOException {
+            final Result result = new Result();
+            result.passed.set(in.readLong());
+            result.failed.set(in.readLong());
+            result.elapsed = in.readLong();
+            final int messages = in.readInt();
+            for (int i = 0; i < messages; i++) {
+                result.failures.add(in.readUTF());
+            }
+            return result;
+        }
+
+        /**
+         * @return number of script runs which passed
+         */
+        public long getPassed() {
+            return passed.get();
+        }
+
+        /**
+         * @return number of script runs which failed
+         */
+        public long getFailed() {
+            return failed.get();
+        }
+
+        /**
+         * @return messages of the first failures, not null
+         */
+        public List<String> getFailures() {
+            return new ArrayList<String>(failures);
+        }
+
+        /**
+         * @return milliseconds from the start of the load until every user finished
+         */
+        public long getElapsed() {
+            return elapsed;
+        }
+
+        /**
+         * Constructs a <code>String</code> summarising the outcome.
+         *
+         * @return a <code>String</code> representation
+         * of this object.
+         */
+        public String toString()
+        {
+            final long runs = getPassed() + getFailed();
+            final long rate = elapsed > 0 ? (runs * 1000) / elapsed : runs;
+            return "runs = " + runs + " passed = " + getPassed() + " failed = " + getFailed()
+                + " elapsed = " + elapsed + "ms rate = " + rate + "/s";
+        }
+    }
+}
@@ -27,4 +27,18 @@ public interface Monitor {
     void note(String message);
     void debug(char character);
     void debug(String message);
+
+    /**
+     * Are notes kept?
+     * Callers check before building a note which would be discarded.
+     * @return false when notes are discarded
+     */
+    boolean isNoteEnabled();
+
+    /**
+     * Are debug messages kept?
+     * Callers check before building a message which would be discarded.
+     * @return false when debug messages are discarded
+     */
+    boolean isDebugEnabled();
 }
\ No newline at end of file
@@ -0,0 +1,413 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Runs many protocol sessions at once on a small number of threads.</p>
+ * <p>
+ * Each thread owns a selector and drives every script submitted to it.
+ * A script runs until an element needs input which has not arrived yet,
+ * then the thread moves on and the element is run again when the
+ * server sends more. The sessions of a submitted script must be
+ * created by an {@link AsyncSessionFactory}. The runner connects them,
+ * so {@link Session#start()} is never called.
+ * </p>
+ * <p>
+ * A sleeping script holds no thread either: it is scheduled on a timer
+ * wheel owned by its selector thread and resumed when the time is up.
+ * Sleeping scripts are not timed out.
+ * </p>
+ */
+public class MultiplexedRunner {
+
+    /** Milliseconds between checks for timed out scripts */
+    private static final long TICK = 1000;
+
+    /** Milliseconds per tick of the sleep timer wheel */
+    private static final long SLEEP_TICK = 10;
+
+    /** Buckets in the sleep timer wheel */
+    private static final int SLEEP_TICKS_PER_WHEEL = 512;
+
+    private final Monitor monitor;
+
+    private final SelectorLoop[] loops;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    private volatile long timeout = 0;
+
+    /**
+     * Creates a runner.
+     *
+     * @param threads number of selector threads, at least one
+     * @param monitor not null
+     * @throws IOException when a selector cannot be opened
+     */
+    public MultiplexedRunner(int threads, Monitor monitor) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is required");
+        }
+        this.monitor = monitor;
+        loops = new SelectorLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new SelectorLoop(i);
+        }
+    }
+
+    /**
+     * Sets the number of milliseconds a script may wait for the server
+     * before it fails.
+     * @param timeout in milliseconds, zero to wait forever
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Starts the selector threads.
+     */
+    public void start() {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i].thread.start();
+        }
+    }
+
+    /**
+     * Stops the selector threads.
+     * Scripts still running fail.
+     */
+    public void shutdown() {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i].running = false;
+            loops[i].selector.wakeup();
+        }
+    }
+
+    /**
+     * Submits a script to be run.
+     *
+     * @param script not null, all sessions created by an {@link AsyncSessionFactory}
+     * @return the execution, which completes when the script has run
+     */
+    public Execution submit(ProtocolSession script) {
+        for (Iterator<Session> iterator = script.getSessions().values().iterator(); iterator.hasNext();) {
+            if (!(iterator.next() instanceof AsyncSession)) {
+                throw new IllegalArgumentException("Sessions must be created by an AsyncSessionFactory");
+            }
+        }
+        final Execution execution = new Execution(script);
+        final int index = (next.getAndIncrement() & Integer.MAX_VALUE) % loops.length;
+        loops[index].submit(execution);
+        return execution;
+    }
+
+    /**
+     * The run of a submitted script.
+     */
+    public static final class Execution {
+
+        private final ProtocolSession script;
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private final List<SelectionKey> keys = new ArrayList<SelectionKey>();
+
+        private volatile Exception failure;
+
+        private int connecting = 0;
+
+        private long lastProgress;
+
+        /** Time the script is scheduled to wake, zero when not sleeping */
+        private long wakeUp = 0;
+
+        Execution(ProtocolSession script) {
+            this.script = script;
+        }
+
+        public ProtocolSession getScript() {
+            return script;
+        }
+
+        /**
+         * Gets the reason the script failed.
+         * @return the failure, or null when the script succeeded or is still running
+         */
+        public Exception getFailure() {
+            return failure;
+        }
+
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        /**
+         * Waits until the script has run.
+         * @throws InterruptedException
+         */
+        public void await() throws InterruptedException {
+            done.await();
+        }
+
+        /**
+         * Waits until the script has run or the time expires.
+         * @return true when the script has run
+         * @throws InterruptedException
+         */
+        public boolean await(long time, TimeUnit unit) throws InterruptedException {
+            return done.await(time, unit);
+        }
+    }
+
+    /**
+     * Selection key attachment.
+     */
+    private static final class Connection {
+
+        private final Execution execution;
+
+        private final AsyncSession session;
+
+        public Connection(Execution execution, AsyncSession session) {
+            this.execution = execution;
+            this.session = session;
+        }
+    }
+
+    private final class SelectorLoop implements Runnable {
+
+        private final Selector selector;
+
+        private final Queue<Execution> registrations = new ConcurrentLinkedQueue<Execution>();
+
+        private final Set<Execution> active = new HashSet<Execution>();
+
+        private final HashedTimerWheel<Execution> sleeping;
+
+        private final List<Execution> woken = new ArrayList<Execution>();
+
+        private long lastExpiry;
+
+        private final Thread thread;
+
+        private volatile boolean running = true;
+
+        public SelectorLoop(int index) throws IOException {
+            selector = Selector.open();
+            lastExpiry = System.currentTimeMillis();
+            sleeping = new HashedTimerWheel<Execution>(SLEEP_TICK, SLEEP_TICKS_PER_WHEEL, lastExpiry);
+            thread = new Thread(this, "mpt-selector-" + index);
+            thread.setDaemon(true);
+        }
+
+        public void submit(Execution execution) {
+            registrations.add(execution);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (running) {
+                try {
+                    selector.select(sleeping.isEmpty() ? TICK : sleeping.getTickDuration());
+                    register();
+                    final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        final SelectionKey key = keys.next();
+                        keys.remove();
+                        handle(key);
+                    }
+                    wake();
+                    final long now = System.currentTimeMillis();
+                    if (now - lastExpiry >= TICK) {
+                        lastExpiry = now;
+                        expire();
+                    }
+                } catch (IOException e) {
+                    monitor.note("Selector failed: " + e.getMessage());
+                }
+            }
+            Execution waiting;
+            while ((waiting = registrations.poll()) != null) {
+                active.add(waiting);
+            }
+            final Exception stopped = new IOException("Runner shut down");
+            for (Iterator<Execution> iterator = new ArrayList<Execution>(active).iterator(); iterator.hasNext();) {
+                complete(iterator.next(), stopped);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                monitor.debug("Cannot close selector: " + e.getMessage());
+            }
+        }
+
+        private void register() {
+            Execution execution;
+            while ((execution = registrations.poll()) != null) {
+                active.add(execution);
+                execution.lastProgress = System.currentTimeMillis();
+                try {
+                    for (Iterator<Session> iterator = execution.script.getSessions().values().iterator(); iterator.hasNext();) {
+                        final AsyncSession session = (AsyncSession) iterator.next();
+                        session.start();
+                        final SelectionKey key = session.register(selector, new Connection(execution, session));
+                        execution.keys.add(key);
+                        if (key.interestOps() == SelectionKey.OP_CONNECT) {
+                            execution.connecting++;
+                        }
+                    }
+                    if (execution.connecting == 0) {
+                        resume(execution);
+                    }
+                } catch (Exception e) {
+                    complete(execution, e);
+                }
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            final Connection connection = (Connection) key.attachment();
+            final Execution execution = connection.execution;
+            if (!key.isValid() || execution.isDone()) {
+                return;
+            }
+            try {
+                if (key.isConnectable()) {
+                    if (connection.session.finishConnect()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                        if (--execution.connecting == 0) {
+                            resume(execution);
+                        }
+                    }
+                    return;
+                }
+                if (key.isWritable() && connection.session.flush()) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                }
+                if (key.isReadable()) {
+                    if (connection.session.read() < 0) {
+                        // end of stream, let the waiting element fail
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    }
+                    execution.lastProgress = System.currentTimeMillis();
+                    if (execution.connecting == 0) {
+                        resume(execution);
+                    }
+                }
+            } catch (Exception e) {
+                complete(execution, e);
+            }
+        }
+
+        private void resume(Execution execution) throws Exception {
+            final boolean finished = execution.script.resume();
+            final long wakeUp = execution.script.getWakeUp();
+            if (wakeUp != execution.wakeUp) {
+                execution.wakeUp = wakeUp;
+                if (wakeUp > 0) {
+                    sleeping.schedule(execution, wakeUp);
+                }
+            }
+            for (Iterator<SelectionKey> iterator = execution.keys.iterator(); iterator.hasNext();) {
+                final SelectionKey key = iterator.next();
+                final Connection connection = (Connection) key.attachment();
+                if (!connection.session.flush()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            }
+            if (finished) {
+                complete(execution, null);
+            }
+        }
+
+        /**
+         * Resumes scripts which have finished sleeping.
+         */
+        private void wake() {
+            if (sleeping.isEmpty()) {
+                return;
+            }
+            final long now = System.currentTimeMillis();
+            sleeping.expire(now, woken);
+            for (Iterator<Execution> iterator = woken.iterator(); iterator.hasNext();) {
+                final Execution execution = iterator.next();
+                if (!execution.isDone() && execution.wakeUp > 0 && execution.wakeUp <= now) {
+                    execution.lastProgress = now;
+                    try {
+                        resume(execution);
+                    } catch (Exception e) {
+                        complete(execution, e);
+                    }
+                }
+            }
+            woken.clear();
+        }
+
+        private void expire() {
+            final long limit = timeout;
+            if (limit > 0) {
+                final long now = System.currentTimeMillis();
+                final List<Execution> expired = new ArrayList<Execution>();
+                for (Iterator<Execution> iterator = active.iterator(); iterator.hasNext();) {
+                    final Execution execution = iterator.next();
+                    if (execution.wakeUp == 0 && now - execution.lastProgress > limit) {
+                        expired.add(execution);
+                    }
+                }
+                for (Iterator<Execution> iterator = expired.iterator(); iterator.hasNext();) {
+                    final Execution execution = iterator.next();
+                    complete(execution, new SocketTimeoutException("No response after " + limit + "ms"
+                            + WireCapture.dump(execution.script.getSessions())));
+                }
+            }
+        }
+
+        private void complete(Execution execution, Exception failure) {
+            active.remove(execution);
+            for (Iterator<SelectionKey> iterator = execution.keys.iterator(); iterator.hasNext();) {
+                final SelectionKey key = iterator.next();
+                key.cancel();
+                try {
+                    ((Connection) key.attachment()).session.stop();
+                } catch (Exception e) {
+                    monitor.debug("Cannot close session: " + e.getMessage());
+                }
+            }
+            execution.failure = failure;
+            execution.done.countDown();
+        }
+    }
+}
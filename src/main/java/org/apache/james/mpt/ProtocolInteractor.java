@@ -21,6 +21,7 @@ package org.apache.james.mpt;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Scripts a protocol interaction.
@@ -32,6 +33,16 @@ public interface ProtocolInteractor {
      */
     public abstract void CL(String clientLine);
 
+    /**
+     * adds a new Client request line announcing a literal. The size of the
+     * literal is computed from the given parts when the line is sent.
+     * 
+     * @param clientLine the line without the literal size
+     * @param literal <code>String</code> lines, before variable substitution,
+     * and <code>Attachment</code>s counted in the literal size
+     */
+    public abstract void CL(String clientLine, List<Object> literal);
+
     public abstract void BINARY(Attachment attachment);
     
     /**
@@ -58,6 +69,13 @@ public interface ProtocolInteractor {
     public abstract void SL(String serverLine, String location, String lastClientMessage);
 
     public abstract void SL(String serverLine, String location, String lastClientMessage, String[] variableNames);
+
+    /**
+     * adds a new Server Response line to the test elements, with the specified
+     * location. When <code>substituteVariables</code> is true, variables in the
+     * line are substituted when the script runs, before the line is matched.
+     */
+    public abstract void SL(String serverLine, String location, String lastClientMessage, boolean substituteVariables);
     
     /**
      * adds a new Server Unordered Block to the test elements.
@@ -70,6 +88,12 @@ public interface ProtocolInteractor {
      */
     public abstract void SLEEP(long millis);
     
+    /**
+     * adds a new SleepElement pausing for a random think time
+     * @param thinkTime not null
+     */
+    public abstract void SLEEP(ThinkTime thinkTime);
+    
     /**
      * sets the current session to be the one identified by the provided alias
      * 
@@ -92,6 +116,14 @@ public interface ProtocolInteractor {
      */
     public Map<String, Session> getSessions();
     
+    /**
+     * Gets the aliases of the sessions the script switches to.
+     * 
+     * @return aliases in order of first use,
+     * or null when they are not known before the script runs
+     */
+    public Set<String> getReferencedAliases();
+    
     /**
      * Swallows the binary section of a response.
      */
@@ -0,0 +1,92 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.james.mpt.ProtocolSession.ProtocolElement;
+
+/**
+ * <p>A compiled protocol script.</p>
+ * <p>
+ * A script is immutable so it may be parsed once and then run any number
+ * of times, at the same time, on any number of threads. Each run binds the
+ * script to its own sessions and variables with
+ * {@link #newSession(Map, Properties)}.
+ * </p>
+ */
+public final class ProtocolScript {
+
+    private final List<ProtocolElement> elements;
+
+    /**
+     * @param elements copied, not null
+     */
+    ProtocolScript(List<ProtocolElement> elements) {
+        this.elements = Collections.unmodifiableList(new ArrayList<ProtocolElement>(elements));
+    }
+
+    /**
+     * @return the elements, unmodifiable
+     */
+    List<ProtocolElement> getElements() {
+        return elements;
+    }
+
+    /**
+     * @return number of elements in the script
+     */
+    public int size() {
+        return elements.size();
+    }
+
+    /**
+     * Binds the script to sessions and variables.
+     *
+     * @param sessionMap sessions by alias, not null
+     * @param variables substitution variables used by this binding only, not null
+     * @return a session running this script, not null
+     */
+    public ProtocolSession newSession(Map<String, Session> sessionMap, Properties variables) {
+        return new ProtocolSession(this, sessionMap, variables);
+    }
+
+    /**
+     * Constructs a <code>String</code> with all attributes
+     * in name = value format.
+     *
+     * @return a <code>String</code> representation
+     * of this object.
+     */
+    public String toString()
+    {
+        final String TAB = " ";
+
+        String result  = "ProtocolScript ( "
+            + "elements = " + this.elements + TAB
+            + " )";
+
+        return result;
+    }
+}
@@ -21,10 +21,14 @@ package org.apache.james.mpt;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -43,25 +47,33 @@ public class ProtocolSession implements ProtocolInteractor {
 	
 	static final Pattern BOUNDARY_CAPTURE_PATTERN = Pattern.compile("boundary=\"(.*)\"");
 	
-	private String currentBoundary = null;
+	/** Text every line captured by the boundary pattern contains */
+	private static final String BOUNDARY = "boundary=\"";
 	
-    private boolean continued = false;
-
-    private boolean continuationExpected = false;
-
     protected List<ProtocolElement> testElements = new ArrayList<ProtocolElement>();
 
-    private Iterator<ProtocolElement> elementsIterator;
-
-    private ProtocolElement nextTest;
-
     private boolean continueAfterFailure = false;
     
     private Properties variables;
     
     private Map<String, Session> sessionMap;
     
-    private Session currentSession;
+    private LatencyRecorder latencyRecorder;
+
+    /** <code>System.nanoTime()</code> at which the next run was meant to start, zero for when it starts */
+    private long intendedStart = 0;
+    
+    /** Source of think times, kept between runs */
+    private Random random;
+    
+    /** Maximum number of tagged commands sent before their responses are read */
+    private int pipelineDepth = 1;
+    
+    /** Elements folded for the pipeline depth, null until a run needs them */
+    private List<ProtocolElement> pipelinedElements;
+    
+    /** The run in progress, null between runs */
+    private ExecutionContext execution;
     
     public ProtocolSession(Map<String, Session> sessionMap,Properties variables){
     	this.sessionMap = sessionMap;
@@ -73,6 +85,20 @@ public class ProtocolSession implements ProtocolInteractor {
     	this.variables = new Properties();
     }
     
+    /**
+     * Binds a compiled script to sessions and variables.
+     * The elements are shared with the script and cannot be added to.
+     * 
+     * @param script not null
+     * @param sessionMap not null
+     * @param variables not null
+     */
+    ProtocolSession(ProtocolScript script, Map<String, Session> sessionMap, Properties variables) {
+        this.testElements = script.getElements();
+        this.sessionMap = sessionMap;
+        this.variables = variables;
+    }
+    
     public final boolean isContinueAfterFailure() {
         return continueAfterFailure;
     }
@@ -86,12 +112,110 @@ public class ProtocolSession implements ProtocolInteractor {
     	this.variables.putAll(variables);
     }
     
+    /**
+     * Sets the recorder for the latency of tagged commands.
+     * @param latencyRecorder null when latencies are not recorded
+     */
+    public void setLatencyRecorder(LatencyRecorder latencyRecorder) {
+        this.latencyRecorder = latencyRecorder;
+    }
+    
+    /**
+     * Sets when the next run was meant to start. When the run starts
+     * late, corrected latencies include the delay, as users waiting
+     * for the server would have seen.
+     * @param intendedStart <code>System.nanoTime()</code> at which the
+     * next run was meant to start, zero when it was not scheduled
+     */
+    public void setIntendedStart(long intendedStart) {
+        this.intendedStart = intendedStart;
+    }
+    
+    /**
+     * Sets the generator for think times.
+     * Seeding it makes the think times of every run reproducible.
+     * @param random null for an unseeded generator
+     */
+    public void setRandom(Random random) {
+        this.random = random;
+    }
+    
+    /**
+     * Compiles the elements added so far into a script
+     * which may be run any number of times, on any number of threads.
+     * 
+     * @return not null
+     * @throws IllegalStateException when the session does not keep its elements
+     */
+    public ProtocolScript compile() {
+        return new ProtocolScript(pipelined());
+    }
+
+    /**
+     * Gets the maximum number of tagged commands sent
+     * before their responses are read.
+     * @return one when commands are not pipelined
+     */
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * <p>Sets the maximum number of tagged commands sent
+     * before their responses are read.</p>
+     * <p>
+     * When more than one, each run of simple tagged commands, each followed
+     * only by its untagged responses and then its tagged completion, is sent
+     * back to back. Tagged completions are then matched to their commands by
+     * tag and untagged responses to the first open command expecting them.
+     * Commands with literals, continuations or captured variables are not
+     * pipelined.
+     * </p>
+     * @param pipelineDepth at least one
+     */
+    public void setPipelineDepth(int pipelineDepth) {
+        if (pipelineDepth < 1) {
+            throw new IllegalArgumentException("Pipeline depth must be positive");
+        }
+        this.pipelineDepth = pipelineDepth;
+        pipelinedElements = null;
+    }
 
 	@Override
 	public Map<String, Session> getSessions() {
 		return sessionMap;
 	}    
     
+    public Set<String> getReferencedAliases() {
+        final Set<String> result = new LinkedHashSet<String>();
+        for (Iterator<ProtocolElement> iterator = testElements.iterator(); iterator.hasNext();) {
+            final ProtocolElement element = iterator.next();
+            if (element instanceof SetSessionElement) {
+                result.add(((SetSessionElement) element).alias);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Gets the first command the script sends on a session.
+     * @param alias not null
+     * @return the command, before variables are substituted, or null
+     * when the script sends none, or has not been read yet
+     */
+    public String getFirstCommand(String alias) {
+        String current = null;
+        for (Iterator<ProtocolElement> iterator = testElements.iterator(); iterator.hasNext();) {
+            final ProtocolElement element = iterator.next();
+            if (element instanceof SetSessionElement) {
+                current = ((SetSessionElement) element).alias;
+            } else if (element instanceof ClientRequest && alias.equals(current)) {
+                return ((ClientRequest) element).message;
+            }
+        }
+        return null;
+    }
+    
     /**
      * Returns the number of sessions required to run this ProtocolSession. If
      * the number of readers and writers provided is less than this number, an
@@ -101,6 +225,146 @@ public class ProtocolSession implements ProtocolInteractor {
         return sessionMap.size();
     }
 
+    /**
+     * Adds an element to the script.
+     * @param element not null
+     */
+    void addElement(ProtocolElement element) {
+        testElements.add(element);
+        pipelinedElements = null;
+    }
+
+    /**
+     * Gets the elements for a new run.
+     * @return not null
+     */
+    Iterator<ProtocolElement> elements() {
+        return pipelined().iterator();
+    }
+
+    /**
+     * Gets the elements folded for the pipeline depth.
+     * They are folded once and shared by every later run.
+     */
+    private List<ProtocolElement> pipelined() {
+        if (pipelineDepth > 1) {
+            if (pipelinedElements == null) {
+                pipelinedElements = Collections.unmodifiableList(pipeline(testElements, pipelineDepth));
+            }
+            return pipelinedElements;
+        }
+        return testElements;
+    }
+
+    /**
+     * Folds runs of tagged commands which can be pipelined.
+     * 
+     * @param elements not null
+     * @param depth maximum number of commands in a pipeline
+     * @return new list, not null
+     */
+    static List<ProtocolElement> pipeline(List<ProtocolElement> elements, int depth) {
+        final List<ProtocolElement> result = new ArrayList<ProtocolElement>(elements.size());
+        final List<PipelinedCommand> run = new ArrayList<PipelinedCommand>(depth);
+        int i = 0;
+        while (i < elements.size()) {
+            final int end = pipelinedCommandEnd(elements, i);
+            if (end < 0) {
+                addPipeline(run, result);
+                result.add(elements.get(i));
+                i++;
+            } else {
+                final PipelinedCommand command = new PipelinedCommand(elements.subList(i, end));
+                for (Iterator<PipelinedCommand> iterator = run.iterator(); iterator.hasNext();) {
+                    if (iterator.next().tag.equals(command.tag)) {
+                        // completions could not be told apart
+                        addPipeline(run, result);
+                        break;
+                    }
+                }
+                run.add(command);
+                if (run.size() == depth) {
+                    addPipeline(run, result);
+                }
+                i = end;
+            }
+        }
+        addPipeline(run, result);
+        return result;
+    }
+
+    /**
+     * Finds the end of a command which can be pipelined.
+     * 
+     * @return index after the tagged completion of the command at the start,
+     * or -1 when the elements at the start cannot be pipelined
+     */
+    private static int pipelinedCommandEnd(List<ProtocolElement> elements, int start) {
+        final ProtocolElement first = elements.get(start);
+        if (first.getClass() != ClientRequest.class) {
+            return -1;
+        }
+        final String tag = tagOf(((ClientRequest) first).message);
+        if (tag == null) {
+            return -1;
+        }
+        for (int i = start + 1; i < elements.size(); i++) {
+            final ProtocolElement next = elements.get(i);
+            if (next.getClass() != ServerResponse.class && next.getClass() != ServerUnorderedBlockResponse.class) {
+                return -1;
+            }
+            final ServerResponse response = (ServerResponse) next;
+            if (response.variableNames != null) {
+                return -1;
+            }
+            if (next.getClass() == ServerResponse.class && response.expectedLine.startsWith(tag + " ")) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the tag of a client line.
+     * @return the tag, or null when the line is not tagged
+     */
+    private static String tagOf(String line) {
+        final int end = line.indexOf(' ');
+        if (end < 1) {
+            return null;
+        }
+        for (int i = 0; i < end; i++) {
+            final char next = line.charAt(i);
+            if (!Character.isLetterOrDigit(next) && next != '.') {
+                return null;
+            }
+        }
+        return line.substring(0, end);
+    }
+
+    private static void addPipeline(List<PipelinedCommand> run, List<ProtocolElement> result) {
+        if (run.size() == 1) {
+            // nothing to gain
+            result.addAll(run.get(0).elements);
+        } else if (run.size() > 1) {
+            final List<PipelinedCommand> commands = Collections.unmodifiableList(new ArrayList<PipelinedCommand>(run));
+            // requests and responses are separate elements
+            // so an element waiting for input never sends again
+            result.add(new PipelinedRequests(commands));
+            result.add(new PipelinedResponses(commands));
+        }
+        run.clear();
+    }
+
+    private ExecutionContext newExecution() {
+        if (random == null) {
+            random = new Random();
+        }
+        final long startLag = intendedStart == 0 ? 0 : Math.max(0, System.nanoTime() - intendedStart);
+        intendedStart = 0;
+        return new ExecutionContext(elements(), sessionMap, variables, continueAfterFailure, latencyRecorder, random, startLag);
+    }
+
     /**
      * Executes the ProtocolSession in real time against the readers and writers
      * supplied, writing client requests and reading server responses in the
@@ -111,61 +375,82 @@ public class ProtocolSession implements ProtocolInteractor {
      * @param sessions not null
      */
     public void execute() throws Exception {
-        elementsIterator = testElements.iterator();
-        while (elementsIterator.hasNext()) {
-            Object obj = elementsIterator.next();
-            if (obj instanceof ProtocolElement) {
-                ProtocolElement test = (ProtocolElement) obj;
-                test.testProtocol(continueAfterFailure);
-            }
+        execution = newExecution();
+        try {
+            execution.execute();
+        } finally {
+            execution = null;
         }
     }
 
-    public void doContinue() {
+    /**
+     * Runs test elements until the script completes or an element
+     * has to wait for input from an asynchronous session.
+     * The element which had to wait is run again on the next call.
+     * 
+     * @return true when all test elements have run and the script
+     * is ready to run again, false when more input is needed
+     * @throws IllegalStateException when the session cannot be multiplexed
+     * @throws Exception when an element fails
+     */
+    boolean resume() throws Exception {
+        if (execution == null) {
+            execution = newExecution();
+        }
+        boolean finished = true;
         try {
-            if (continuationExpected) {
-                continued = true;
-                while (elementsIterator.hasNext()) {
-                    Object obj = elementsIterator.next();
-                    if (obj instanceof ProtocolElement) {
-                        nextTest = (ProtocolElement) obj;
-
-                        if (!nextTest.isClient()) {
-                            break;
-                        }
-                        nextTest.testProtocol(continueAfterFailure);
-                    }
-                }
-                if (!elementsIterator.hasNext()) {
-                    nextTest = null;
-                }
-            } else {
-                throw new RuntimeException("Unexpected continuation");
+            finished = execution.resume();
+        } finally {
+            if (finished) {
+                execution = null;
             }
-        } catch (Exception e) {
-            throw new RuntimeException(e);
         }
+        return finished;
+    }
+
+    /**
+     * @return time in milliseconds the run in progress wakes from a sleep,
+     * zero when not sleeping
+     */
+    long getWakeUp() {
+        final ExecutionContext current = execution;
+        return current == null ? 0 : current.getWakeUp();
+    }
+
+    public void doContinue() {
+        final ExecutionContext current = execution;
+        if (current == null) {
+            throw new RuntimeException("Unexpected continuation");
+        }
+        current.doContinue();
     }
 
     /**
      * @see org.apache.james.mpt.ProtocolInteractor#CL(java.lang.String)
      */
     public void CL(String clientLine) {
-        testElements.add(new ClientRequest(clientLine));
+        addElement(new ClientRequest(clientLine));
+    }
+
+    /**
+     * @see org.apache.james.mpt.ProtocolInteractor#CL(java.lang.String, java.util.List)
+     */
+    public void CL(String clientLine, List<Object> literal) {
+        addElement(new LiteralClientRequest(clientLine, literal));
     }
 
     /**
      * @see org.apache.james.mpt.ProtocolInteractor#SL(java.lang.String, java.lang.String)
      */
     public void SL(String serverLine, String location) {
-        testElements.add(new ServerResponse(serverLine, location));
+        addElement(new ServerResponse(serverLine, location));
     }
 
     /**
      * @see org.apache.james.mpt.ProtocolInteractor#SUB(java.util.List, java.lang.String)
      */
     public void SUB(List<String> serverLines, String location) {
-        testElements.add(new ServerUnorderedBlockResponse(serverLines, location));
+        addElement(new ServerUnorderedBlockResponse(serverLines, location));
     }
 
 
@@ -173,50 +458,65 @@ public class ProtocolSession implements ProtocolInteractor {
      * @see org.apache.james.mpt.ProtocolInteractor#CONT()
      */
     public void CONT() throws Exception {
-        testElements.add(new ContinuationElement());
+        addElement(new ContinuationElement());
     }
 
     /**
      * @see org.apache.james.mpt.ProtocolInteractor#SL(int, java.lang.String, java.lang.String, java.lang.String)
      */
     public void SL(String serverLine, String location, String lastClientMessage, String[] variableNames) {
-        testElements.add(new ServerResponse(serverLine, location, lastClientMessage, variableNames));
+        addElement(new ServerResponse(serverLine, location, lastClientMessage, variableNames));
     }
     
     public void SL(String serverLine, String location, String lastClientMessage) {
         SL(serverLine, location, lastClientMessage, null);
     }    
 
+    /**
+     * @see org.apache.james.mpt.ProtocolInteractor#SL(java.lang.String, java.lang.String, java.lang.String, boolean)
+     */
+    public void SL(String serverLine, String location, String lastClientMessage, boolean substituteVariables) {
+        if (substituteVariables) {
+            addElement(new SubstitutedServerResponse(serverLine, location, lastClientMessage));
+        } else {
+            SL(serverLine, location, lastClientMessage);
+        }
+    }
+
     /**
      * @see org.apache.james.mpt.ProtocolInteractor#SUB(int, java.util.List, java.lang.String, java.lang.String)
      */
     public void SUB(List<String> serverLines, String location, String lastClientMessage) {
-        testElements.add(new ServerUnorderedBlockResponse(serverLines, location, lastClientMessage));
+        addElement(new ServerUnorderedBlockResponse(serverLines, location, lastClientMessage));
     }
     
     public void SLEEP(long millis){
-    	testElements.add(new SleepElement(millis));
+    	addElement(new SleepElement(ThinkTime.constant(millis)));
+    }
+    
+    public void SLEEP(ThinkTime thinkTime){
+    	addElement(new SleepElement(thinkTime));
     }
     
     public void SS(String alias) throws Exception{
-    	testElements.add(new SetSessionElement(alias));
+    	addElement(new SetSessionElement(alias));
     }
     
     public void BINARY_RESPONSE(String line, String location, String lastClientMessage){
-    	testElements.add(new BinaryResponseElement(line, location, lastClientMessage));
+    	addElement(new BinaryResponseElement(line, location, lastClientMessage));
     }
     
     
     public void BINARY(Attachment attachment){
-    	testElements.add(new ClientAttachment(attachment));
+    	addElement(new ClientAttachment(attachment));
     }
 
     /**
      * A client request, which write the specified message to a Writer.
      */
-    public class ClientRequest implements ProtocolElement {
+    public static class ClientRequest implements ProtocolElement {
 
-        private String message;
+        protected final String message;
 
         /**
          * Initialises the ClientRequest, with a message and session number.
@@ -235,46 +535,16 @@ public class ProtocolSession implements ProtocolInteractor {
          * 
          * @throws Exception
          */
-        public void testProtocol(boolean continueAfterFailure) throws Exception {
-            writeMessage(currentSession);
+        public void testProtocol(ExecutionContext context, boolean continueAfterFailure) throws Exception {
+            writeMessage(context, context.getCurrentSession());
         }
 
-        public void writeMessage(Session session) throws Exception {
-            session.writeLine(substituteVariables(message));
+        public void writeMessage(ExecutionContext context, Session session) throws Exception {
+            final String line = context.substituteVariables(message);
+            context.commandSent(line);
+            session.writeLine(line);
         }
 
-        /**
-         * Replaces ${<code>NAME</code>} with variable value.
-         * @param line not null
-         * @return not null
-         */
-        protected String substituteVariables(String line) {
-            if (variables.size() > 0) {
-                final StringBuffer buffer = new StringBuffer(line);
-                int start = 0;
-                int end = 0;
-                while (start >= 0 && end >= 0) { 
-                    start = buffer.indexOf("${", end);
-                    if (start < 0) {
-                        break;
-                    }
-                    end = buffer.indexOf("}", start);
-                    if (end < 0) {
-                        break;
-                    }
-                    final String name = buffer.substring(start+2, end);
-                    final String value = variables.getProperty(name);
-                    if (value != null) {
-                        buffer.replace(start, end + 1, value);
-                        final int variableLength = (end - start + 2);
-                        end = end + (value.length() - variableLength);
-                    }
-                }
-                line = buffer.toString();
-            }
-            return line;
-        }
-        
         public boolean isClient() {
             return true;
         }
@@ -300,20 +570,74 @@ public class ProtocolSession implements ProtocolInteractor {
         
     }
 
+    /**
+     * A client request announcing a literal. The size is computed when the
+     * request is sent, after variables have been substituted and using the
+     * size of attached files at that time, so the script can be reused.
+     */
+    private static class LiteralClientRequest extends ClientRequest {
+
+        private final List<Object> literal;
+
+        public LiteralClientRequest(String message, List<Object> literal) {
+            super(message);
+            this.literal = Collections.unmodifiableList(new ArrayList<Object>(literal));
+        }
+
+        public void writeMessage(ExecutionContext context, Session session) throws Exception {
+            long bytes = 0;
+            for (Iterator<Object> iterator = literal.iterator(); iterator.hasNext();) {
+                final Object part = iterator.next();
+                // add 2 for CRLF
+                if (part instanceof Attachment) {
+                    bytes += ((Attachment) part).getSize() + 2;
+                } else {
+                    bytes += context.substituteVariables((String) part).length() + 2;
+                }
+            }
+            // the CRLF after the last part ends the command
+            final String line = context.substituteVariables(message) + " {" + (bytes - 2) + "}";
+            context.commandSent(line);
+            session.writeLine(line);
+        }
+
+        /**
+         * Constructs a <code>String</code> with all attributes
+         * in name = value format.
+         *
+         * @return a <code>String</code> representation 
+         * of this object.
+         */
+        public String toString()
+        {
+            final String TAB = " ";
+            
+            String retValue = "LiteralClientRequest ( "
+                + "message = " + this.message + TAB
+                + "literal = " + this.literal + TAB
+                + " )";
+        
+            return retValue;
+        }
+    }
+
     /**
      * Represents a single-line server response, which reads a line from a
      * reader, and compares it with the defined regular expression definition of
      * this line.
      */
-    private class ServerResponse implements ProtocolElement {
-        protected String lastClientMessage;
+    private static class ServerResponse implements ProtocolElement {
+        protected final String lastClientMessage;
 
-        protected String expectedLine;
+        protected final String expectedLine;
 
-        protected String location;
+        /** The expected line, compiled when the script is built */
+        protected final ExpectedLine expected;
+
+        protected final String location;
         
         // The variable names to be captured for this line
-        protected String[] variableNames;
+        protected final String[] variableNames;
         
         /**
          * Sets up a server response.
@@ -340,7 +664,19 @@ public class ProtocolSession implements ProtocolInteractor {
          *            A descriptive value to use in error messages.
          */
         public ServerResponse(String expectedPattern, String location, String lastClientMessage, String[] variableNames) {
+            this(expectedPattern, ExpectedLine.compile(expectedPattern), location, lastClientMessage, variableNames);
+        }
+
+        /**
+         * Sets up a server response.
+         *
+         * @param expected
+         *            The compiled pattern, or null when it is compiled
+         *            when the script runs.
+         */
+        protected ServerResponse(String expectedPattern, ExpectedLine expected, String location, String lastClientMessage, String[] variableNames) {
             this.expectedLine = expectedPattern;
+            this.expected = expected;
             this.location = location;
             this.lastClientMessage = lastClientMessage;
             this.variableNames = variableNames;
@@ -360,23 +696,17 @@ public class ProtocolSession implements ProtocolInteractor {
          *             If the actual server response didn't match the regular
          *             expression expected.
          */
-        public void testProtocol(boolean continueAfterFailure) throws Exception {
-                checkResponse(currentSession, continueAfterFailure);
+        public void testProtocol(ExecutionContext context, boolean continueAfterFailure) throws Exception {
+                checkResponse(context, context.getCurrentSession(), continueAfterFailure);
         }
 
-        protected void checkResponse(Session session, boolean continueAfterFailure) throws Exception {
-            String testLine = readLine(session);
+        protected void checkResponse(ExecutionContext context, Session session, boolean continueAfterFailure) throws Exception {
+            // only valid until the next read, copied only when the line does not match
+            CharSequence testLine = readLine(context, session);
             
-            // look for boundary and remember it
-            Matcher m = BOUNDARY_CAPTURE_PATTERN.matcher(testLine);
-            if (m.find()) {
-				String capture = m.group(1);
-				if (capture != null) {
-					currentBoundary = capture;
-				}
-			}
+            captureBoundary(context, testLine);
             
-            if (!match(expectedLine, testLine)) {
+            if (!match(context, expected, testLine)) {
                 String errMsg = "\nLocation: " + location + "\nLastClientMsg: "
                         + lastClientMessage + "\nExpected: '" + expectedLine
                         + "'\nActual   : '" + testLine + "'";
@@ -392,18 +722,21 @@ public class ProtocolSession implements ProtocolInteractor {
          * A convenience method which returns true if the actual string matches
          * the expected regular expression.
          * 
+         * @param context
+         *            Variables captured from the actual line are set here.
          * @param expected
-         *            The regular expression used for matching.
+         *            The expected line, compiled when the script was built.
          * @param actual
          *            The actual message to match.
          * @return <code>true</code> if the actual matches the expected.
          */
-        protected boolean match(String expected, String actual) {
+        protected boolean match(ExecutionContext context, ExpectedLine expected, CharSequence actual) {
         	boolean result = false;
         	
         	if (variableNames != null){
+        		final Properties variables = context.getVariables();
         		// need to assign some variables from server response
-        		Matcher m = Pattern.compile(expected).matcher(actual);
+        		Matcher m = expected.matcher(actual);
         		int n = 0;
         		String capture = null;
         		while (m.find()){
@@ -422,7 +755,7 @@ public class ProtocolSession implements ProtocolInteractor {
         		}
         	} 
     		// do the straight match
-            result = Pattern.matches(expected, actual);
+            result = expected.matches(actual);
                 
             return result;
         }
@@ -431,11 +764,13 @@ public class ProtocolSession implements ProtocolInteractor {
          * Grabs a line from the server and throws an error message if it
          * doesn't work out
          * 
-         * @return String of the line from the server
+         * @return the line from the server, only valid until the next read
          */
-        protected String readLine(Session session) throws Exception {
+        protected CharSequence readLine(ExecutionContext context, Session session) throws Exception {
             try {
-                return session.readLine();
+                final CharSequence line = session.readLineSequence();
+                context.responseRead(line, location);
+                return line;
             } catch (IOException e) {
                 String errMsg = "\nLocation: " + location + "\nExpected: "
                         + expectedLine + "\nReason: Server Timeout.";
@@ -474,8 +809,58 @@ public class ProtocolSession implements ProtocolInteractor {
      * Represents a set of lines which must be recieved from the server, in a
      * non-specified order.
      */
-    private class ServerUnorderedBlockResponse extends ServerResponse {
-        private List<String> expectedLines = new ArrayList<String>();
+    /**
+     * A server response line with variables, which are substituted when the
+     * script runs. A line with variables is compiled each time it is matched.
+     */
+    private static class SubstitutedServerResponse extends ServerResponse {
+
+        public SubstitutedServerResponse(String expectedPattern, String location, String lastClientMessage) {
+            super(expectedPattern, compileWithoutVariables(expectedPattern), location, lastClientMessage, null);
+        }
+
+        /**
+         * @return the compiled line, or null when the line has variables
+         */
+        private static ExpectedLine compileWithoutVariables(String expectedPattern) {
+            if (expectedPattern.indexOf("${") >= 0) {
+                return null;
+            }
+            return ExpectedLine.compile(expectedPattern);
+        }
+
+        protected void checkResponse(ExecutionContext context, Session session, boolean continueAfterFailure) throws Exception {
+            final String line;
+            final ExpectedLine substituted;
+            if (expected == null) {
+                line = context.substituteVariables(expectedLine);
+                substituted = ExpectedLine.compile(line);
+            } else {
+                line = expectedLine;
+                substituted = expected;
+            }
+            CharSequence testLine = readLine(context, session);
+
+            captureBoundary(context, testLine);
+
+            if (!match(context, substituted, testLine)) {
+                String errMsg = "\nLocation: " + location + "\nLastClientMsg: "
+                        + lastClientMessage + "\nExpected: '" + line
+                        + "'\nActual   : '" + testLine + "'";
+                if (continueAfterFailure) {
+                    System.out.println(errMsg);
+                } else {
+                    throw new InvalidServerResponseException(errMsg);
+                }
+            }
+        }
+    }
+
+    private static class ServerUnorderedBlockResponse extends ServerResponse {
+        private final List<String> expectedLines;
+
+        /** The expected lines, compiled when the script is built */
+        private final List<ExpectedLine> compiledLines;
 
         /**
          * Sets up a ServerUnorderedBlockResponse with the list of expected
@@ -506,7 +891,12 @@ public class ProtocolSession implements ProtocolInteractor {
          */
         public ServerUnorderedBlockResponse(List<String> expectedLines, String location, String lastClientMessage) {
             super("<Unordered Block>", location, lastClientMessage, null);
-            this.expectedLines = expectedLines;
+            this.expectedLines = Collections.unmodifiableList(new ArrayList<String>(expectedLines));
+            final List<ExpectedLine> compiledLines = new ArrayList<ExpectedLine>(expectedLines.size());
+            for (Iterator<String> iterator = expectedLines.iterator(); iterator.hasNext();) {
+                compiledLines.add(ExpectedLine.compile(iterator.next()));
+            }
+            this.compiledLines = Collections.unmodifiableList(compiledLines);
         }
 
         /**
@@ -520,17 +910,16 @@ public class ProtocolSession implements ProtocolInteractor {
          *             If a line is encountered which doesn't match one of the
          *             expected lines.
          */
-        protected void checkResponse(Session session, boolean continueAfterFailure) throws Exception {
-            List<String> testLines = new ArrayList<String>(expectedLines);
+        protected void checkResponse(ExecutionContext context, Session session, boolean continueAfterFailure) throws Exception {
+            List<ExpectedLine> testLines = new ArrayList<ExpectedLine>(compiledLines);
             while (testLines.size() > 0) {
-                String actualLine = readLine(session);
+                CharSequence actualLine = readLine(context, session);
 
                 boolean foundMatch = false;
                 for (int i = 0; i < testLines.size(); i++) {
-                    String expected = (String) testLines.get(i);
-                    if (match(expected, actualLine)) {
+                    if (match(context, testLines.get(i), actualLine)) {
                         foundMatch = true;
-                        testLines.remove(expected);
+                        testLines.remove(i);
                         break;
                     }
                 }
@@ -576,14 +965,295 @@ public class ProtocolSession implements ProtocolInteractor {
         
     }
 
-    private class ContinuationElement implements ProtocolElement {
+    /**
+     * Looks for a boundary and remembers it.
+     */
+    private static void captureBoundary(ExecutionContext context, CharSequence line) {
+        if (indexOf(line, BOUNDARY) < 0) {
+            // nothing to capture, skip the matcher
+            return;
+        }
+        Matcher m = BOUNDARY_CAPTURE_PATTERN.matcher(line);
+        if (m.find()) {
+            String capture = m.group(1);
+            if (capture != null) {
+                context.setCurrentBoundary(capture);
+            }
+        }
+    }
 
+    /**
+     * Finds text in a line without copying the line.
+     * @return index of the text, or -1 when the line does not contain it
+     */
+    private static int indexOf(CharSequence line, String text) {
+        final int count = text.length();
+        for (int i = 0, last = line.length() - count; i <= last; i++) {
+            int j = 0;
+            while (j < count && line.charAt(i + j) == text.charAt(j)) {
+                j++;
+            }
+            if (j == count) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(CharSequence line, String prefix) {
+        if (line.length() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (line.charAt(i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void fail(String errMsg, boolean continueAfterFailure) throws InvalidServerResponseException {
+        if (continueAfterFailure) {
+            System.out.println(errMsg);
+        } else {
+            throw new InvalidServerResponseException(errMsg);
+        }
+    }
+
+    /**
+     * A tagged command with the responses expected for it.
+     */
+    private static final class PipelinedCommand {
+
+        private final List<ProtocolElement> elements;
+
+        private final ClientRequest request;
+
+        private final String tag;
+
+        /** Untagged <code>ServerResponse</code>s, in order */
+        private final List<ServerResponse> untagged;
+
+        private final ServerResponse completion;
+
+        public PipelinedCommand(List<ProtocolElement> elements) {
+            this.elements = Collections.unmodifiableList(new ArrayList<ProtocolElement>(elements));
+            this.request = (ClientRequest) elements.get(0);
+            this.tag = tagOf(request.message);
+            final List<ServerResponse> untagged = new ArrayList<ServerResponse>(elements.size() - 2);
+            for (int i = 1; i < elements.size() - 1; i++) {
+                untagged.add((ServerResponse) elements.get(i));
+            }
+            this.untagged = Collections.unmodifiableList(untagged);
+            this.completion = (ServerResponse) elements.get(elements.size() - 1);
+        }
 
-        public void testProtocol(boolean continueAfterFailure) throws Exception {
-            continuationExpected = true;
-            continued = false;
-            String testLine = currentSession.readLine();
-            if (!"+".equals(testLine) || !continued) {
+        public String toString() {
+            return elements.toString();
+        }
+    }
+
+    /**
+     * Sends a run of tagged commands back to back.
+     */
+    private static class PipelinedRequests implements ProtocolElement {
+
+        private final List<PipelinedCommand> commands;
+
+        public PipelinedRequests(List<PipelinedCommand> commands) {
+            this.commands = commands;
+        }
+
+        public void testProtocol(ExecutionContext context, boolean continueAfterFailure) throws Exception {
+            final Session session = context.getCurrentSession();
+            for (Iterator<PipelinedCommand> iterator = commands.iterator(); iterator.hasNext();) {
+                iterator.next().request.writeMessage(context, session);
+            }
+        }
+
+        public boolean isClient() {
+            return true;
+        }
+
+        /**
+         * Constructs a <code>String</code> with all attributes
+         * in name = value format.
+         *
+         * @return a <code>String</code> representation 
+         * of this object.
+         */
+        public String toString()
+        {
+            String result = "PipelinedRequests ( "
+                + "commands = " + this.commands
+                + " )";
+        
+            return result;
+        }
+    }
+
+    /**
+     * Reads the responses to a run of pipelined commands. Tagged completions
+     * are matched to commands by tag and untagged responses to the first
+     * open command expecting them.
+     */
+    private static class PipelinedResponses implements ProtocolElement {
+
+        private final List<PipelinedCommand> commands;
+
+        public PipelinedResponses(List<PipelinedCommand> commands) {
+            this.commands = commands;
+        }
+
+        public void testProtocol(ExecutionContext context, boolean continueAfterFailure) throws Exception {
+            final Session session = context.getCurrentSession();
+            final List<OpenCommand> open = new ArrayList<OpenCommand>(commands.size());
+            for (Iterator<PipelinedCommand> iterator = commands.iterator(); iterator.hasNext();) {
+                open.add(new OpenCommand(iterator.next()));
+            }
+            while (!open.isEmpty()) {
+                final CharSequence line = readLine(session, open.get(0).command.completion);
+                captureBoundary(context, line);
+                OpenCommand completed = null;
+                for (Iterator<OpenCommand> iterator = open.iterator(); iterator.hasNext();) {
+                    final OpenCommand next = iterator.next();
+                    if (startsWith(line, next.command.tag) && line.length() > next.command.tag.length()
+                            && line.charAt(next.command.tag.length()) == ' ') {
+                        completed = next;
+                        iterator.remove();
+                        break;
+                    }
+                }
+                if (completed == null) {
+                    boolean matched = false;
+                    for (Iterator<OpenCommand> iterator = open.iterator(); !matched && iterator.hasNext();) {
+                        matched = iterator.next().untagged(line);
+                    }
+                    if (!matched) {
+                        final StringBuffer errMsg = new StringBuffer().append(
+                                "\nLocation: ").append(open.get(0).command.completion.location).append(
+                                "\nExpected responses to: ");
+                        for (Iterator<OpenCommand> iterator = open.iterator(); iterator.hasNext();) {
+                            errMsg.append("\n    ");
+                            errMsg.append(iterator.next().command.request.message);
+                        }
+                        errMsg.append("\nActual: ").append(line);
+                        fail(errMsg.toString(), continueAfterFailure);
+                    }
+                } else {
+                    context.responseRead(line, completed.command.completion.location);
+                    completed.complete(line, continueAfterFailure);
+                }
+            }
+        }
+
+        private CharSequence readLine(Session session, ServerResponse next) throws Exception {
+            try {
+                return session.readLineSequence();
+            } catch (IOException e) {
+                String errMsg = "\nLocation: " + next.location + "\nExpected: "
+                        + next.expectedLine + "\nReason: Server Timeout.";
+                throw new InvalidServerResponseException(errMsg);
+            }
+        }
+
+        public boolean isClient() {
+            return false;
+        }
+
+        /**
+         * Constructs a <code>String</code> with all attributes
+         * in name = value format.
+         *
+         * @return a <code>String</code> representation 
+         * of this object.
+         */
+        public String toString()
+        {
+            String result = "PipelinedResponses ( "
+                + "commands = " + this.commands
+                + " )";
+        
+            return result;
+        }
+    }
+
+    /**
+     * The responses still expected for a pipelined command during a run.
+     */
+    private static final class OpenCommand {
+
+        private final PipelinedCommand command;
+
+        /** Index of the next untagged response expected */
+        private int next = 0;
+
+        /** Lines of an unordered block not yet seen */
+        private List<ExpectedLine> unordered;
+
+        public OpenCommand(PipelinedCommand command) {
+            this.command = command;
+        }
+
+        /**
+         * Matches an untagged line against the next response expected.
+         * @return true when the line was expected
+         */
+        public boolean untagged(CharSequence line) {
+            if (next == command.untagged.size()) {
+                return false;
+            }
+            final ServerResponse response = command.untagged.get(next);
+            if (response instanceof ServerUnorderedBlockResponse) {
+                if (unordered == null) {
+                    unordered = new ArrayList<ExpectedLine>(((ServerUnorderedBlockResponse) response).compiledLines);
+                }
+                for (int i = 0; i < unordered.size(); i++) {
+                    if (unordered.get(i).matches(line)) {
+                        unordered.remove(i);
+                        if (unordered.isEmpty()) {
+                            unordered = null;
+                            next++;
+                        }
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (response.expected.matches(line)) {
+                next++;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Checks the tagged completion.
+         */
+        public void complete(CharSequence line, boolean continueAfterFailure) throws InvalidServerResponseException {
+            final ServerResponse response;
+            if (next < command.untagged.size()) {
+                response = command.untagged.get(next);
+            } else {
+                response = command.completion;
+                if (response.expected.matches(line)) {
+                    return;
+                }
+            }
+            String errMsg = "\nLocation: " + response.location + "\nLastClientMsg: "
+                    + response.lastClientMessage + "\nExpected: '" + response.expectedLine
+                    + "'\nActual   : '" + line + "'";
+            fail(errMsg, continueAfterFailure);
+        }
+    }
+
+    private static class ContinuationElement implements ProtocolElement {
+
+
+        public void testProtocol(ExecutionContext context, boolean continueAfterFailure) throws Exception {
+            context.expectContinuation(true);
+            CharSequence testLine = context.getCurrentSession().readLineSequence();
+            if (testLine.length() != 1 || testLine.charAt(0) != '+' || !context.isContinued()) {
                 final String message = "Expected continuation";
                 if (continueAfterFailure) {
                     System.out.print(message);
@@ -591,11 +1261,11 @@ public class ProtocolSession implements ProtocolInteractor {
                     throw new InvalidServerResponseException(message);
                 }
             }
-            continuationExpected = false;
-            continued = false;
+            context.expectContinuation(false);
 
+            final ProtocolElement nextTest = context.getNextTest();
             if (nextTest != null) {
-                nextTest.testProtocol(continueAfterFailure);
+                nextTest.testProtocol(context, continueAfterFailure);
             }
         }
 
@@ -621,23 +1291,23 @@ public class ProtocolSession implements ProtocolInteractor {
     }
     
     
-    private class SleepElement implements ProtocolElement{
+    private static class SleepElement implements ProtocolElement{
     	
-    	private final long millis;
+    	private final ThinkTime thinkTime;
     	
 		/**
-		 * @param millis
+		 * @param thinkTime
 		 */
-		public SleepElement(long millis) {
-			this.millis = millis;
+		public SleepElement(ThinkTime thinkTime) {
+			this.thinkTime = thinkTime;
 		}
 
 		/* (non-Javadoc)
 		 * @see org.apache.james.mpt.ProtocolSession.ProtocolElement#testProtocol(org.apache.james.mpt.Session[], boolean)
 		 */
 		@Override
-		public void testProtocol(boolean continueAfterFailure) throws Exception {
-			Thread.sleep(millis);
+		public void testProtocol(ExecutionContext context, boolean continueAfterFailure) throws Exception {
+			context.think(thinkTime);
 		}
 
 		/* (non-Javadoc)
@@ -651,7 +1321,7 @@ public class ProtocolSession implements ProtocolInteractor {
 	
     }
 
-    private class SetSessionElement implements ProtocolElement{
+    private static class SetSessionElement implements ProtocolElement{
     	
     	private final String alias;
     	
@@ -666,12 +1336,8 @@ public class ProtocolSession implements ProtocolInteractor {
 		 * @see org.apache.james.mpt.ProtocolSession.ProtocolElement#testProtocol(org.apache.james.mpt.Session[], boolean)
 		 */
 		@Override
-		public void testProtocol(boolean continueAfterFailure) throws Exception {
-	    	Session session = sessionMap.get(alias);
-	    	if (session == null) {
-				throw new Exception("No session found for alias " + alias);
-			}
-	    	currentSession = session;
+		public void testProtocol(ExecutionContext context, boolean continueAfterFailure) throws Exception {
+	    	context.setCurrentSession(alias);
 		}
 
 		/* (non-Javadoc)
@@ -683,7 +1349,7 @@ public class ProtocolSession implements ProtocolInteractor {
 		}	
     }
     
-    public class BinaryResponseElement extends ServerResponse{
+    public static class BinaryResponseElement extends ServerResponse{
 
 
     	/**
@@ -699,14 +1365,20 @@ public class ProtocolSession implements ProtocolInteractor {
     	 * Swallow lines until we see an end of a part
     	 */
 		@Override
-		public void testProtocol(boolean continueAfterFailure) throws Exception {
-            String testLine = currentSession.readLine();
-//            while ((! isBoundaryLine(testLine)) && (!testLine.equals(CLOSE_FETCH))) {
-            while (! isBoundaryLine(testLine)) {
-            	testLine = currentSession.readLine();
+		public void testProtocol(ExecutionContext context, boolean continueAfterFailure) throws Exception {
+            // only the boundary line is kept so swallowing the body does not copy it
+            final Session session = context.getCurrentSession();
+            final String boundary = context.getCurrentBoundary();
+            // each body line read is kept, so waiting for more input
+            // carries on from the next line rather than the body start
+            CharSequence line = session.readLineSequence();
+            while (! isBoundaryLine(line, boundary)) {
+            	context.keepInput();
+            	line = session.readLineSequence();
 			}
+            String testLine = line.toString();
             
-            if (!match(expectedLine, testLine)) {
+            if (!match(context, expected, testLine)) {
                 String errMsg = "\nLocation: " + location + "\nLastClientMsg: "
                         + lastClientMessage + "\nExpected: '" + expectedLine
                         + "'\nActual   : '" + testLine + "'";
@@ -725,20 +1397,23 @@ public class ProtocolSession implements ProtocolInteractor {
 			return false;
 		}
     	
-		private boolean isBoundaryLine(String line){
-			return line.contains(currentBoundary);
+		private boolean isBoundaryLine(CharSequence line, String boundary){
+			if (line instanceof LineBuffer) {
+				return ((LineBuffer) line).contains(boundary);
+			}
+			return line.toString().contains(boundary);
 		}
     }
     
-    public class ClientAttachment implements ProtocolElement {
-    	private Attachment attachment;
+    public static class ClientAttachment implements ProtocolElement {
+    	private final Attachment attachment;
     	
     	public ClientAttachment(Attachment attachment){
     		this.attachment = attachment;
     	}
     	
-        public void testProtocol(boolean continueAfterFailure) throws Exception{
-        	currentSession.writeData(attachment);
+        public void testProtocol(ExecutionContext context, boolean continueAfterFailure) throws Exception{
+        	context.getCurrentSession().writeData(attachment);
         }
 
         public boolean isClient(){
@@ -751,17 +1426,19 @@ public class ProtocolSession implements ProtocolInteractor {
      * Represents a generic protocol element, which may write requests to the
      * server, read responses from the server, or both. Implementations should
      * test the server response against an expected response, and throw an
-     * exception on mismatch.
+     * exception on mismatch. Elements are shared by every run of a script
+     * so all state which changes during a run is kept by the context.
      */
     interface ProtocolElement {
         /**
          * Executes the ProtocolElement against the supplied session.
          * 
+         * @param context the run in progress, not null
          * @param continueAfterFailure true when the execution should continue,
          * false otherwise
          * @throws Exception
          */
-        void testProtocol(boolean continueAfterFailure) throws Exception;
+        void testProtocol(ExecutionContext context, boolean continueAfterFailure) throws Exception;
 
         boolean isClient();
     }
@@ -784,12 +1461,9 @@ public class ProtocolSession implements ProtocolInteractor {
         sessions.append(")");
         
         String result  = "ProtocolSession ( "
-            + "continued = " + this.continued + TAB
-            + "continuationExpected = " + this.continuationExpected + TAB
             + "testElements = " + this.testElements + TAB
-            + "elementsIterator = " + this.elementsIterator + TAB
             + "sessions = " + sessions.toString() + TAB
-            + "nextTest = " + this.nextTest + TAB
+            + "execution = " + this.execution + TAB
             + "continueAfterFailure = " + this.continueAfterFailure + TAB
             + " )";
     
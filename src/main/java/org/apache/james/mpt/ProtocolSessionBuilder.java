@@ -20,13 +20,16 @@
 package org.apache.james.mpt;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -69,8 +72,16 @@ public class ProtocolSessionBuilder {
 	
 	public static final String BINARY_TAG = "<BINARY_RESPONSE>";
 	
+	private static final Pattern VARIABLE_NAME_PATTERN = Pattern.compile("<([\\w]+?)>");
+	
     private final Properties variables;
     
+    private LatencyRecorder latencyRecorder;
+    
+    private ScriptCache scriptCache;
+    
+    private int pipelineDepth = 1;
+    
     
     public ProtocolSessionBuilder() {
         variables = new Properties();
@@ -88,6 +99,35 @@ public class ProtocolSessionBuilder {
         variables.put(name, value);
     }
     
+    /**
+     * Sets the recorder given to the sessions built.
+     * @param latencyRecorder null when latencies are not recorded
+     */
+    public void setLatencyRecorder(LatencyRecorder latencyRecorder) {
+        this.latencyRecorder = latencyRecorder;
+    }
+    
+    /**
+     * Sets the maximum number of tagged commands sent
+     * before their responses are read by the sessions built.
+     * Streaming sessions are not pipelined.
+     * @param pipelineDepth one for no pipelining
+     * @see ProtocolSession#setPipelineDepth(int)
+     */
+    public void setPipelineDepth(int pipelineDepth) {
+        if (pipelineDepth < 1) {
+            throw new IllegalArgumentException("Pipeline depth must be positive");
+        }
+        this.pipelineDepth = pipelineDepth;
+    }
+    
+    private ProtocolSession newProtocolSession(Map<String, Session> sessionMap, Properties variables) {
+        final ProtocolSession session = new ProtocolSession(sessionMap, variables);
+        session.setLatencyRecorder(latencyRecorder);
+        session.setPipelineDepth(pipelineDepth);
+        return session;
+    }
+    
     /**
      * Builds a ProtocolSession by reading lines from the test file with the
      * supplied name.
@@ -97,13 +137,13 @@ public class ProtocolSessionBuilder {
      * @return The ProtocolSession
      */
     public ProtocolInteractor buildProtocolSession(String scriptName, Map<String, Session> sessionMap)  throws Exception {
-        ProtocolInteractor session = new ProtocolSession(sessionMap, variables);
+        ProtocolInteractor session = newProtocolSession(sessionMap, variables);
         addTestFile(scriptName, session);
         return session;
     }
     
     public ProtocolInteractor buildProtocolSession(String scriptName, InputStream is, Map<String, Session> sessionMap)  throws Exception {
-        ProtocolInteractor session = new ProtocolSession(sessionMap, variables);
+        ProtocolInteractor session = newProtocolSession(sessionMap, variables);
         addProtocolLines(scriptName, is, session);
         return session;
     }    
@@ -116,11 +156,190 @@ public class ProtocolSessionBuilder {
      * @return The ProtocolSession
      */
     public ProtocolInteractor buildProtocolSession(final String scriptName, final Reader reader, Map<String, Session> sessionMap)  throws Exception {
-        ProtocolInteractor session = new ProtocolSession(sessionMap, variables);
+        ProtocolInteractor session = newProtocolSession(sessionMap, variables);
         addProtocolLines(scriptName, reader, session);
         return session;
     }
 
+    
+    /**
+     * Builds a ProtocolSession with its own substitution variables.
+     * The builder variables are copied before the given variables are
+     * added, so variables captured while the script runs are not seen
+     * by other sessions.
+     * 
+     * @param scriptName not null
+     * @param reader not null
+     * @param variables added to the copy of the builder variables, not null
+     * @return The ProtocolSession
+     */
+    public ProtocolInteractor buildProtocolSession(final String scriptName, final Reader reader, Map<String, Session> sessionMap, Properties variables)  throws Exception {
+        final Properties sessionVariables = new Properties();
+        sessionVariables.putAll(this.variables);
+        sessionVariables.putAll(variables);
+        ProtocolInteractor session = newProtocolSession(sessionMap, sessionVariables);
+        addProtocolLines(scriptName, reader, session);
+        return session;
+    }
+
+    /**
+     * Builds a ProtocolSession which runs elements as they are parsed,
+     * so memory use does not grow with the length of the script.
+     * The session can be run only once and closes the reader when done.
+     *
+     * @param scriptName not null
+     * @param reader not null
+     * @param sessionMap not null
+     * @param capacity number of elements parsed ahead of the running element
+     * @return The ProtocolSession
+     */
+    public ProtocolInteractor buildStreamingProtocolSession(final String scriptName, final Reader reader, Map<String, Session> sessionMap, int capacity) {
+        final StreamingProtocolSession session = new StreamingProtocolSession(scriptName, new StreamingProtocolSession.Parser() {
+            public void parse(ProtocolInteractor session) throws Exception {
+                try {
+                    addProtocolLines(scriptName, reader, session);
+                } finally {
+                    reader.close();
+                }
+            }
+        }, capacity, sessionMap, variables);
+        session.setLatencyRecorder(latencyRecorder);
+        return session;
+    }
+
+    /**
+     * Parses a script once so that it can be run many times,
+     * and at the same time, without being parsed again.
+     *
+     * @param scriptName not null
+     * @param reader not null
+     * @return the compiled script
+     * @see #buildProtocolSession(ProtocolScript, Map, Properties)
+     */
+    public ProtocolScript compileScript(final String scriptName, final Reader reader) throws Exception {
+        final ProtocolSession session = new ProtocolSession(new HashMap<String, Session>(), variables);
+        session.setPipelineDepth(pipelineDepth);
+        addProtocolLines(scriptName, reader, session);
+        return session.compile();
+    }
+
+    /**
+     * Sets the cache of compiled scripts.
+     * @param scriptCache null when scripts are not cached
+     */
+    public void setScriptCache(ScriptCache scriptCache) {
+        this.scriptCache = scriptCache;
+    }
+
+    /**
+     * Gets a script from the cache without reading it.
+     *
+     * @param scriptName not null
+     * @param lastModified modification time of the script,
+     * zero or less when unknown
+     * @return the cached script, or null when the script is not cached,
+     * has been modified, or the modification time is unknown
+     */
+    public ProtocolScript getCachedScript(final String scriptName, final long lastModified) {
+        if (scriptCache == null || lastModified <= 0) {
+            return null;
+        }
+        return scriptCache.get(scriptName, version(ScriptCache.version(lastModified)));
+    }
+
+    /**
+     * Compiles a script, using the cached script when the script has not
+     * changed. When the modification time is unknown, the script is read
+     * and its content hash is used to check the cache.
+     *
+     * @param scriptName not null
+     * @param lastModified modification time of the script,
+     * zero or less when unknown
+     * @param is the script, closed before returning, not null
+     * @return the compiled script
+     */
+    public ProtocolScript compileScript(final String scriptName, final long lastModified, final InputStream is) throws Exception {
+        final ProtocolScript cached = getCachedScript(scriptName, lastModified);
+        if (cached != null) {
+            is.close();
+            return cached;
+        }
+        final byte[] content = readFully(is);
+        final String version;
+        if (lastModified > 0) {
+            version = version(ScriptCache.version(lastModified));
+        } else {
+            version = version(ScriptCache.version(content));
+        }
+        ProtocolScript script = null;
+        if (scriptCache != null) {
+            script = scriptCache.get(scriptName, version);
+        }
+        if (script == null) {
+            script = compileScript(scriptName, new InputStreamReader(new ByteArrayInputStream(content)));
+            if (scriptCache != null) {
+                scriptCache.put(scriptName, version, script);
+            }
+        }
+        return script;
+    }
+
+    /**
+     * Scripts compiled with other options are other versions.
+     */
+    private String version(String scriptVersion) {
+        if (pipelineDepth > 1) {
+            return scriptVersion + " pipeline:" + pipelineDepth;
+        }
+        return scriptVersion;
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException {
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = is.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Builds a ProtocolSession running a compiled script
+     * with the builder variables.
+     *
+     * @param script not null
+     * @param sessionMap not null
+     * @return The ProtocolSession
+     */
+    public ProtocolInteractor buildProtocolSession(final ProtocolScript script, Map<String, Session> sessionMap) {
+        final ProtocolSession session = script.newSession(sessionMap, variables);
+        session.setLatencyRecorder(latencyRecorder);
+        return session;
+    }
+
+    /**
+     * Builds a ProtocolSession running a compiled script with its own
+     * substitution variables. The builder variables are copied before
+     * the given variables are added.
+     *
+     * @param script not null
+     * @param sessionMap not null
+     * @param variables added to the copy of the builder variables, not null
+     * @return The ProtocolSession
+     */
+    public ProtocolInteractor buildProtocolSession(final ProtocolScript script, Map<String, Session> sessionMap, Properties variables) {
+        final Properties sessionVariables = new Properties();
+        sessionVariables.putAll(this.variables);
+        sessionVariables.putAll(variables);
+        final ProtocolSession session = script.newSession(sessionMap, sessionVariables);
+        session.setLatencyRecorder(latencyRecorder);
+        return session;
+    }
 
     /**
      * Adds all protocol elements from a test file to the ProtocolSession
@@ -231,9 +450,9 @@ public class ProtocolSessionBuilder {
 
                 session.SUB(unorderedLines, location, lastClientMsg);
             } else if (line.startsWith(OPEN_ATTACHEMNT_BLOCK_TAG)){
-            	// read all lines (array list of lines), sum size
+            	// read all lines (array list of lines), the size is computed when the script runs
             	List lines = new ArrayList();
-            	int bytes = 0;
+            	List<Object> literal = new ArrayList<Object>();
             	int blockLineCount = 0;
 
             	
@@ -241,24 +460,19 @@ public class ProtocolSessionBuilder {
         		lineNumber++;
         		while(!line.startsWith(CLOSE_ATTACHMENT_BLOCK_TAG)){
             		if (line.startsWith(ATTACHMENT_TAG)) {
-            			// read file into byte[]
-            			String filename = getFilename(line);
-            			byte[] data = getBytesFromFile(filename);
-						// add bytes to sum, add 2 for CRLF 
-            			bytes += (data.length + 2);
-            			lines.add(new Attachment(data, filename));
+            			// the file is only opened when the attachment is sent
+            			Attachment attachment = getAttachment(getFilename(line));
+            			literal.add(attachment);
+            			lines.add(attachment);
 //            			System.out.println("Bytes: " + (data.length + 2) + " Filename: " + filename + "\n");
 					} else if (line.startsWith(COMMENT_TAG)){
 						// skip this line
 					} else{
-//						System.out.print("Bytes: " + (line.length() + 2) + " Line: " + line + "\n");
-						// Do we need to substitute any variables?
-						line = substituteVariables(line);
-						
+						// variables are substituted when the script runs
 	            		lines.add(line);
 	            		if (blockLineCount > 1) {
 	            			// don't count the bytes of the first 2 lines of the block (the APPEND command itself & the server continuation)
-		            		bytes += (line.length() + 2);
+		            		literal.add(line);
 						}
 					}
             		lineNumber++;
@@ -267,13 +481,12 @@ public class ProtocolSessionBuilder {
             	}
     			
         		
-            	// append size to first line, call session.CL
-            	// TODO why do I need to subtract 2 bytes?
-            	String firstLine = (String) lines.get(0) + " {" + (bytes - 2) + "}";
-            	session.CL(firstLine);
+            	// first line with the size of the rest, call session.CL
+            	String firstLine = (String) lines.get(0);
+            	session.CL(firstLine, literal);
             	
-            	// second line call session.SL
-            	session.SL((String) lines.get(1), location, firstLine);
+            	// second line call session.SL, variables are substituted when the script runs
+            	session.SL((String) lines.get(1), location, firstLine, true);
             	
             	// for the rest, read in lines and call session.CL
             	String currentLine = null;
@@ -297,8 +510,16 @@ public class ProtocolSessionBuilder {
 				}
             	session.SS(alias);
             } else if (line.startsWith(SLEEP_TAG)){
-            	long millis = getSleepTime(line);
-            	session.SLEEP(millis);
+            	if (line.indexOf('(') > 0) {
+            		try {
+            			session.SLEEP(ThinkTime.parse(line.substring(line.indexOf(':') + 1)));
+            		} catch (IllegalArgumentException e) {
+            			throw new Exception("Invalid think time at " + location + ": " + e.getMessage());
+            		}
+            	} else {
+            		long millis = getSleepTime(line);
+            		session.SLEEP(millis);
+            	}
             } else if (line.startsWith(BINARY_TAG)){
             	// get the next line
             	line = reader.readLine();
@@ -319,40 +540,8 @@ public class ProtocolSessionBuilder {
         }
     }
 
-    /**
-     * Replaces ${<code>NAME</code>} with variable value.
-     * @param line not null
-     * @return not null
-     */
-    protected String substituteVariables(String line) {
-        if (variables.size() > 0) {
-            final StringBuffer buffer = new StringBuffer(line);
-            int start = 0;
-            int end = 0;
-            while (start >= 0 && end >= 0) { 
-                start = buffer.indexOf("${", end);
-                if (start < 0) {
-                    break;
-                }
-                end = buffer.indexOf("}", start);
-                if (end < 0) {
-                    break;
-                }
-                final String name = buffer.substring(start+2, end);
-                final String value = variables.getProperty(name);
-                if (value != null) {
-                    buffer.replace(start, end + 1, value);
-                    final int variableLength = (end - start + 2);
-                    end = end + (value.length() - variableLength);
-                }
-            }
-            line = buffer.toString();
-        }
-        return line;
-    }
-
 	protected List<String> getVariableNames(String line){
-    	Matcher m = Pattern.compile("<([\\w]+?)>").matcher(line);
+    	Matcher m = VARIABLE_NAME_PATTERN.matcher(line);
         List<String> variableNames = new ArrayList<String>();
 
     	int n = 0; 
@@ -369,22 +558,24 @@ public class ProtocolSessionBuilder {
     }
     
     /**
-     * Gets the number of seconds the system should sleep and converts to millis.
+     * Gets the time the system should sleep in millis.
+     * The time is in seconds unless suffixed with <code>ms</code>
+     * for milliseconds or <code>s</code> for seconds,
+     * so <code>SLEEP: 2</code>, <code>SLEEP: 2s</code>,
+     * <code>SLEEP: 0.5s</code> and <code>SLEEP: 500ms</code> are all valid.
+     * Random think times are written as distributions,
+     * see {@link ThinkTime#parse(String)}.
      * 
      * @param line
-     * @return
+     * @return milliseconds, zero when the time is not valid
      */
     protected long getSleepTime(String line){
     	int colonPos = line.indexOf(':');
-    	String strVal = line.substring(colonPos + 1).trim();
-    	long seconds = 0;
     	try {
-			seconds = Integer.parseInt(strVal);
-		} catch (NumberFormatException e) {
+    		return ThinkTime.parseMillis(line.substring(colonPos + 1));
+		} catch (IllegalArgumentException e) {
 			return 0;
 		}
-    	
-    	return seconds * 1000;
     }
     
     protected String getAlias(String line){
@@ -401,44 +592,43 @@ public class ProtocolSessionBuilder {
     }
     
     
-    protected byte[] getBytesFromFile(String filename) throws IOException {
-    	File file = new File(filename);
-        InputStream is = new FileInputStream(file);
-
-        // Get the size of the file
-        long length = file.length();
-
-        // You cannot create an array using a long type.
-        // It needs to be an int type.
-        // Before converting to an int type, check
-        // to ensure that file is not larger than Integer.MAX_VALUE.
-        if (length > Integer.MAX_VALUE) {
-            // File is too large
-        	is.close();
-        	throw new IOException("File size is too big: " + length);
-        }
-
-        // Create the byte array to hold the data
-        byte[] bytes = new byte[(int)length];
-
-        // Read in the bytes
-        int offset = 0;
-        int numRead = 0;
-        while (offset < bytes.length
-               && (numRead=is.read(bytes, offset, bytes.length-offset)) >= 0) {
-            offset += numRead;
-        }
+    /**
+     * Replaces ${<code>NAME</code>} with the value of a builder variable.
+     * @param line not null
+     * @return not null
+     * @deprecated scripts substitute variables when they run,
+     * so this method is no longer called while a script is parsed
+     */
+    protected String substituteVariables(String line) {
+        return ExecutionContext.substituteVariables(line, variables);
+    }
 
-        // Ensure all the bytes have been read in
-        if (offset < bytes.length) {
-        	is.close();
-            throw new IOException("Could not completely read file "+file.getName());
-        }
+    /**
+     * Reads a file fully.
+     * @param filename not null
+     * @return the content of the file
+     * @throws IOException when the file cannot be read
+     * @deprecated attachments are read when they are sent,
+     * so this method is no longer called while a script is parsed
+     */
+    protected byte[] getBytesFromFile(String filename) throws IOException {
+        return new Attachment(new File(filename)).getData();
+    }
 
-        // Close the input stream and return bytes
-        is.close();
-        return bytes;
-    }    
+    /**
+     * Creates an attachment for the file without reading it.
+     * 
+     * @param filename not null
+     * @return file backed attachment
+     * @throws FileNotFoundException when the file does not exist
+     */
+    protected Attachment getAttachment(String filename) throws IOException {
+    	File file = new File(filename);
+    	if (!file.isFile()) {
+    		throw new FileNotFoundException(filename);
+    	}
+    	return new Attachment(file);
+    }
     
 
 }
@@ -19,17 +19,45 @@
 
 package org.apache.james.mpt;
 
+import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Runs protocol scripts.
  */
 public class Runner {
     
+    /** Keeps sessions connected between scripts, null to stop them */
+    private SessionPool sessionPool;
+    
     public Runner(){
 
     }
     
+    /**
+     * Gets the pool keeping sessions connected between scripts.
+     * @return null when sessions are stopped after each script
+     */
+    public SessionPool getSessionPool() {
+        return sessionPool;
+    }
+    
+    /**
+     * Sets the pool keeping sessions connected between scripts.
+     * @param sessionPool null to stop sessions after each script
+     */
+    public void setSessionPool(SessionPool sessionPool) {
+        this.sessionPool = sessionPool;
+    }
+    
     /**
      * <p>Runs the pre,test and post protocol sessions against a local copy of the
      * server. This does not require that James be running, and is useful
@@ -38,25 +66,102 @@ public class Runner {
      * Instead of sending requests to a socket connected to a running instance
      * of James, this method uses the {@link HostSystem} to simplify
      * testing. One mock instance is required per protocol session/connection.
+     * </p><p>
+     * External sessions the script switches to connect at the same time,
+     * before the script runs, so each connect time is measured from its
+     * start until the server accepted it. Other sessions
+     * are started when the script first switches to them. Sessions the
+     * script never switches to are not started. With a session pool,
+     * connections kept from an earlier script are used when they still can be,
+     * and are in the state the script expects.
      */
     public void runSessions(ProtocolInteractor testScript) throws Exception {
     	
-    	// start all the sessions
-    	for (Iterator<Session> iterator = testScript.getSessions().values().iterator(); iterator.hasNext();) {
-			Session session = (Session) iterator.next();
-			session.start();
-		}
-    	
+        boolean passed = false;
         try {
+            if (sessionPool != null) {
+                for (Iterator<Map.Entry<String, Session>> iterator = testScript.getSessions().entrySet().iterator(); iterator.hasNext();) {
+                    final Map.Entry<String, Session> entry = iterator.next();
+                    final String firstCommand;
+                    if (testScript instanceof ProtocolSession) {
+                        firstCommand = ((ProtocolSession) testScript).getFirstCommand(entry.getKey());
+                    } else {
+                        firstCommand = null;
+                    }
+                    sessionPool.acquire(entry.getValue(), firstCommand);
+                }
+            }
+            final Set<String> aliases = testScript.getReferencedAliases();
+            if (aliases != null) {
+                final List<ExternalSession> connecting = new ArrayList<ExternalSession>();
+                for (Iterator<String> iterator = aliases.iterator(); iterator.hasNext();) {
+                    final Session session = testScript.getSessions().get(iterator.next());
+                    if (session instanceof ExternalSession) {
+                        ((ExternalSession) session).beginConnect();
+                        connecting.add((ExternalSession) session);
+                    }
+                }
+                // connect times do not include the script before a session is used
+                ExternalSession.finishConnects(connecting);
+            }
+            
         	testScript.execute();
+        	passed = true;
         } finally {
         	// stop all the sessions
         	for (Iterator<Session> iterator = testScript.getSessions().values().iterator(); iterator.hasNext();) {
     			Session session = (Session) iterator.next();
-    			session.stop();
+    			if (sessionPool == null) {
+    			    session.stop();
+    			} else {
+    			    sessionPool.release(session, passed);
+    			}
     		}
         }
     }
     
+    /**
+     * <p>Creates an executor which starts a new thread for every script.</p>
+     * <p>
+     * When virtual threads are requested and the JVM supports them,
+     * every script runs on its own virtual thread so thousands of
+     * scripts using blocking sessions can run at once.
+     * Otherwise daemon platform threads are used.
+     * </p>
+     * 
+     * @param virtualThreads true to use virtual threads when available
+     * @return not null
+     */
+    public static ExecutorService newThreadPerScriptExecutor(boolean virtualThreads) {
+        if (virtualThreads) {
+            try {
+                final Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (Exception e) {
+                // virtual threads are not supported by this JVM
+            }
+        }
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "mpt-script-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
     
+    /**
+     * Does this JVM support virtual threads?
+     * 
+     * @return true when virtual threads are available
+     */
+    public static boolean isVirtualThreadSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
 }
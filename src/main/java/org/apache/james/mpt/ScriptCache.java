@@ -0,0 +1,156 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Thread safe cache of compiled scripts, with least recently used eviction.</p>
+ * <p>
+ * Scripts are cached by name together with a version, either the
+ * modification time of the script or a hash of its content.
+ * A script is parsed again when its version changes.
+ * </p>
+ */
+public final class ScriptCache {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Map<String, CachedScript> scripts;
+
+    private final int maxSize;
+
+    /**
+     * @param maxSize number of scripts kept, zero disables caching
+     */
+    public ScriptCache(int maxSize) {
+        this.maxSize = maxSize;
+        scripts = new LinkedHashMap<String, CachedScript>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, CachedScript> eldest) {
+                return size() > ScriptCache.this.maxSize;
+            }
+        };
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Gets a cached script.
+     *
+     * @param name script name, not null
+     * @param version version of the script, not null
+     * @return the script, or null when no script with this version is cached
+     */
+    public synchronized ProtocolScript get(String name, String version) {
+        final CachedScript entry = scripts.get(name);
+        if (entry == null || !entry.version.equals(version)) {
+            return null;
+        }
+        return entry.script;
+    }
+
+    /**
+     * Caches a script, replacing other versions.
+     *
+     * @param name script name, not null
+     * @param version version of the script, not null
+     * @param script not null
+     */
+    public synchronized void put(String name, String version, ProtocolScript script) {
+        if (maxSize > 0) {
+            scripts.put(name, new CachedScript(version, script));
+        }
+    }
+
+    public synchronized int size() {
+        return scripts.size();
+    }
+
+    public synchronized void clear() {
+        scripts.clear();
+    }
+
+    /**
+     * Gets the version of a script modified at the given time.
+     * @param lastModified milliseconds since the epoch, positive
+     * @return not null
+     */
+    public static String version(long lastModified) {
+        return "modified:" + lastModified;
+    }
+
+    /**
+     * Gets the version of a script with the given content.
+     * @param content not null
+     * @return MD5 hash of the content, not null
+     */
+    public static String version(byte[] content) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("MD5").digest(content);
+            final char[] hex = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; i++) {
+                hex[i * 2] = HEX[(digest[i] >> 4) & 0xF];
+                hex[i * 2 + 1] = HEX[digest[i] & 0xF];
+            }
+            return "md5:" + new String(hex);
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM provides MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class CachedScript {
+
+        private final String version;
+
+        private final ProtocolScript script;
+
+        public CachedScript(String version, ProtocolScript script) {
+            this.version = version;
+            this.script = script;
+        }
+    }
+
+    /**
+     * Constructs a <code>String</code> with all attributes
+     * in name = value format.
+     *
+     * @return a <code>String</code> representation
+     * of this object.
+     */
+    public synchronized String toString()
+    {
+        final String TAB = " ";
+
+        String result  = "ScriptCache ( "
+            + "size = " + this.scripts.size() + TAB
+            + "maxSize = " + this.maxSize + TAB
+            + " )";
+
+        return result;
+    }
+}
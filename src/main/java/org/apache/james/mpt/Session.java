@@ -34,6 +34,15 @@ public interface Session {
      */
     public String readLine() throws Exception;
 
+    /**
+     * Reads a line from the session input without copying it,
+     * blocking until a new line is available.
+     * The sequence returned is only valid until the next read.
+     * @return not null
+     * @throws Exception
+     */
+    public CharSequence readLineSequence() throws Exception;
+
     /**
      * Writes a line to the session output.
      * @param line not null
@@ -56,4 +65,10 @@ public interface Session {
     public void stop() throws Exception;
     
     public void writeData(Attachment attachment)  throws IOException;
+
+    /**
+     * Gets the recent lines sent and received.
+     * @return null when lines are not captured
+     */
+    public WireCapture getWireCapture();
 }
\ No newline at end of file
@@ -0,0 +1,248 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * <p>Keeps sessions connected between scripts.</p>
+ * <p>
+ * When a script passes, the {@link Runner} hands its connected sessions
+ * to the pool rather than stopping them. The reset commands are sent,
+ * each tagged, and the connection is kept when the server completes
+ * them all with <code>OK</code>. Before the next script runs on the
+ * session, the connection is checked: the server must not have closed
+ * it nor sent anything since. The script then reads the greeting the
+ * server sent when the connection was made, so scripts need not know
+ * whether their connection is new.
+ * </p><p>
+ * Every command a script sends reaches the server. A kept connection
+ * is in the state the reset commands leave it in: logged in, unless
+ * the last of them to change the state is <code>UNAUTHENTICATE</code>.
+ * Logging in again, say by <code>UNAUTHENTICATE;LOGIN user secret</code>,
+ * makes sure kept connections are logged in as a known user.
+ * A script declares the state it expects by its first command on the
+ * session. A script which starts by logging in, when kept connections
+ * are logged in, is given a new connection, as is a script whose first
+ * command is not known before it runs. A script ending with a logout
+ * leaves a connection the server has closed, which is not kept.
+ * </p><p>
+ * The reset commands must complete within the timeout of the session,
+ * or within {@link #DEFAULT_RESET_TIMEOUT} when the session waits
+ * forever; otherwise the connection is closed.
+ * </p><p>
+ * Only connections of {@link ExternalSession}s are kept. Every other
+ * session, and every session of a failed script, is stopped.
+ * Safe for use by several runners at once.
+ * </p>
+ */
+public class SessionPool {
+
+    private static final String RESET_TAG = "reset";
+
+    /** Milliseconds to reset a session which waits forever for responses */
+    public static final long DEFAULT_RESET_TIMEOUT = 10000;
+
+    private final List<String> resetCommands;
+
+    private final Monitor monitor;
+
+    /** Are kept connections logged in? */
+    private final boolean authenticated;
+
+    private final Set<Session> kept = Collections.newSetFromMap(new IdentityHashMap<Session, Boolean>());
+
+    /**
+     * @param resetCommands commands sent, without tags, when a script
+     * has passed, not null
+     * @param monitor not null
+     */
+    public SessionPool(List<String> resetCommands, Monitor monitor) {
+        this.resetCommands = new ArrayList<String>(resetCommands);
+        this.monitor = monitor;
+        boolean authenticated = true;
+        for (Iterator<String> iterator = resetCommands.iterator(); iterator.hasNext();) {
+            final String command = iterator.next();
+            if (isCommand(command, "UNAUTHENTICATE")) {
+                authenticated = false;
+            } else if (isCommand(command, "LOGIN") || isCommand(command, "AUTHENTICATE")) {
+                authenticated = true;
+            }
+        }
+        this.authenticated = authenticated;
+    }
+
+    /**
+     * Are kept connections logged in?
+     * @return true unless the reset commands leave connections unauthenticated
+     */
+    public boolean isAuthenticated() {
+        return authenticated;
+    }
+
+    private static boolean isCommand(String command, String name) {
+        final String upper = command.trim().toUpperCase(Locale.US);
+        return upper.equals(name) || upper.startsWith(name + " ");
+    }
+
+    /**
+     * Does the script expect a connection in the state kept connections are in?
+     * @param firstCommand tagged, null when not known
+     */
+    private boolean suits(String firstCommand) {
+        if (firstCommand == null) {
+            return false;
+        }
+        final int tagEnd = firstCommand.indexOf(' ');
+        final String command = tagEnd < 0 ? firstCommand : firstCommand.substring(tagEnd + 1);
+        final boolean logsIn = isCommand(command, "LOGIN") || isCommand(command, "AUTHENTICATE");
+        return !(authenticated && logsIn);
+    }
+
+    /**
+     * Prepares a session to run a script.
+     * A kept connection found unusable, or in a state the script does
+     * not expect, is closed.
+     *
+     * @param session not null
+     * @param firstCommand first command the script sends on the session,
+     * null when not known
+     * @return true when a kept connection is ready for the script,
+     * false when the session must connect
+     * @throws Exception
+     */
+    public boolean acquire(Session session, String firstCommand) throws Exception {
+        synchronized (kept) {
+            if (!kept.remove(session)) {
+                return false;
+            }
+        }
+        final ExternalSession external = (ExternalSession) session;
+        if (!suits(firstCommand)) {
+            monitor.note("Script expects a new connection");
+            external.stop();
+            return false;
+        }
+        if (!external.isReusable()) {
+            monitor.note("Kept connection is no longer usable");
+            external.stop();
+            return false;
+        }
+        external.reuse();
+        return true;
+    }
+
+    /**
+     * Takes back a session once a script has run.
+     *
+     * @param session not null
+     * @param passed true when the script passed
+     * @throws Exception
+     */
+    public void release(Session session, boolean passed) throws Exception {
+        if (passed && session instanceof ExternalSession && ((ExternalSession) session).isReusable()
+                && reset((ExternalSession) session)) {
+            synchronized (kept) {
+                kept.add(session);
+            }
+        } else {
+            session.stop();
+        }
+    }
+
+    private boolean reset(ExternalSession session) {
+        final long timeout = session.getTimeout();
+        final long deadline = System.currentTimeMillis() + (timeout > 0 ? timeout : DEFAULT_RESET_TIMEOUT);
+        try {
+            for (int i = 0; i < resetCommands.size(); i++) {
+                final String tag = RESET_TAG + (i + 1);
+                session.writeLine(tag + " " + resetCommands.get(i));
+                String line;
+                do {
+                    final long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new SocketTimeoutException("No response to " + tag);
+                    }
+                    session.setTimeout(remaining);
+                    line = session.readLine();
+                } while (!line.startsWith(tag + " "));
+                if (!line.startsWith(tag + " OK")) {
+                    monitor.note("Reset failed: " + line);
+                    return false;
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            monitor.note("Reset failed: " + e.getMessage());
+            return false;
+        } finally {
+            session.setTimeout(timeout);
+        }
+    }
+
+    /**
+     * Stops every session kept.
+     */
+    public void close() {
+        final List<Session> sessions;
+        synchronized (kept) {
+            sessions = new ArrayList<Session>(kept);
+            kept.clear();
+        }
+        for (Iterator<Session> iterator = sessions.iterator(); iterator.hasNext();) {
+            try {
+                iterator.next().stop();
+            } catch (Exception e) {
+                monitor.debug("Cannot close session: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Constructs a <code>String</code> with all attributes
+     * in name = value format.
+     *
+     * @return a <code>String</code> representation
+     * of this object.
+     */
+    public String toString()
+    {
+        final String TAB = " ";
+
+        final int size;
+        synchronized (kept) {
+            size = kept.size();
+        }
+        String result  = "SessionPool ( "
+            + "resetCommands = " + this.resetCommands + TAB
+            + "authenticated = " + this.authenticated + TAB
+            + "kept = " + size + TAB
+            + " )";
+
+        return result;
+    }
+}
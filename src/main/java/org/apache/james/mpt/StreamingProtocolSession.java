@@ -0,0 +1,243 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * <p>A protocol session which runs elements as the script is parsed.</p>
+ * <p>
+ * The script is parsed on its own thread, which hands elements to the
+ * running session through a bounded queue. Elements are discarded once
+ * run, so memory use does not grow with the length of the script and
+ * the first command is sent as soon as it has been parsed.
+ * An error in the script fails the run when the run reaches it.
+ * A streaming session can only be run once.
+ * </p>
+ */
+public class StreamingProtocolSession extends ProtocolSession {
+
+    /** Default number of elements parsed ahead of the running element */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /** Marks the end of the script in the queue */
+    private static final Object END = new Object();
+
+    /**
+     * Parses the script.
+     */
+    public interface Parser {
+
+        /**
+         * Adds every element of the script to the session.
+         *
+         * @param session not null
+         * @throws Exception when the script cannot be read or parsed
+         */
+        public void parse(ProtocolInteractor session) throws Exception;
+    }
+
+    private final String scriptName;
+
+    private final Parser parser;
+
+    /** Parsed <code>ProtocolElement</code>s, then <code>END</code> or the parse failure */
+    private final BlockingQueue<Object> queue;
+
+    private Thread parserThread;
+
+    /**
+     * @param scriptName names the parser thread, not null
+     * @param parser parses the script when the session is run, not null
+     * @param capacity number of elements parsed ahead, at least one
+     * @param sessionMap not null
+     * @param variables not null
+     */
+    public StreamingProtocolSession(String scriptName, Parser parser, int capacity, Map<String, Session> sessionMap, Properties variables) {
+        super(sessionMap, variables);
+        this.scriptName = scriptName;
+        this.parser = parser;
+        this.queue = new ArrayBlockingQueue<Object>(capacity);
+    }
+
+    void addElement(ProtocolElement element) {
+        put(element);
+    }
+
+    private void put(Object next) {
+        try {
+            queue.put(next);
+        } catch (InterruptedException e) {
+            // the run has finished, stop parsing
+            throw new StreamClosedException();
+        }
+    }
+
+    Iterator<ProtocolElement> elements() {
+        return new QueueIterator();
+    }
+
+    /**
+     * The script is parsed as it runs, so sessions are
+     * connected when the script first switches to them.
+     * @return null
+     */
+    public Set<String> getReferencedAliases() {
+        return null;
+    }
+
+    /**
+     * Parses and runs the script.
+     */
+    public void execute() throws Exception {
+        synchronized (this) {
+            if (parserThread != null) {
+                throw new IllegalStateException("A streaming script can only be run once");
+            }
+            parserThread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        parser.parse(StreamingProtocolSession.this);
+                        put(END);
+                    } catch (StreamClosedException e) {
+                        // run finished before the script was parsed
+                    } catch (Exception e) {
+                        try {
+                            put(e);
+                        } catch (StreamClosedException closed) {
+                            // run finished before the failure was seen
+                        }
+                    }
+                }
+            }, "mpt-parser-" + scriptName);
+            parserThread.setDaemon(true);
+        }
+        parserThread.start();
+        try {
+            super.execute();
+        } catch (ParseFailure e) {
+            throw (Exception) e.getCause();
+        } finally {
+            parserThread.interrupt();
+            queue.clear();
+        }
+    }
+
+    /**
+     * Streamed elements cannot be run by the {@link MultiplexedRunner}
+     * since waiting for the parser would block the selector thread.
+     * @throws IllegalStateException always
+     */
+    boolean resume() throws Exception {
+        throw new IllegalStateException("Streaming scripts cannot be multiplexed");
+    }
+
+    /**
+     * Streamed elements are not kept, so cannot be compiled.
+     * @throws IllegalStateException always
+     */
+    public ProtocolScript compile() {
+        throw new IllegalStateException("Streaming scripts cannot be compiled");
+    }
+
+    /**
+     * Takes elements from the queue, waiting for the parser.
+     */
+    private final class QueueIterator implements Iterator<ProtocolElement> {
+
+        private Object next;
+
+        public boolean hasNext() {
+            if (next == null) {
+                try {
+                    next = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted waiting for script " + scriptName, e);
+                }
+                if (next instanceof Exception) {
+                    final Exception failure = (Exception) next;
+                    next = END;
+                    throw new ParseFailure(failure);
+                }
+            }
+            return next != END;
+        }
+
+        public ProtocolElement next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final ProtocolElement result = (ProtocolElement) next;
+            next = null;
+            return result;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Carries a parse failure through the element iterator.
+     */
+    private static final class ParseFailure extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        public ParseFailure(Exception cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * Stops the parser when the run has finished.
+     */
+    private static final class StreamClosedException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Constructs a <code>String</code> with all attributes
+     * in name = value format.
+     *
+     * @return a <code>String</code> representation
+     * of this object.
+     */
+    public String toString()
+    {
+        final String TAB = " ";
+
+        String result  = "StreamingProtocolSession ( "
+            + "scriptName = " + this.scriptName + TAB
+            + "queued = " + this.queue.size() + TAB
+            + "sessions = " + getSessions().keySet() + TAB
+            + " )";
+
+        return result;
+    }
+}
@@ -0,0 +1,274 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * <p>A random pause between commands, modelling a user thinking.</p>
+ * <p>
+ * Think times are written as a distribution with duration parameters,
+ * for example <code>uniform(100ms, 2s)</code>, <code>exponential(500ms)</code>,
+ * <code>normal(1s, 200ms)</code> or <code>lognormal(1s, 0.5)</code>.
+ * Durations are in seconds unless suffixed with <code>ms</code> or <code>s</code>.
+ * Think times are immutable; the random numbers come from the caller
+ * so a seeded generator reproduces the same pauses.
+ * </p>
+ */
+public abstract class ThinkTime {
+
+    /**
+     * Gets the next pause.
+     * @param random not null
+     * @return milliseconds, not negative
+     */
+    public abstract long nextMillis(Random random);
+
+    /**
+     * A fixed pause.
+     * @param millis milliseconds, not negative
+     * @return not null
+     */
+    public static ThinkTime constant(long millis) {
+        return new Constant(millis);
+    }
+
+    /**
+     * Pauses uniformly distributed between two durations.
+     * @param min shortest pause in milliseconds, not negative
+     * @param max longest pause in milliseconds, at least the minimum
+     * @return not null
+     */
+    public static ThinkTime uniform(long min, long max) {
+        if (min < 0 || max < min) {
+            throw new IllegalArgumentException("Invalid uniform range " + min + "ms to " + max + "ms");
+        }
+        return new Uniform(min, max);
+    }
+
+    /**
+     * Exponentially distributed pauses, as between events arriving at random.
+     * @param mean mean pause in milliseconds, not negative
+     * @return not null
+     */
+    public static ThinkTime exponential(long mean) {
+        if (mean < 0) {
+            throw new IllegalArgumentException("Invalid mean " + mean + "ms");
+        }
+        return new Exponential(mean);
+    }
+
+    /**
+     * Normally distributed pauses. Negative samples are taken as zero.
+     * @param mean mean pause in milliseconds, not negative
+     * @param standardDeviation in milliseconds, not negative
+     * @return not null
+     */
+    public static ThinkTime normal(long mean, long standardDeviation) {
+        if (mean < 0 || standardDeviation < 0) {
+            throw new IllegalArgumentException("Invalid normal distribution " + mean + "ms, " + standardDeviation + "ms");
+        }
+        return new Normal(mean, standardDeviation);
+    }
+
+    /**
+     * Log-normally distributed pauses, with the long tail of real users.
+     * @param median median pause in milliseconds, not negative
+     * @param sigma standard deviation of the logarithm of the pause, not negative
+     * @return not null
+     */
+    public static ThinkTime logNormal(long median, double sigma) {
+        if (median < 0 || sigma < 0 || Double.isNaN(sigma)) {
+            throw new IllegalArgumentException("Invalid log-normal distribution " + median + "ms, " + sigma);
+        }
+        return new LogNormal(median, sigma);
+    }
+
+    /**
+     * Parses a think time.
+     * @param value a distribution, such as <code>uniform(100ms, 2s)</code>,
+     * or a duration, not null
+     * @return not null
+     * @throws IllegalArgumentException when the value is not valid
+     */
+    public static ThinkTime parse(String value) {
+        final String trimmed = value.trim();
+        final int open = trimmed.indexOf('(');
+        if (open < 0) {
+            return constant(parseMillis(trimmed));
+        }
+        if (!trimmed.endsWith(")")) {
+            throw new IllegalArgumentException("Missing ')' in " + value);
+        }
+        final String name = trimmed.substring(0, open).trim().toLowerCase(Locale.US);
+        final String[] parameters = trimmed.substring(open + 1, trimmed.length() - 1).split(",");
+        if ("uniform".equals(name)) {
+            checkParameters(value, parameters, 2);
+            return uniform(parseMillis(parameters[0]), parseMillis(parameters[1]));
+        } else if ("exponential".equals(name)) {
+            checkParameters(value, parameters, 1);
+            return exponential(parseMillis(parameters[0]));
+        } else if ("normal".equals(name)) {
+            checkParameters(value, parameters, 2);
+            return normal(parseMillis(parameters[0]), parseMillis(parameters[1]));
+        } else if ("lognormal".equals(name)) {
+            checkParameters(value, parameters, 2);
+            try {
+                return logNormal(parseMillis(parameters[0]), Double.parseDouble(parameters[1].trim()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid sigma in " + value);
+            }
+        }
+        throw new IllegalArgumentException("Unknown distribution " + name);
+    }
+
+    private static void checkParameters(String value, String[] parameters, int expected) {
+        if (parameters.length != expected) {
+            throw new IllegalArgumentException("Expected " + expected + " parameters in " + value);
+        }
+    }
+
+    /**
+     * Parses a duration, in seconds unless suffixed with
+     * <code>ms</code> for milliseconds or <code>s</code> for seconds.
+     * @param value such as <code>2</code>, <code>0.5s</code> or <code>500ms</code>, not null
+     * @return milliseconds
+     * @throws IllegalArgumentException when the value is not a valid duration
+     */
+    public static long parseMillis(String value) {
+        String duration = value.trim();
+        try {
+            final long millis;
+            if (duration.endsWith("ms")) {
+                millis = Long.parseLong(duration.substring(0, duration.length() - 2).trim());
+            } else {
+                if (duration.endsWith("s")) {
+                    duration = duration.substring(0, duration.length() - 1).trim();
+                }
+                final double seconds = Double.parseDouble(duration);
+                if (Double.isNaN(seconds) || Double.isInfinite(seconds)) {
+                    throw new NumberFormatException();
+                }
+                millis = Math.round(seconds * 1000);
+            }
+            if (millis < 0) {
+                throw new IllegalArgumentException("Negative duration " + value);
+            }
+            return millis;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid duration " + value);
+        }
+    }
+
+    private static final class Constant extends ThinkTime {
+
+        private final long millis;
+
+        public Constant(long millis) {
+            this.millis = millis;
+        }
+
+        public long nextMillis(Random random) {
+            return millis;
+        }
+
+        public String toString() {
+            return millis + "ms";
+        }
+    }
+
+    private static final class Uniform extends ThinkTime {
+
+        private final long min;
+
+        private final long max;
+
+        public Uniform(long min, long max) {
+            this.min = min;
+            this.max = max;
+        }
+
+        public long nextMillis(Random random) {
+            return min + Math.round(random.nextDouble() * (max - min));
+        }
+
+        public String toString() {
+            return "uniform(" + min + "ms, " + max + "ms)";
+        }
+    }
+
+    private static final class Exponential extends ThinkTime {
+
+        private final long mean;
+
+        public Exponential(long mean) {
+            this.mean = mean;
+        }
+
+        public long nextMillis(Random random) {
+            return Math.round(-mean * Math.log(1 - random.nextDouble()));
+        }
+
+        public String toString() {
+            return "exponential(" + mean + "ms)";
+        }
+    }
+
+    private static final class Normal extends ThinkTime {
+
+        private final long mean;
+
+        private final long standardDeviation;
+
+        public Normal(long mean, long standardDeviation) {
+            this.mean = mean;
+            this.standardDeviation = standardDeviation;
+        }
+
+        public long nextMillis(Random random) {
+            return Math.max(0, Math.round(mean + random.nextGaussian() * standardDeviation));
+        }
+
+        public String toString() {
+            return "normal(" + mean + "ms, " + standardDeviation + "ms)";
+        }
+    }
+
+    private static final class LogNormal extends ThinkTime {
+
+        private final long median;
+
+        private final double sigma;
+
+        public LogNormal(long median, double sigma) {
+            this.median = median;
+            this.sigma = sigma;
+        }
+
+        public long nextMillis(Random random) {
+            return Math.round(median * Math.exp(random.nextGaussian() * sigma));
+        }
+
+        public String toString() {
+            return "lognormal(" + median + "ms, " + sigma + ")";
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * <p>Keeps the most recent lines sent and received by a session.</p>
+ * <p>
+ * Lines are copied into a fixed ring of characters, overwriting the
+ * oldest, so capturing costs a copy and no allocation. The capture is
+ * only read when a run fails, to show what led up to the failure.
+ * Lines are shown as in scripts, prefixed by <code>C: </code> when
+ * sent and <code>S: </code> when received.
+ * A capture belongs to a single session and is not thread safe.
+ * </p>
+ */
+public final class WireCapture {
+
+    /** One more character than kept, so a wrap on a line end can be told */
+    private final char[] ring;
+
+    private final int capacity;
+
+    /** Characters written since the capture was cleared */
+    private long written = 0;
+
+    /**
+     * @param capacity number of characters kept, positive
+     */
+    public WireCapture(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+        ring = new char[capacity + 1];
+    }
+
+    /**
+     * Captures a line sent to the server.
+     * @param line not null
+     */
+    public void sent(CharSequence line) {
+        append("C: ");
+        append(line);
+        append('\n');
+    }
+
+    /**
+     * Captures a line received from the server.
+     * @param line not null
+     */
+    public void received(CharSequence line) {
+        append("S: ");
+        append(line);
+        append('\n');
+    }
+
+    private void append(CharSequence characters) {
+        for (int i = 0; i < characters.length(); i++) {
+            append(characters.charAt(i));
+        }
+    }
+
+    private void append(char character) {
+        ring[(int) (written % ring.length)] = character;
+        written++;
+    }
+
+    /**
+     * Forgets everything captured.
+     */
+    public void clear() {
+        written = 0;
+    }
+
+    public boolean isEmpty() {
+        return written == 0;
+    }
+
+    /**
+     * Gets the lines captured, oldest first.
+     * A line partly overwritten is left out.
+     * @return not null
+     */
+    public String dump() {
+        final StringBuilder result = new StringBuilder();
+        if (written > capacity) {
+            final int start = (int) ((written - capacity) % ring.length);
+            final int end = (int) (written % ring.length);
+            if (start < end) {
+                result.append(ring, start, end - start);
+            } else {
+                result.append(ring, start, ring.length - start);
+                result.append(ring, 0, end);
+            }
+            if (ring[(start + ring.length - 1) % ring.length] == '\n') {
+                // the oldest line kept is whole
+                result.insert(0, "...\n");
+            } else {
+                final int firstLineEnd = result.indexOf("\n");
+                result.replace(0, firstLineEnd + 1, "...\n");
+            }
+        } else {
+            result.append(ring, 0, (int) written);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Gets the lines captured by each session which captures them.
+     * @param sessions sessions by alias, not null
+     * @return lines captured by alias, empty when nothing is captured
+     */
+    public static String dump(Map<String, Session> sessions) {
+        final StringBuilder result = new StringBuilder();
+        for (Iterator<Map.Entry<String, Session>> iterator = sessions.entrySet().iterator(); iterator.hasNext();) {
+            final Map.Entry<String, Session> entry = iterator.next();
+            final WireCapture capture = entry.getValue().getWireCapture();
+            if (capture != null && !capture.isEmpty()) {
+                result.append("\nLast lines of session ").append(entry.getKey()).append(":\n");
+                result.append(capture.dump());
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Constructs a <code>String</code> with all attributes
+     * in name = value format.
+     *
+     * @return a <code>String</code> representation
+     * of this object.
+     */
+    public String toString()
+    {
+        final String TAB = " ";
+
+        String result  = "WireCapture ( "
+            + "capacity = " + this.capacity + TAB
+            + "written = " + this.written + TAB
+            + " )";
+
+        return result;
+    }
+}
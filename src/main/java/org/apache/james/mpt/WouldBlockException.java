@@ -0,0 +1,41 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+/**
+ * Thrown by a non-blocking session when an element needs input
+ * which has not arrived yet. The element is run again from the start
+ * once more input is available, so this is a signal rather than an error
+ * and carries no stack trace.
+ */
+final class WouldBlockException extends RuntimeException {
+
+    private static final long serialVersionUID = -3150146578934713722L;
+
+    static final WouldBlockException INSTANCE = new WouldBlockException();
+
+    private WouldBlockException() {
+        super("Waiting for input");
+    }
+
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
@@ -0,0 +1,194 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.antlib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.tools.ant.types.Resource;
+
+/**
+ * <p>How long each script took to run, kept between builds.</p>
+ * <p>
+ * Durations are kept in milliseconds by script name, in a properties
+ * file. They are used to start the longest scripts first, so a long
+ * script started last does not hold up the build. A script not yet
+ * run is expected to take as long as the average known script.
+ * </p>
+ */
+final class DurationHistory {
+
+    private final Map<String, Long> durations = new TreeMap<String, Long>();
+
+    /**
+     * Reads the durations from a file.
+     * @param file not null
+     * @return durations read, empty when the file does not exist
+     * @throws IOException
+     */
+    public static DurationHistory load(File file) throws IOException {
+        final DurationHistory result = new DurationHistory();
+        if (file.exists()) {
+            final Properties properties = new Properties();
+            final InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+            for (Iterator<String> iterator = properties.stringPropertyNames().iterator(); iterator.hasNext();) {
+                final String name = iterator.next();
+                try {
+                    result.durations.put(name, Long.valueOf(properties.getProperty(name)));
+                } catch (NumberFormatException e) {
+                    // not a duration, ignore
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes the durations to a file.
+     * @param file not null
+     * @throws IOException
+     */
+    public synchronized void store(File file) throws IOException {
+        final Properties properties = new Properties();
+        for (Iterator<Map.Entry<String, Long>> iterator = durations.entrySet().iterator(); iterator.hasNext();) {
+            final Map.Entry<String, Long> entry = iterator.next();
+            properties.setProperty(entry.getKey(), entry.getValue().toString());
+        }
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            properties.store(out, "Script durations in milliseconds");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Records how long a script took.
+     * The earlier duration is averaged in, so one slow run does not
+     * upset the order.
+     * @param name script name, not null
+     * @param millis duration in milliseconds
+     */
+    public synchronized void record(String name, long millis) {
+        final Long last = durations.get(name);
+        durations.put(name, last == null ? millis : (last.longValue() + millis) / 2);
+    }
+
+    /**
+     * Gets how long a script is expected to take.
+     * @param name script name, not null
+     * @return milliseconds, positive
+     */
+    public synchronized long estimate(String name) {
+        final Long duration = durations.get(name);
+        if (duration != null) {
+            return Math.max(1, duration.longValue());
+        }
+        if (durations.isEmpty()) {
+            return 1;
+        }
+        long total = 0;
+        for (Iterator<Long> iterator = durations.values().iterator(); iterator.hasNext();) {
+            total += iterator.next().longValue();
+        }
+        return Math.max(1, total / durations.size());
+    }
+
+    /**
+     * Orders scripts longest first.
+     * Scripts expected to take as long keep their order.
+     * @param resources not null
+     * @return a new list, not null
+     */
+    public List<Resource> longestFirst(List<Resource> resources) {
+        final List<Resource> result = new ArrayList<Resource>(resources);
+        Collections.sort(result, new Comparator<Resource>() {
+            public int compare(Resource first, Resource second) {
+                final long firstEstimate = estimate(first.getName());
+                final long secondEstimate = estimate(second.getName());
+                return firstEstimate > secondEstimate ? -1 : firstEstimate < secondEstimate ? 1 : 0;
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Shares scripts between workers so they finish at about the same
+     * time. Scripts are taken longest first and each is given to the
+     * worker expected to finish first.
+     * @param resources not null
+     * @param workers number of workers, positive
+     * @return scripts of each worker, in the order to run them
+     */
+    public List<List<Resource>> share(List<Resource> resources, int workers) {
+        final List<List<Resource>> result = new ArrayList<List<Resource>>(workers);
+        final long[] loads = new long[workers];
+        for (int i = 0; i < workers; i++) {
+            result.add(new ArrayList<Resource>());
+        }
+        for (Iterator<Resource> iterator = longestFirst(resources).iterator(); iterator.hasNext();) {
+            final Resource resource = iterator.next();
+            int least = 0;
+            for (int i = 1; i < workers; i++) {
+                if (loads[i] < loads[least]) {
+                    least = i;
+                }
+            }
+            result.get(least).add(resource);
+            loads[least] += estimate(resource.getName());
+        }
+        return result;
+    }
+
+    /**
+     * Constructs a <code>String</code> with all attributes
+     * in name = value format.
+     *
+     * @return a <code>String</code> representation
+     * of this object.
+     */
+    public synchronized String toString()
+    {
+        final String TAB = " ";
+
+        String result  = "DurationHistory ( "
+            + "durations = " + this.durations + TAB
+            + " )";
+
+        return result;
+    }
+}
@@ -0,0 +1,247 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+package org.apache.james.mpt.antlib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.james.mpt.LoadGenerator;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.Resource;
+import org.apache.tools.ant.types.resources.FileProvider;
+
+/**
+ * <p>Runs scripts in forked worker JVMs and merges their results.</p>
+ * <p>
+ * Virtual users, or runs started at a rate, are shared between the
+ * workers, which each run every script. Otherwise the scripts are
+ * shared between the workers, longest first, so the workers are
+ * expected to finish together. Each worker is a {@link ShardWorker},
+ * configured by {@link MailProtocolTestTask#shardConfig(int, int, List)}.
+ * </p>
+ */
+final class ForkedRun {
+
+    private final MailProtocolTestTask task;
+
+    private final ScriptHistory history;
+
+    /**
+     * @param task configures the workers, not null
+     * @param history keeps the durations and outcomes reported, not null
+     */
+    public ForkedRun(MailProtocolTestTask task, ScriptHistory history) {
+        this.task = task;
+        this.history = history;
+    }
+
+    /**
+     * Runs the scripts, waiting for every worker to finish.
+     * 
+     * @param resources the scripts, not null
+     * @throws BuildException when a script or worker fails
+     */
+    public void run(List<Resource> resources) throws BuildException {
+        for (final Iterator<Resource> it=resources.iterator();it.hasNext();) {
+            final Resource resource = it.next();
+            if (resource.as(FileProvider.class) == null) {
+                throw new BuildException("Forked workers can only run script files: " + resource.getName());
+            }
+        }
+        if (resources.isEmpty()) {
+            return;
+        }
+        
+        final boolean load = task.getUsers() > 0 || task.getArrivalRate() > 0;
+        int workers = task.getForks();
+        if (!load) {
+            workers = Math.min(workers, resources.size());
+        } else if (task.getArrivalRate() == 0) {
+            workers = Math.min(workers, task.getUsers());
+        } else if (task.getIterations() > 0) {
+            workers = Math.min(workers, task.getIterations());
+        }
+        
+        final List<Process> processes = new ArrayList<Process>();
+        final List<Thread> readers = new ArrayList<Thread>();
+        final ShardWorker.Results results = new ShardWorker.Results();
+        final List<List<Resource>> shares;
+        if (load) {
+            shares = Collections.nCopies(workers, resources);
+        } else {
+            shares = history.getDurations().share(resources, workers);
+        }
+        try {
+            for (int i = 0; i < workers; i++) {
+                final Process process = startWorker(task.shardConfig(i, workers, shares.get(i)));
+                processes.add(process);
+                readers.add(readWorker(i, process, results));
+            }
+            for (int i = 0; i < workers; i++) {
+                readers.get(i).join();
+                final int exitCode = processes.get(i).waitFor();
+                if (exitCode > 1) {
+                    results.addFailure("Worker " + i + " failed with exit code " + exitCode);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted waiting for workers", e);
+        } catch (IOException e) {
+            throw new BuildException("Cannot start worker", e);
+        } finally {
+            for (Iterator<Process> iterator = processes.iterator(); iterator.hasNext();) {
+                iterator.next().destroy();
+            }
+            // workers report how long each script took once it has passed
+            for (Iterator<Map.Entry<String, Long>> iterator = results.getDurations().entrySet().iterator(); iterator.hasNext();) {
+                final Map.Entry<String, Long> entry = iterator.next();
+                history.recordDuration(entry.getKey(), entry.getValue().longValue());
+            }
+            // a script not reported, or run by a worker which failed, did not pass
+            final boolean loadFailed = load && !results.getFailures().isEmpty();
+            final Map<String, Boolean> outcomes = results.getOutcomes();
+            for (final Iterator<Resource> it=resources.iterator();it.hasNext();) {
+                final String name = it.next().getName();
+                history.recordOutcome(name, !loadFailed && Boolean.TRUE.equals(outcomes.get(name)));
+            }
+        }
+        
+        for (Iterator<Map.Entry<String, LoadGenerator.Result>> iterator = results.getLoads().entrySet().iterator(); iterator.hasNext();) {
+            final Map.Entry<String, LoadGenerator.Result> entry = iterator.next();
+            LoadRun.report(task, entry.getKey(), entry.getValue(), results.getStartLag(entry.getKey()));
+        }
+        if (!results.getLatencyRecorder().isEmpty()) {
+            task.log(results.getLatencyRecorder().report(), Project.MSG_INFO);
+        }
+        final List<String> failures = results.getFailures();
+        if (failures.size() == 1) {
+            throw new BuildException(failures.get(0));
+        } else if (!failures.isEmpty()) {
+            final StringBuilder message = new StringBuilder();
+            message.append(failures.size()).append(" of ").append(workers).append(" workers failed");
+            for (Iterator<String> iterator = failures.iterator(); iterator.hasNext();) {
+                message.append('\n').append(iterator.next());
+            }
+            throw new BuildException(message.toString());
+        }
+    }
+
+    /**
+     * Starts a worker JVM with the classes of the task.
+     * @param config settings of the worker, not null
+     * @return not null
+     * @throws IOException
+     */
+    private Process startWorker(Properties config) throws IOException {
+        final StringBuilder classpath = new StringBuilder();
+        classpath.append(codeSource(ShardWorker.class));
+        classpath.append(File.pathSeparatorChar).append(codeSource(BuildException.class));
+        classpath.append(File.pathSeparatorChar).append(System.getProperty("java.class.path"));
+        final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        final Process result = new ProcessBuilder(java, "-cp", classpath.toString(), ShardWorker.class.getName()).start();
+        final OutputStream in = result.getOutputStream();
+        try {
+            config.store(in, null);
+        } finally {
+            in.close();
+        }
+        return result;
+    }
+
+    private static String codeSource(Class<?> type) {
+        try {
+            return new File(type.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+        } catch (Exception e) {
+            // the class path of this JVM may be enough
+            return "";
+        }
+    }
+
+    /**
+     * Starts threads reading the results and log of a worker.
+     * @return the thread reading the results, not null
+     */
+    private Thread readWorker(final int index, final Process process, final ShardWorker.Results results) {
+        final Thread logReader = new Thread(new Runnable() {
+            public void run() {
+                final BufferedReader reader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        task.log("[worker " + index + "] " + line, Project.MSG_INFO);
+                    }
+                } catch (IOException e) {
+                    // the worker has gone
+                }
+            }
+        }, "mpt-worker-log-" + index);
+        logReader.setDaemon(true);
+        logReader.start();
+        final Thread resultReader = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    if (!results.read(new DataInputStream(new BufferedInputStream(process.getInputStream())))) {
+                        results.addFailure("Worker " + index + " ended without reporting its results");
+                    }
+                    // log lines are written before the results end
+                    logReader.join();
+                } catch (IOException e) {
+                    results.addFailure("Cannot read the results of worker " + index + ": " + e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "mpt-worker-" + index);
+        resultReader.start();
+        return resultReader;
+    }
+
+    /**
+     * Constructs a <code>String</code> with all attributes
+     * in name = value format.
+     *
+     * @return a <code>String</code> representation
+     * of this object.
+     */
+    public String toString()
+    {
+        final String TAB = " ";
+
+        String result  = "ForkedRun ( "
+            + "forks = " + this.task.getForks() + TAB
+            + " )";
+
+        return result;
+    }
+}
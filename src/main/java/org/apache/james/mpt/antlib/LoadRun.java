@@ -0,0 +1,241 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+package org.apache.james.mpt.antlib;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.james.mpt.ArrivalRateScheduler;
+import org.apache.james.mpt.AsyncSessionFactory;
+import org.apache.james.mpt.ExternalHostSystem;
+import org.apache.james.mpt.Histogram;
+import org.apache.james.mpt.LoadGenerator;
+import org.apache.james.mpt.Monitor;
+import org.apache.james.mpt.MultiplexedRunner;
+import org.apache.james.mpt.ProtocolInteractor;
+import org.apache.james.mpt.ProtocolScript;
+import org.apache.james.mpt.ProtocolSession;
+import org.apache.james.mpt.ProtocolSessionBuilder;
+import org.apache.james.mpt.RemoteHost;
+import org.apache.james.mpt.Runner;
+import org.apache.james.mpt.Session;
+import org.apache.james.mpt.SessionFactory;
+import org.apache.james.mpt.SessionPool;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+
+/**
+ * <p>Runs a script as concurrent virtual users, or at a constant arrival rate.</p>
+ * <p>
+ * The script is parsed once and shared by every virtual user. Each
+ * user has its own sessions, and the <code>user</code> variable set to
+ * its number. With selector threads, the sessions of every user are
+ * multiplexed by a {@link MultiplexedRunner}; otherwise each run has a
+ * thread of its own.
+ * </p>
+ */
+final class LoadRun {
+
+    private static final String USER = "user";
+
+    private final MailProtocolTestTask task;
+
+    private final Monitor monitor;
+
+    private final SessionPool sessionPool;
+
+    private final ShardWorker shardOutput;
+
+    /**
+     * @param task holds the settings of the load, not null
+     * @param monitor passed to sessions and runners, not null
+     * @param sessionPool null to stop sessions after each run
+     * @param shardOutput null unless running as a forked worker
+     */
+    public LoadRun(MailProtocolTestTask task, Monitor monitor, SessionPool sessionPool, ShardWorker shardOutput) {
+        this.task = task;
+        this.monitor = monitor;
+        this.sessionPool = sessionPool;
+        this.shardOutput = shardOutput;
+    }
+
+    /**
+     * Runs the load of a script, waiting until every run has finished.
+     * 
+     * @param name script name, not null
+     * @param script compiled script, not null
+     * @param builder not null
+     * @throws Exception when any run fails
+     */
+    public void run(final String name, final ProtocolScript script, final ProtocolSessionBuilder builder) throws Exception {
+        final List<SessionFactory> factories = new ArrayList<SessionFactory>();
+        final List<String> aliases = new ArrayList<String>();
+        for (RemoteHost remoteHost : task.getRemoteHosts()) {
+            aliases.add(remoteHost.getAlias());
+            if (task.getSelectorThreads() > 0) {
+                final AsyncSessionFactory factory = new AsyncSessionFactory(remoteHost.getAlias(), remoteHost.getHost(), remoteHost.getPort(), monitor, task.getShabang());
+                factory.setWireCapture(task.getWireCapture());
+                factories.add(factory);
+            } else {
+                ExternalHostSystem factory = new ExternalHostSystem(remoteHost.getAlias(), remoteHost.getHost(), remoteHost.getPort(), monitor, task.getShabang(), null);
+                factory.setTimeout(task.getTimeout());
+                factory.setBlocking(task.isVirtualThreads());
+                factory.setWireCapture(task.getWireCapture());
+                factories.add(factory);
+            }
+        }
+        
+        final MultiplexedRunner multiplexer;
+        if (task.getSelectorThreads() > 0) {
+            multiplexer = new MultiplexedRunner(task.getSelectorThreads(), monitor);
+            multiplexer.setTimeout(task.getTimeout());
+            multiplexer.start();
+        } else {
+            multiplexer = null;
+        }
+        
+        final ArrivalRateScheduler scheduler;
+        final LoadGenerator generator;
+        try {
+            if (task.getArrivalRate() > 0) {
+                scheduler = new ArrivalRateScheduler(task.getArrivalRate(), monitor);
+                scheduler.setMaxInFlight(task.getMaxInFlight());
+                scheduler.setDuration(task.getDuration());
+                scheduler.setIterations(task.getIterations());
+                generator = null;
+            } else {
+                scheduler = null;
+                generator = new LoadGenerator(task.getUsers(), monitor);
+                generator.setRampUp(task.getRampUp());
+                generator.setDuration(task.getDuration());
+                generator.setIterations(task.getIterations());
+            }
+        } catch (IllegalArgumentException e) {
+            if (multiplexer != null) {
+                multiplexer.shutdown();
+            }
+            throw new BuildException(e.getMessage(), e);
+        }
+        final ExecutorService executor = Runner.newThreadPerScriptExecutor(task.isVirtualThreads());
+        final LoadGenerator.Result result;
+        try {
+            final LoadGenerator.VirtualUserFactory factory = new LoadGenerator.VirtualUserFactory() {
+                public LoadGenerator.VirtualUser newUser(int userIndex) throws Exception {
+                    final int index = task.getFirstUser() + userIndex * task.getUserStride();
+                    final Map<String, Session> sessions = new HashMap<String, Session>();
+                    for (int i = 0; i < factories.size(); i++) {
+                        sessions.put(aliases.get(i), factories.get(i).newSession());
+                    }
+                    final Properties variables = new Properties();
+                    variables.setProperty(USER, String.valueOf(index));
+                    final ProtocolInteractor testScript = builder.buildProtocolSession(script, sessions, variables);
+                    ((ProtocolSession) testScript).setRandom(task.newRandom(index));
+                    if (multiplexer == null) {
+                        final Runner runner = new Runner();
+                        runner.setSessionPool(sessionPool);
+                        return new LoadGenerator.VirtualUser() {
+                            public void runIteration(long intendedStart) throws Exception {
+                                ((ProtocolSession) testScript).setIntendedStart(intendedStart);
+                                runner.runSessions(testScript);
+                            }
+                        };
+                    }
+                    return new LoadGenerator.VirtualUser() {
+                        public void runIteration(long intendedStart) throws Exception {
+                            ((ProtocolSession) testScript).setIntendedStart(intendedStart);
+                            final MultiplexedRunner.Execution execution = multiplexer.submit((ProtocolSession) testScript);
+                            execution.await();
+                            if (execution.getFailure() != null) {
+                                throw execution.getFailure();
+                            }
+                        }
+                    };
+                }
+            };
+            if (scheduler == null) {
+                result = generator.run(factory, executor);
+            } else {
+                result = scheduler.run(factory, executor);
+            }
+        } finally {
+            executor.shutdown();
+            if (multiplexer != null) {
+                multiplexer.shutdown();
+            }
+        }
+        
+        task.flushMonitor();
+        if (shardOutput != null) {
+            // the forking task reports the results of all workers
+            shardOutput.load(name, result, scheduler == null ? null : scheduler.getStartLag());
+        } else {
+            report(task, name, result, scheduler == null ? null : scheduler.getStartLag());
+        }
+        if (result.getFailed() > 0) {
+            for (Iterator<String> iterator = result.getFailures().iterator(); iterator.hasNext();) {
+                task.log(iterator.next(), Project.MSG_ERR);
+            }
+            throw new Exception(result.getFailed() + " of " + (result.getPassed() + result.getFailed()) + " runs failed");
+        }
+    }
+
+    /**
+     * Logs the outcome of a load.
+     * @param task logs, not null
+     * @param name script name, not null
+     * @param result not null
+     * @param startLag null when runs were not scheduled
+     */
+    static void report(Task task, String name, LoadGenerator.Result result, Histogram startLag) {
+        task.log(" --- Load of " + name + ": " + result + " --- ", Project.MSG_INFO);
+        if (startLag != null) {
+            task.log(String.format(" --- Start lag (ms): p50 = %.3f p90 = %.3f p99 = %.3f max = %.3f --- ",
+                    startLag.getValueAtPercentile(50) / 1000.0, startLag.getValueAtPercentile(90) / 1000.0,
+                    startLag.getValueAtPercentile(99) / 1000.0, startLag.getMax() / 1000.0), Project.MSG_INFO);
+        }
+    }
+
+    /**
+     * Constructs a <code>String</code> with all attributes
+     * in name = value format.
+     *
+     * @return a <code>String</code> representation
+     * of this object.
+     */
+    public String toString()
+    {
+        final String TAB = " ";
+
+        String result  = "LoadRun ( "
+            + "users = " + this.task.getUsers() + TAB
+            + "arrivalRate = " + this.task.getArrivalRate() + TAB
+            + "sessionPool = " + this.sessionPool + TAB
+            + " )";
+
+        return result;
+    }
+}
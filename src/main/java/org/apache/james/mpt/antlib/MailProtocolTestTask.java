@@ -22,27 +22,44 @@ package org.apache.james.mpt.antlib;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.james.mpt.AsyncMonitor;
 import org.apache.james.mpt.ExternalHostSystem;
+import org.apache.james.mpt.LatencyRecorder;
 import org.apache.james.mpt.Monitor;
 import org.apache.james.mpt.ProtocolInteractor;
+import org.apache.james.mpt.ProtocolScript;
+import org.apache.james.mpt.ProtocolSession;
 import org.apache.james.mpt.ProtocolSessionBuilder;
 import org.apache.james.mpt.RemoteHost;
 import org.apache.james.mpt.Runner;
+import org.apache.james.mpt.ScriptCache;
 import org.apache.james.mpt.Session;
+import org.apache.james.mpt.SessionPool;
+import org.apache.james.mpt.StreamingProtocolSession;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.Task;
 import org.apache.tools.ant.types.Resource;
 import org.apache.tools.ant.types.ResourceCollection;
+import org.apache.tools.ant.types.resources.FileProvider;
 import org.apache.tools.ant.types.resources.FileResource;
 import org.apache.tools.ant.types.resources.Union;
 
@@ -55,6 +72,9 @@ public class MailProtocolTestTask extends Task implements Monitor{
 	private static final String TIMESTAMP = "timestamp";
 	private static final String MILLIS = "millis";
 	
+	/** Compiled scripts by cache size, shared by executions of the task in this JVM */
+	private static final Map<Integer, ScriptCache> SCRIPT_CACHES = new HashMap<Integer, ScriptCache>();
+	
     private boolean quiet = false;
     private File script;
     private Union scripts;
@@ -63,6 +83,41 @@ public class MailProtocolTestTask extends Task implements Monitor{
     private List<RemoteHost> remoteHosts = new ArrayList<RemoteHost>();
     private String errorProperty;
     private String cmdLineFile;
+    private long timeout = 0;
+    private boolean virtualThreads = false;
+    private int users = 0;
+    private long rampUp = 0;
+    private long duration = 0;
+    private int iterations = 0;
+    private int selectorThreads = 0;
+    private boolean reportLatency = false;
+    private long expectedLatency = 0;
+    private int scriptCacheSize = 256;
+    private boolean streaming = false;
+    private int pipelineDepth = 1;
+    private long seed = 0;
+    private boolean seeded = false;
+    private double arrivalRate = 0;
+    private int maxInFlight = 1000;
+    private boolean asyncLogging = false;
+    private int wireCapture = 0;
+    private int threads = 1;
+    private int forks = 0;
+    private File historyFile;
+    private File resultsFile;
+    private boolean incremental = false;
+    private ScriptHistory history;
+    /** Receives the results when run as a forked worker */
+    private ShardWorker shardOutput;
+    /** Number of the first virtual user */
+    private int firstUser = 0;
+    /** Difference between the numbers of consecutive virtual users */
+    private int userStride = 1;
+    private AsyncMonitor asyncMonitor;
+    private boolean keepSessions = false;
+    private String resetCommands;
+    /** Keeps sessions connected between scripts, null when not kept */
+    private SessionPool sessionPool;
     
     public String getFile(){
     	return cmdLineFile;
@@ -164,9 +219,474 @@ public class MailProtocolTestTask extends Task implements Monitor{
         this.shabang = shabang;
     }
 
+    /**
+     * Gets the number of milliseconds to wait for the server.
+     * @return timeout in milliseconds, zero when waiting forever
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets the number of milliseconds to wait for the server
+     * before the script fails.
+     * @param timeout in milliseconds, zero to wait forever
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Are scripts run on virtual threads?
+     * @return true when concurrent scripts run on virtual threads
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Sets whether scripts run by several threads, and virtual users,
+     * run on virtual threads using blocking sessions. Scripts run one
+     * at a time stay on the build thread. Platform threads are used
+     * when the JVM does not support virtual threads.
+     * @param virtualThreads true to run concurrent scripts on virtual threads
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Gets the number of virtual users each script is run as.
+     * @return number of virtual users, zero when scripts are run once
+     */
+    public int getUsers() {
+        return users;
+    }
+
+    /**
+     * Sets the number of concurrent virtual users each script is run as.
+     * Every user has its own sessions and variables, the variable
+     * <code>user</code> holds its number.
+     * @param users number of virtual users, zero to run scripts once
+     */
+    public void setUsers(int users) {
+        this.users = users;
+    }
+
+    /**
+     * Gets the period over which virtual users are started.
+     * @return milliseconds
+     */
+    public long getRampUp() {
+        return rampUp;
+    }
+
+    /**
+     * Sets the period over which virtual users are started.
+     * @param rampUp milliseconds, zero starts all users at once
+     */
+    public void setRampUp(long rampUp) {
+        this.rampUp = rampUp;
+    }
+
+    /**
+     * Gets how long virtual users run the script.
+     * @return milliseconds, zero for no limit
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * Sets how long virtual users run the script.
+     * @param duration milliseconds from the start of the load, zero for no limit
+     */
+    public void setDuration(long duration) {
+        this.duration = duration;
+    }
+
+    /**
+     * Gets how many times each virtual user runs the script.
+     * @return number of runs, zero for no limit
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Sets how many times each virtual user runs the script.
+     * When neither iterations nor duration are set, each user runs the script once.
+     * @param iterations number of runs, zero for no limit
+     */
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
+    /**
+     * Gets the number of selector threads driving virtual users.
+     * @return number of threads, zero when each user blocks its own thread
+     */
+    public int getSelectorThreads() {
+        return selectorThreads;
+    }
+
+    /**
+     * Sets the number of selector threads which drive the sessions of
+     * all virtual users. When zero, each user runs on its own thread.
+     * @param selectorThreads number of threads, zero for a thread per user
+     */
+    public void setSelectorThreads(int selectorThreads) {
+        this.selectorThreads = selectorThreads;
+    }
+
+    /**
+     * Is the latency of commands reported?
+     * @return true when percentiles are reported at the end of the run
+     */
+    public boolean isReportLatency() {
+        return reportLatency;
+    }
+
+    /**
+     * Sets whether the latency of tagged commands is recorded
+     * and percentiles reported at the end of the run.
+     * @param reportLatency true to report latencies
+     */
+    public void setReportLatency(boolean reportLatency) {
+        this.reportLatency = reportLatency;
+    }
+
+    /**
+     * Gets how long the server is expected to take to complete a command.
+     * @return expected latency in milliseconds, zero when not known
+     */
+    public long getExpectedLatency() {
+        return expectedLatency;
+    }
+
+    /**
+     * Sets how long the server is expected to take to complete a command.
+     * Each command is meant to be sent this long, plus any think time,
+     * after the command before it was meant to be sent, so a command the
+     * server stalls raises the corrected latencies of those which follow.
+     * @param expectedLatency expected latency in milliseconds, zero to correct
+     * latencies only for runs starting late
+     */
+    public void setExpectedLatency(long expectedLatency) {
+        this.expectedLatency = expectedLatency;
+    }
+
+    /**
+     * Gets the number of compiled scripts cached.
+     * @return maximum number of scripts cached between runs
+     */
+    public int getScriptCacheSize() {
+        return scriptCacheSize;
+    }
+
+    /**
+     * Sets the number of compiled scripts cached. Scripts are cached
+     * between executions of the task and parsed again when modified.
+     * Executions configured with the same size share one cache, so
+     * one execution never evicts the scripts of another size.
+     * @param scriptCacheSize maximum number of scripts, zero disables caching
+     */
+    public void setScriptCacheSize(int scriptCacheSize) {
+        this.scriptCacheSize = scriptCacheSize;
+    }
+
+    /**
+     * Are scripts run as they are parsed?
+     * @return true when scripts are streamed
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Sets whether scripts are run as they are parsed rather than parsed
+     * completely first. Streamed scripts are neither cached nor kept in
+     * memory, which suits very long generated scripts.
+     * Load runs share a compiled script so are never streamed.
+     * @param streaming true to stream scripts
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Gets the maximum number of tagged commands sent
+     * before their responses are read.
+     * @return one when commands are not pipelined
+     */
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * Sets the maximum number of tagged commands sent before their
+     * responses are read. Responses are then matched to commands by tag.
+     * Streamed scripts are not pipelined.
+     * @param pipelineDepth one for no pipelining
+     */
+    public void setPipelineDepth(int pipelineDepth) {
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    /**
+     * Gets the seed for random think times.
+     * @return seed, meaningful only once set
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Sets the seed for random think times, so runs are reproducible.
+     * Each virtual user draws from its own generator seeded from this.
+     * When not set, think times differ from run to run.
+     * @param seed any value
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+        this.seeded = true;
+    }
+
+    /**
+     * Gets the rate at which script runs are started.
+     * @return runs per second, zero when virtual users run the script in turn
+     */
+    public double getArrivalRate() {
+        return arrivalRate;
+    }
+
+    /**
+     * Sets the rate at which script runs are started, however many are
+     * still running. The duration or iterations attributes limit the
+     * number of runs and the users attribute is ignored.
+     * @param arrivalRate runs per second, zero for virtual users
+     */
+    public void setArrivalRate(double arrivalRate) {
+        this.arrivalRate = arrivalRate;
+    }
+
+    /**
+     * Gets the maximum number of runs in flight when runs are started at a rate.
+     * @return number of runs, zero for no limit
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Sets the maximum number of runs in flight when runs are started at
+     * a rate. Once reached, further runs start late.
+     * @param maxInFlight number of runs, zero for no limit
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Are session messages logged on a background thread?
+     * @return true when logging is asynchronous
+     */
+    public boolean isAsyncLogging() {
+        return asyncLogging;
+    }
+
+    /**
+     * Sets whether messages from sessions are logged on a background
+     * thread, so slow logging does not hold up the sessions.
+     * @param asyncLogging true to log asynchronously
+     */
+    public void setAsyncLogging(boolean asyncLogging) {
+        this.asyncLogging = asyncLogging;
+    }
+
+    /**
+     * Gets how much recent traffic each session keeps.
+     * @return number of characters, zero when none is kept
+     */
+    public int getWireCapture() {
+        return wireCapture;
+    }
+
+    /**
+     * Sets how many characters of the most recent lines sent and received
+     * each session keeps. They are shown only when a response does not
+     * match or the server times out.
+     * @param wireCapture number of characters, zero to keep none
+     */
+    public void setWireCapture(int wireCapture) {
+        this.wireCapture = wireCapture;
+    }
+
+    /**
+     * Gets the number of scripts run at the same time.
+     * @return number of scripts
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the number of scripts run at the same time, each with its
+     * own sessions and variables. Scripts are run one after the other
+     * when one, and when run as virtual users or at an arrival rate.
+     * When more, every script is run and all failures are reported.
+     * @param threads number of scripts
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Gets the number of worker JVMs forked.
+     * @return number of workers, zero when scripts run in this JVM
+     */
+    public int getForks() {
+        return forks;
+    }
+
+    /**
+     * Sets the number of worker JVMs forked to run the scripts.
+     * Virtual users, or runs started at a rate, are shared between the
+     * workers, otherwise the scripts are. Results are merged into one
+     * report. Scripts must be files.
+     * @param forks number of workers, zero to run scripts in this JVM
+     */
+    public void setForks(int forks) {
+        this.forks = forks;
+    }
+
+    /**
+     * Gets the file keeping how long each script took.
+     * @return file, or null when durations are not kept
+     */
+    public File getHistoryFile() {
+        return historyFile;
+    }
+
+    /**
+     * Sets the file keeping how long each script took to run.
+     * When scripts run in parallel, or in forked workers, the longest
+     * are started first so a long script started last does not hold
+     * up the build. The file is updated after each execution.
+     * @param historyFile file, or null when durations are not kept
+     */
+    public void setHistoryFile(File historyFile) {
+        this.historyFile = historyFile;
+    }
+
+    /**
+     * Gets the file keeping the outcome of each script.
+     * @return file, or null when outcomes are not kept
+     */
+    public File getResultsFile() {
+        return resultsFile;
+    }
+
+    /**
+     * Sets the file keeping the outcome of each script when it last
+     * ran, with a fingerprint of the script and the files it attaches.
+     * The file is updated after each execution.
+     * @param resultsFile file, or null when outcomes are not kept
+     */
+    public void setResultsFile(File resultsFile) {
+        this.resultsFile = resultsFile;
+    }
+
+    /**
+     * Are only scripts which failed or changed run?
+     * @return true when scripts which passed last time, and have not
+     * changed since, are not run
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * Sets whether only scripts which failed or changed are run.
+     * Requires a results file. Every script is run when the remote
+     * hosts or greeting differ from those of the last execution.
+     * @param incremental true to skip scripts which passed last time,
+     * and have not changed since
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * Are sessions kept connected between scripts?
+     * @return true when connections are reused by the next script
+     */
+    public boolean isKeepSessions() {
+        return keepSessions;
+    }
+
+    /**
+     * Sets whether sessions are kept connected between scripts.
+     * When a script passes, the reset commands are sent and the
+     * connection is used by the next script, which reads the greeting
+     * sent when it was made. Connections closed by the server, or with
+     * unread input, are replaced. A script which starts by logging in
+     * is given a new connection, unless the reset commands leave
+     * connections logged out with <code>UNAUTHENTICATE</code>: see {@link SessionPool}. In load runs, each virtual user keeps its
+     * connections between iterations, unless sessions are multiplexed.
+     * @param keepSessions true to reuse connections
+     */
+    public void setKeepSessions(boolean keepSessions) {
+        this.keepSessions = keepSessions;
+    }
+
+    /**
+     * Gets the commands sent to reset a kept session.
+     * @return commands separated by semicolons, or null when none are sent
+     */
+    public String getResetCommands() {
+        return resetCommands;
+    }
+
+    /**
+     * Sets the commands sent, each with its own tag, to reset a session
+     * kept for the next script, for example <code>UNSELECT</code>, or
+     * <code>UNAUTHENTICATE;LOGIN user secret</code> to log in again.
+     * The connection is only kept when the server completes every
+     * command with <code>OK</code>.
+     * @param resetCommands commands separated by semicolons,
+     * or null when none are sent
+     */
+    public void setResetCommands(String resetCommands) {
+        this.resetCommands = resetCommands;
+    }
+
     public void addRemoteHost(RemoteHost rh){
     	remoteHosts.add(rh);
     }
+
+    /**
+     * @return hosts scripts run against, not null
+     */
+    List<RemoteHost> getRemoteHosts() {
+        return remoteHosts;
+    }
+
+    /**
+     * Gets the number of the first virtual user of this task.
+     * @return zero unless running as a forked worker
+     */
+    int getFirstUser() {
+        return firstUser;
+    }
+
+    /**
+     * Gets the difference between the numbers of consecutive virtual users.
+     * @return one unless running as a forked worker
+     */
+    int getUserStride() {
+        return userStride;
+    }
     
     @Override
     public void execute() throws BuildException {
@@ -184,10 +704,10 @@ public class MailProtocolTestTask extends Task implements Monitor{
         if(skip) {
             log("Skipping excution");
         } else if (errorProperty == null) {
-            doExecute();
+            runScripts();
         } else {
             try {
-                doExecute();
+                runScripts();
             } catch (BuildException e) {
                 final Project project = getProject();
                 project.setProperty(errorProperty, e.getMessage());
@@ -196,6 +716,124 @@ public class MailProtocolTestTask extends Task implements Monitor{
         }
     }
 
+    private void runScripts() throws BuildException {
+        if (incremental && resultsFile == null) {
+            throw new BuildException("Incremental runs require a results file");
+        }
+        history = new ScriptHistory(this, historyFile, resultsFile, incremental, shardOutput);
+        history.load(describeHosts());
+        try {
+            if (forks > 0) {
+                new ForkedRun(this, history).run(selectScripts());
+            } else {
+                runInProcess();
+            }
+        } finally {
+            history.store();
+            history = null;
+        }
+    }
+
+    /**
+     * Describes the hosts scripts run against, for the result store.
+     * @return not null
+     */
+    private String describeHosts() {
+        final StringBuilder result = new StringBuilder();
+        result.append(shabang);
+        for (Iterator<RemoteHost> iterator = remoteHosts.iterator(); iterator.hasNext();) {
+            final RemoteHost remoteHost = iterator.next();
+            result.append('\n').append(remoteHost.getAlias()).append('=')
+                .append(remoteHost.getHost()).append(':').append(remoteHost.getPort());
+        }
+        return result.toString();
+    }
+
+    /**
+     * Gets the scripts to run.
+     * When the single.file property is set, only matching scripts are
+     * run. In incremental runs, scripts which passed and have not
+     * changed since are left out.
+     * @return not null
+     * @throws BuildException when a script cannot be read
+     */
+    private List<Resource> selectScripts() throws BuildException {
+        if (scripts == null) {
+            scripts = new Union();
+            scripts.add(new FileResource(script));
+        }
+        
+        String singleFile = getProject().getProperty("single.file");
+        
+        final List<Resource> result = new ArrayList<Resource>();
+        int unchanged = 0;
+        for (final Iterator<Resource> it=scripts.iterator();it.hasNext();) {
+            final Resource resource = it.next();
+            
+            // if a the single.file property is set on the command line, then just run that script only
+            if ((singleFile != null) && (! resource.getName().contains(singleFile))) {
+                continue;
+            }
+            
+            try {
+                if (!history.select(resource)) {
+                    unchanged++;
+                    continue;
+                }
+            } catch (IOException e) {
+                throw new BuildException("Cannot load script " + resource.getName(), e);
+            }
+            result.add(resource);
+        }
+        if (unchanged > 0) {
+            log(" --- Skipping " + unchanged + " scripts which passed and have not changed --- ", Project.MSG_INFO);
+        }
+        return result;
+    }
+
+    private void runInProcess() throws BuildException {
+        if (asyncLogging) {
+            asyncMonitor = new AsyncMonitor(this, AsyncMonitor.DEFAULT_CAPACITY);
+        }
+        try {
+            doExecute();
+        } finally {
+            if (asyncMonitor != null) {
+                try {
+                    asyncMonitor.close();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                asyncMonitor = null;
+            }
+        }
+    }
+
+    /**
+     * Gets the monitor passed to sessions and runners.
+     * @return not null
+     */
+    Monitor monitor() {
+        if (asyncMonitor == null) {
+            return this;
+        }
+        return asyncMonitor;
+    }
+
+    /**
+     * Waits until session messages have been logged,
+     * so task messages follow them.
+     */
+    void flushMonitor() {
+        if (asyncMonitor != null) {
+            try {
+                asyncMonitor.flush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     public void add(ResourceCollection resources) {
         if (scripts == null) {
             scripts = new Union();
@@ -205,58 +843,417 @@ public class MailProtocolTestTask extends Task implements Monitor{
     
     private void doExecute() throws BuildException {
         
+    	Map<String, Session> sessionMap = newSessionMap();
+    	
+        final LatencyRecorder latencyRecorder;
+        if (reportLatency) {
+            latencyRecorder = new LatencyRecorder();
+            latencyRecorder.setExpectedLatency(TimeUnit.MILLISECONDS.toNanos(expectedLatency));
+        } else {
+            latencyRecorder = null;
+        }
+        final ProtocolSessionBuilder builder = newBuilder(latencyRecorder);
+        DateFormat df = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss Z");
+        
+        final List<Resource> resources = selectScripts();
+        
+        if (keepSessions) {
+            final List<String> commands = new ArrayList<String>();
+            if (resetCommands != null) {
+                final String[] split = resetCommands.split(";");
+                for (int i = 0; i < split.length; i++) {
+                    if (split[i].trim().length() > 0) {
+                        commands.add(split[i].trim());
+                    }
+                }
+            }
+            sessionPool = new SessionPool(commands, monitor());
+        }
+        
+        if (virtualThreads && !Runner.isVirtualThreadSupported()) {
+            log("Virtual threads are not supported, using platform threads", Project.MSG_WARN);
+        }
+        
+        try {
+            if (threads > 1 && users == 0 && arrivalRate == 0) {
+                runParallel(resources, latencyRecorder);
+                return;
+            }
+            
+            for (final Iterator<Resource> it=resources.iterator();it.hasNext();) {
+                final Resource resource = it.next();
+            
+                try {
+                    final long start = System.currentTimeMillis();
+                    if (runScript(resource, sessionMap, builder, df)) {
+                        history.recordDuration(resource.getName(), System.currentTimeMillis() - start);
+                        history.recordOutcome(resource.getName(), true);
+                    } else {
+                        history.recordOutcome(resource.getName(), false);
+                    }
+                } catch (IOException e) {
+                    history.recordOutcome(resource.getName(), false);
+                    throw new BuildException("Cannot load script " + resource.getName(), e);
+                } catch (Exception e) {
+                    history.recordOutcome(resource.getName(), false);
+                    flushMonitor();
+                    log(e.getMessage(), Project.MSG_ERR);
+                    throw new BuildException("[FAILURE] in script " + resource.getName() + "\n" + e.getMessage(), e);
+                }
+            
+            }
+        } finally {
+            if (sessionPool != null) {
+                sessionPool.close();
+                sessionPool = null;
+            }
+            flushMonitor();
+            if (shardOutput != null && latencyRecorder != null) {
+                try {
+                    shardOutput.latencies(latencyRecorder);
+                } catch (IOException e) {
+                    log("Cannot report latencies: " + e.getMessage(), Project.MSG_ERR);
+                }
+            } else if (latencyRecorder != null && !latencyRecorder.isEmpty()) {
+                log(latencyRecorder.report(), Project.MSG_INFO);
+            }
+        }
+    
+    }
+
+    /**
+     * Gets the settings of a forked worker.
+     * 
+     * @param index number of the worker, starting at zero
+     * @param workers number of workers
+     * @param resources the scripts the worker runs, in order, not null
+     * @return not null
+     */
+    Properties shardConfig(int index, int workers, List<Resource> resources) {
+        final Properties config = new Properties();
+        for (int i = 0; i < resources.size(); i++) {
+            final Resource resource = resources.get(i);
+            final File file = ((FileProvider) resource.as(FileProvider.class)).getFile().getAbsoluteFile();
+            // keep the name, which may be a relative path, for reports and history
+            final String name = resource.getName().replace('/', File.separatorChar);
+            final String path = file.getPath();
+            if (path.endsWith(File.separator + name)) {
+                config.setProperty("script." + i + ".base", path.substring(0, path.length() - name.length() - 1));
+                config.setProperty("script." + i, name);
+            } else {
+                config.setProperty("script." + i + ".base", file.getParent());
+                config.setProperty("script." + i, file.getName());
+            }
+        }
+        for (int i = 0; i < remoteHosts.size(); i++) {
+            final RemoteHost remoteHost = remoteHosts.get(i);
+            config.setProperty("host." + i + ".alias", remoteHost.getAlias());
+            config.setProperty("host." + i + ".host", remoteHost.getHost());
+            config.setProperty("host." + i + ".port", String.valueOf(remoteHost.getPort()));
+        }
+        if (shabang != null) {
+            config.setProperty("shabang", shabang);
+        }
+        config.setProperty("quiet", String.valueOf(quiet));
+        config.setProperty("timeout", String.valueOf(timeout));
+        config.setProperty("virtualThreads", String.valueOf(virtualThreads));
+        config.setProperty("rampUp", String.valueOf(rampUp));
+        config.setProperty("duration", String.valueOf(duration));
+        config.setProperty("selectorThreads", String.valueOf(selectorThreads));
+        config.setProperty("reportLatency", String.valueOf(reportLatency));
+        config.setProperty("expectedLatency", String.valueOf(expectedLatency));
+        config.setProperty("streaming", String.valueOf(streaming));
+        config.setProperty("pipelineDepth", String.valueOf(pipelineDepth));
+        config.setProperty("wireCapture", String.valueOf(wireCapture));
+        config.setProperty("asyncLogging", String.valueOf(asyncLogging));
+        config.setProperty("keepSessions", String.valueOf(keepSessions));
+        if (resetCommands != null) {
+            config.setProperty("resetCommands", resetCommands);
+        }
+        if (seeded) {
+            config.setProperty("seed", String.valueOf(seed));
+        }
+        // user numbers are shared out in turn so they stay unique
+        config.setProperty("firstUser", String.valueOf(firstUser + index * userStride));
+        config.setProperty("userStride", String.valueOf(userStride * workers));
+        config.setProperty("users", String.valueOf(share(users, index, workers)));
+        if (arrivalRate > 0) {
+            config.setProperty("arrivalRate", String.valueOf(arrivalRate / workers));
+            config.setProperty("maxInFlight", String.valueOf((maxInFlight + workers - 1) / workers));
+            config.setProperty("iterations", String.valueOf(share(iterations, index, workers)));
+        } else {
+            config.setProperty("iterations", String.valueOf(iterations));
+        }
+        return config;
+    }
+
+    private static int share(int total, int index, int workers) {
+        return total / workers + (index < total % workers ? 1 : 0);
+    }
+
+    /**
+     * Configures this task as a forked worker.
+     * 
+     * @param config settings from {@link #shardConfig(int, int, List)}, not null
+     * @param output receives the results, not null
+     */
+    void configureShard(Properties config, ShardWorker output) {
+        shardOutput = output;
+        for (int i = 0; config.getProperty("host." + i + ".alias") != null; i++) {
+            remoteHosts.add(new RemoteHost(config.getProperty("host." + i + ".host"),
+                    Integer.parseInt(config.getProperty("host." + i + ".port")), config.getProperty("host." + i + ".alias")));
+        }
+        scripts = new Union();
+        for (int i = 0; config.getProperty("script." + i) != null; i++) {
+            scripts.add(new FileResource(new File(config.getProperty("script." + i + ".base")), config.getProperty("script." + i)));
+        }
+        shabang = config.getProperty("shabang");
+        quiet = Boolean.valueOf(config.getProperty("quiet")).booleanValue();
+        timeout = Long.parseLong(config.getProperty("timeout"));
+        virtualThreads = Boolean.valueOf(config.getProperty("virtualThreads")).booleanValue();
+        users = Integer.parseInt(config.getProperty("users"));
+        rampUp = Long.parseLong(config.getProperty("rampUp"));
+        duration = Long.parseLong(config.getProperty("duration"));
+        iterations = Integer.parseInt(config.getProperty("iterations"));
+        selectorThreads = Integer.parseInt(config.getProperty("selectorThreads"));
+        reportLatency = Boolean.valueOf(config.getProperty("reportLatency")).booleanValue();
+        expectedLatency = Long.parseLong(config.getProperty("expectedLatency"));
+        streaming = Boolean.valueOf(config.getProperty("streaming")).booleanValue();
+        pipelineDepth = Integer.parseInt(config.getProperty("pipelineDepth"));
+        wireCapture = Integer.parseInt(config.getProperty("wireCapture"));
+        asyncLogging = Boolean.valueOf(config.getProperty("asyncLogging")).booleanValue();
+        keepSessions = Boolean.valueOf(config.getProperty("keepSessions")).booleanValue();
+        resetCommands = config.getProperty("resetCommands");
+        if (config.getProperty("seed") != null) {
+            setSeed(Long.parseLong(config.getProperty("seed")));
+        }
+        firstUser = Integer.parseInt(config.getProperty("firstUser"));
+        userStride = Integer.parseInt(config.getProperty("userStride"));
+        if (config.getProperty("arrivalRate") != null) {
+            arrivalRate = Double.parseDouble(config.getProperty("arrivalRate"));
+            maxInFlight = Integer.parseInt(config.getProperty("maxInFlight"));
+        }
+    }
+
+    /**
+     * Creates a session for each remote host.
+     * @return sessions by alias, not null
+     */
+    private Map<String, Session> newSessionMap() {
     	Map<String, Session> sessionMap = new HashMap<String, Session>();
     	for (RemoteHost remoteHost : remoteHosts) {
-            ExternalHostSystem factory = new ExternalHostSystem(remoteHost.getAlias(), remoteHost.getHost(), remoteHost.getPort(), this, getShabang(), null);
+            ExternalHostSystem factory = new ExternalHostSystem(remoteHost.getAlias(), remoteHost.getHost(), remoteHost.getPort(), monitor(), getShabang(), null);
+            factory.setTimeout(timeout);
+            factory.setBlocking(virtualThreads);
+            factory.setWireCapture(wireCapture);
             debug("creating new session for "+ remoteHost.getAlias());
             Session session = factory.newSession();
             sessionMap.put(remoteHost.getAlias(), session);
 		}
-    	
+    	return sessionMap;
+    }
+
+    /**
+     * Creates a builder, with its own variables.
+     * @param latencyRecorder null when latencies are not recorded
+     * @return not null
+     * @throws BuildException when the attributes are not valid
+     */
+    private static ScriptCache scriptCache(int size) {
+        synchronized (SCRIPT_CACHES) {
+            ScriptCache cache = SCRIPT_CACHES.get(size);
+            if (cache == null) {
+                cache = new ScriptCache(size);
+                SCRIPT_CACHES.put(size, cache);
+            }
+            return cache;
+        }
+    }
+
+    private ProtocolSessionBuilder newBuilder(LatencyRecorder latencyRecorder) throws BuildException {
         final ProtocolSessionBuilder builder = new ProtocolSessionBuilder();
-        DateFormat df = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss Z");
+        try {
+            builder.setPipelineDepth(pipelineDepth);
+        } catch (IllegalArgumentException e) {
+            throw new BuildException(e.getMessage(), e);
+        }
+        if (scriptCacheSize > 0) {
+            builder.setScriptCache(scriptCache(scriptCacheSize));
+        }
+        builder.setLatencyRecorder(latencyRecorder);
+        return builder;
+    }
+
+    /**
+     * Runs a script.
+     * 
+     * @param resource the script, not null
+     * @param sessionMap sessions by alias, not null
+     * @param builder not null
+     * @param df formats the timestamp variable, not null
+     * @return true when the script ran, false when it cannot be read
+     * @throws Exception when the script fails
+     */
+    private boolean runScript(Resource resource, Map<String, Session> sessionMap, ProtocolSessionBuilder builder, DateFormat df) throws Exception {
+        monitor().note(" --- Running script: " + resource.getName() + " --- ");
+        final Runner runner = new Runner();
+        runner.setSessionPool(sessionPool);
+
+        Date current = new Date();
         
-        if (scripts == null) {
-            scripts = new Union();
-            scripts.add(new FileResource(script));
+        builder.setVariable(TIMESTAMP, df.format(current));
+        builder.setVariable(MILLIS, String.valueOf(new Date().getTime()));
+        
+        if (streaming && users == 0 && arrivalRate == 0) {
+            final InputStream in = open(resource);
+            if (in == null) {
+                return false;
+            }
+            final ProtocolSession testScript = (ProtocolSession) builder.buildStreamingProtocolSession(resource.getName(), 
+                    new InputStreamReader(in), sessionMap, StreamingProtocolSession.DEFAULT_CAPACITY);
+            testScript.setRandom(newRandom(0));
+            runner.runSessions(testScript);
+            return true;
         }
         
-        String singleFile = getProject().getProperty("single.file");
+        // variables are substituted when the script runs so cached scripts stay valid
+        final long lastModified = resource.getLastModified();
+        ProtocolScript compiled = builder.getCachedScript(resource.getName(), lastModified);
+        if (compiled == null) {
+            final InputStream in = open(resource);
+            if (in == null) {
+                return false;
+            }
+            compiled = builder.compileScript(resource.getName(), lastModified, in);
+        }
         
-        for (final Iterator<Resource> it=scripts.iterator();it.hasNext();) {
-            final Resource resource = it.next();
-            
-            // if a the single.file property is set on the command line, then just run that script only
-            if ((singleFile != null) && (! resource.getName().contains(singleFile))) {
-				continue;
-			}
+        if (users > 0 || arrivalRate > 0) {
+            new LoadRun(this, monitor(), sessionPool, shardOutput).run(resource.getName(), compiled, builder);
+            return true;
+        }
             
-            note(" --- Running script: " + resource.getName() + " --- ");
-            try {
-                final Runner runner = new Runner();
+        ProtocolInteractor testScript = builder.buildProtocolSession(compiled, sessionMap);
+        ((ProtocolSession) testScript).setRandom(newRandom(0));
+        runner.runSessions(testScript);
+        return true;
+    }
 
-                try {
-                    Date current = new Date();
-                    
-                    final InputStream inputStream = resource.getInputStream();
-                    builder.setVariable(TIMESTAMP, df.format(current));
-                    builder.setVariable(MILLIS, String.valueOf(new Date().getTime()));
-                    
-                    ProtocolInteractor testScript = builder.buildProtocolSession(resource.getName(), inputStream, sessionMap);
-                    runner.runSessions(testScript);
-                    
-                } catch (UnsupportedOperationException e) {
-                    log("Resource cannot be read: " + resource.getName(), Project.MSG_WARN);
-                }
-            } catch (IOException e) {
-                throw new BuildException("Cannot load script " + resource.getName(), e);
-            } catch (Exception e) {
-                log(e.getMessage(), Project.MSG_ERR);
-                throw new BuildException("[FAILURE] in script " + resource.getName() + "\n" + e.getMessage(), e);
+    /**
+     * Opens a script, warning when it cannot be read.
+     * @param resource not null
+     * @return the content, or null when the resource cannot be read
+     * @throws IOException
+     */
+    private InputStream open(Resource resource) throws IOException {
+        try {
+            return resource.getInputStream();
+        } catch (UnsupportedOperationException e) {
+            flushMonitor();
+            log("Resource cannot be read: " + resource.getName(), Project.MSG_WARN);
+            return null;
+        }
+    }
+
+    /**
+     * Runs scripts on concurrent workers.
+     * 
+     * Each worker has its own sessions and variables and takes the next
+     * script when it has run the last. Scripts expected to take longest
+     * are taken first. Every script is run, and the
+     * failures reported together once all have finished.
+     * 
+     * @param resources the scripts, not null
+     * @param latencyRecorder null when latencies are not recorded
+     * @throws BuildException when any script fails
+     */
+    private void runParallel(final List<Resource> resources, final LatencyRecorder latencyRecorder) throws BuildException {
+        // longest first, so a long script started last does not hold up the others
+        final Queue<Resource> pending = new ConcurrentLinkedQueue<Resource>(history.getDurations().longestFirst(resources));
+        final List<BuildException> failures = Collections.synchronizedList(new ArrayList<BuildException>());
+        final int workers = Math.min(threads, resources.size());
+        final CountDownLatch finished = new CountDownLatch(workers);
+        final ExecutorService executor = Runner.newThreadPerScriptExecutor(virtualThreads);
+        try {
+            for (int i = 0; i < workers; i++) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            final Map<String, Session> sessionMap = newSessionMap();
+                            final ProtocolSessionBuilder builder = newBuilder(latencyRecorder);
+                            final DateFormat df = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss Z");
+                            Resource resource;
+                            while ((resource = pending.poll()) != null) {
+                                try {
+                                    final long start = System.currentTimeMillis();
+                                    if (runScript(resource, sessionMap, builder, df)) {
+                                        history.recordDuration(resource.getName(), System.currentTimeMillis() - start);
+                                        history.recordOutcome(resource.getName(), true);
+                                    } else {
+                                        history.recordOutcome(resource.getName(), false);
+                                    }
+                                } catch (IOException e) {
+                                    history.recordOutcome(resource.getName(), false);
+                                    failures.add(new BuildException("Cannot load script " + resource.getName(), e));
+                                } catch (Exception e) {
+                                    history.recordOutcome(resource.getName(), false);
+                                    flushMonitor();
+                                    log(e.getMessage(), Project.MSG_ERR);
+                                    failures.add(new BuildException("[FAILURE] in script " + resource.getName() + "\n" + e.getMessage(), e));
+                                }
+                            }
+                        } catch (BuildException e) {
+                            failures.add(e);
+                        } finally {
+                            finished.countDown();
+                        }
+                    }
+                });
             }
-            
+            finished.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted running scripts", e);
+        } finally {
+            executor.shutdown();
         }
-    
+        
+        if (failures.size() == 1) {
+            throw failures.get(0);
+        } else if (!failures.isEmpty()) {
+            final StringBuilder message = new StringBuilder();
+            message.append(failures.size()).append(" of ").append(resources.size()).append(" scripts failed");
+            for (Iterator<BuildException> iterator = failures.iterator(); iterator.hasNext();) {
+                message.append('\n').append(iterator.next().getMessage());
+            }
+            throw new BuildException(message.toString(), failures.get(0));
+        }
+    }
+
+    /**
+     * Creates the think time generator for a virtual user.
+     * @param user index of the user
+     * @return generator seeded from the seed and user, null when no seed is set
+     */
+    Random newRandom(int user) {
+        if (!seeded) {
+            return null;
+        }
+        // spread the bits so neighbouring users draw unrelated sequences
+        long mixed = seed + (user + 1) * 0x9E3779B97F4A7C15L;
+        mixed = (mixed ^ (mixed >>> 30)) * 0xBF58476D1CE4E5B9L;
+        mixed = (mixed ^ (mixed >>> 27)) * 0x94D049BB133111EBL;
+        return new Random(mixed ^ (mixed >>> 31));
+    }
+
+    /**
+     * Quiet tasks do not build progress messages.
+     */
+    public boolean isNoteEnabled() {
+        return !quiet;
+    }
+
+    public boolean isDebugEnabled() {
+        return !quiet;
     }
 
     public void note(String message) {
@@ -0,0 +1,221 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.antlib;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Properties;
+
+import org.apache.james.mpt.ProtocolSessionBuilder;
+import org.apache.tools.ant.types.Resource;
+
+/**
+ * <p>The outcome of each script when it last ran, kept between builds.</p>
+ * <p>
+ * Each script is kept with a fingerprint of its content and of the
+ * files it attaches, so a script which passed and has not changed since
+ * need not run again. Outcomes only hold for the hosts they were run
+ * against, so they are all forgotten when the hosts change.
+ * </p>
+ */
+final class ResultStore {
+
+    private static final String HOSTS = "hosts";
+
+    private static final String SCRIPT_PREFIX = "script.";
+
+    private static final String FINGERPRINT_SUFFIX = ".fingerprint";
+
+    private static final String OUTCOME_SUFFIX = ".outcome";
+
+    private static final String PASSED = "passed";
+
+    private static final String FAILED = "failed";
+
+    private final Properties properties = new Properties();
+
+    /**
+     * Reads the outcomes from a file.
+     * @param file not null
+     * @return outcomes read, empty when the file does not exist
+     * @throws IOException
+     */
+    public static ResultStore load(File file) throws IOException {
+        final ResultStore result = new ResultStore();
+        if (file.exists()) {
+            final InputStream in = new FileInputStream(file);
+            try {
+                result.properties.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes the outcomes to a file.
+     * @param file not null
+     * @throws IOException
+     */
+    public synchronized void store(File file) throws IOException {
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            properties.store(out, "Script outcomes");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Checks the outcomes were for the given hosts, forgetting them
+     * when they were not.
+     * @param hosts describes the hosts scripts run against, not null
+     * @return true when the outcomes are kept,
+     * false when they were forgotten
+     */
+    public synchronized boolean useHosts(String hosts) {
+        final String fingerprint = fingerprint(hosts.getBytes());
+        if (fingerprint.equals(properties.getProperty(HOSTS))) {
+            return true;
+        }
+        properties.clear();
+        properties.setProperty(HOSTS, fingerprint);
+        return false;
+    }
+
+    /**
+     * Is the script known to pass as it is?
+     * @param name script name, not null
+     * @param fingerprint fingerprint of the script as it is now, not null
+     * @return true when the script passed when it last ran, and has not changed since
+     */
+    public synchronized boolean isPassed(String name, String fingerprint) {
+        return fingerprint.equals(properties.getProperty(SCRIPT_PREFIX + name + FINGERPRINT_SUFFIX))
+            && PASSED.equals(properties.getProperty(SCRIPT_PREFIX + name + OUTCOME_SUFFIX));
+    }
+
+    /**
+     * Records the outcome of a script.
+     * @param name script name, not null
+     * @param fingerprint fingerprint of the script run, not null
+     * @param passed true when the script passed
+     */
+    public synchronized void record(String name, String fingerprint, boolean passed) {
+        properties.setProperty(SCRIPT_PREFIX + name + FINGERPRINT_SUFFIX, fingerprint);
+        properties.setProperty(SCRIPT_PREFIX + name + OUTCOME_SUFFIX, passed ? PASSED : FAILED);
+    }
+
+    /**
+     * Computes the fingerprint of a script and of the files it attaches.
+     * @param resource the script, not null
+     * @return not null
+     * @throws IOException when the script cannot be read
+     */
+    public static String fingerprint(Resource resource) throws IOException {
+        final byte[] content = read(resource.getInputStream());
+        final MessageDigest digest = newDigest();
+        digest.update(content);
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(content)));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith(ProtocolSessionBuilder.ATTACHMENT_TAG)) {
+                // named as the builder names them
+                final File file = new File(line.split("=")[1]);
+                digest.update(line.getBytes());
+                if (file.isFile()) {
+                    digest.update(read(new FileInputStream(file)));
+                }
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    private static String fingerprint(byte[] bytes) {
+        return toHex(newDigest().digest(bytes));
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM supports SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        final StringBuilder result = new StringBuilder(bytes.length * 2);
+        for (int i = 0; i < bytes.length; i++) {
+            result.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16));
+            result.append(Character.forDigit(bytes[i] & 0xF, 16));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Constructs a <code>String</code> with all attributes
+     * in name = value format.
+     *
+     * @return a <code>String</code> representation
+     * of this object.
+     */
+    public synchronized String toString()
+    {
+        final String TAB = " ";
+
+        int scripts = 0;
+        for (Iterator<String> iterator = properties.stringPropertyNames().iterator(); iterator.hasNext();) {
+            if (iterator.next().endsWith(OUTCOME_SUFFIX)) {
+                scripts++;
+            }
+        }
+        String result  = "ResultStore ( "
+            + "scripts = " + scripts + TAB
+            + " )";
+
+        return result;
+    }
+}
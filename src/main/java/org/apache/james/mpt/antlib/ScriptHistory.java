@@ -0,0 +1,218 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+package org.apache.james.mpt.antlib;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.types.Resource;
+
+/**
+ * <p>What is known of each script from earlier builds.</p>
+ * <p>
+ * Durations are kept in a {@link DurationHistory} when a history file
+ * is set, and outcomes in a {@link ResultStore} when a results file is
+ * set. In incremental runs, scripts which passed and have not changed
+ * since are left out. A forked worker keeps neither: it reports
+ * durations and outcomes to the forking task, which keeps them.
+ * </p>
+ */
+final class ScriptHistory {
+
+    private final Task task;
+
+    private final File historyFile;
+
+    private final File resultsFile;
+
+    private final boolean incremental;
+
+    private final ShardWorker shardOutput;
+
+    private DurationHistory durationHistory;
+
+    private ResultStore resultStore;
+
+    /** Fingerprints of the scripts selected, by name */
+    private final Map<String, String> fingerprints = new HashMap<String, String>();
+
+    /**
+     * @param task logs problems with the files, not null
+     * @param historyFile null when durations are not kept
+     * @param resultsFile null when outcomes are not kept
+     * @param incremental true to leave out scripts which passed and
+     * have not changed since
+     * @param shardOutput null unless running as a forked worker
+     */
+    public ScriptHistory(Task task, File historyFile, File resultsFile, boolean incremental, ShardWorker shardOutput) {
+        this.task = task;
+        this.historyFile = historyFile;
+        this.resultsFile = resultsFile;
+        this.incremental = incremental;
+        this.shardOutput = shardOutput;
+    }
+
+    /**
+     * Reads what was kept by earlier builds.
+     * A file which cannot be read is reported and treated as empty.
+     * @param hosts describes the hosts scripts run against, not null
+     */
+    public void load(String hosts) {
+        if (resultsFile != null) {
+            try {
+                resultStore = ResultStore.load(resultsFile);
+            } catch (IOException e) {
+                task.log("Cannot read script outcomes from " + resultsFile + ": " + e.getMessage(), Project.MSG_WARN);
+                resultStore = new ResultStore();
+            }
+            if (!resultStore.useHosts(hosts) && incremental) {
+                task.log("No outcomes are kept for these hosts, running every script", Project.MSG_INFO);
+            }
+        }
+        if (historyFile != null) {
+            try {
+                durationHistory = DurationHistory.load(historyFile);
+            } catch (IOException e) {
+                task.log("Cannot read script durations from " + historyFile + ": " + e.getMessage(), Project.MSG_WARN);
+                durationHistory = new DurationHistory();
+            }
+        }
+    }
+
+    /**
+     * Writes what was learnt by this build.
+     * A file which cannot be written is reported.
+     */
+    public void store() {
+        if (durationHistory != null) {
+            try {
+                durationHistory.store(historyFile);
+            } catch (IOException e) {
+                task.log("Cannot write script durations to " + historyFile + ": " + e.getMessage(), Project.MSG_WARN);
+            }
+            durationHistory = null;
+        }
+        if (resultStore != null) {
+            try {
+                resultStore.store(resultsFile);
+            } catch (IOException e) {
+                task.log("Cannot write script outcomes to " + resultsFile + ": " + e.getMessage(), Project.MSG_WARN);
+            }
+            resultStore = null;
+            fingerprints.clear();
+        }
+    }
+
+    /**
+     * Selects a script, noting its fingerprint so its outcome can be kept.
+     * @param resource the script, not null
+     * @return true when the script is to run, false when it passed and
+     * has not changed since, in an incremental run
+     * @throws IOException when the script cannot be read
+     */
+    public boolean select(Resource resource) throws IOException {
+        if (resultStore == null) {
+            return true;
+        }
+        try {
+            final String fingerprint = ResultStore.fingerprint(resource);
+            fingerprints.put(resource.getName(), fingerprint);
+            return !(incremental && resultStore.isPassed(resource.getName(), fingerprint));
+        } catch (UnsupportedOperationException e) {
+            // reported when the script runs
+            return true;
+        }
+    }
+
+    /**
+     * Keeps the outcome of a script.
+     * @param name script name, not null
+     * @param passed true when the script passed
+     */
+    public void recordOutcome(String name, boolean passed) {
+        if (shardOutput != null) {
+            // the forking task keeps the outcomes
+            try {
+                shardOutput.outcome(name, passed);
+            } catch (IOException e) {
+                task.log("Cannot report outcome: " + e.getMessage(), Project.MSG_ERR);
+            }
+        } else if (resultStore != null) {
+            final String fingerprint = fingerprints.get(name);
+            if (fingerprint != null) {
+                resultStore.record(name, fingerprint, passed);
+            }
+        }
+    }
+
+    /**
+     * Keeps how long a script took, once it has passed.
+     * @param name script name, not null
+     * @param millis duration in milliseconds
+     */
+    public void recordDuration(String name, long millis) {
+        if (shardOutput != null) {
+            // the forking task keeps the durations
+            try {
+                shardOutput.duration(name, millis);
+            } catch (IOException e) {
+                task.log("Cannot report duration: " + e.getMessage(), Project.MSG_ERR);
+            }
+        } else if (durationHistory != null) {
+            durationHistory.record(name, millis);
+        }
+    }
+
+    /**
+     * Gets the durations used to order scripts.
+     * @return not null, empty when durations are not kept
+     */
+    public DurationHistory getDurations() {
+        if (durationHistory == null) {
+            return new DurationHistory();
+        }
+        return durationHistory;
+    }
+
+    /**
+     * Constructs a <code>String</code> with all attributes
+     * in name = value format.
+     *
+     * @return a <code>String</code> representation
+     * of this object.
+     */
+    public String toString()
+    {
+        final String TAB = " ";
+
+        String result  = "ScriptHistory ( "
+            + "historyFile = " + this.historyFile + TAB
+            + "resultsFile = " + this.resultsFile + TAB
+            + "incremental = " + this.incremental + TAB
+            + " )";
+
+        return result;
+    }
+}
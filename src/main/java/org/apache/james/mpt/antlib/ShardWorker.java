@@ -0,0 +1,347 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.antlib;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.james.mpt.Histogram;
+import org.apache.james.mpt.LatencyRecorder;
+import org.apache.james.mpt.LoadGenerator;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DefaultLogger;
+import org.apache.tools.ant.Project;
+
+/**
+ * <p>Runs a share of the scripts or virtual users of a
+ * {@link MailProtocolTestTask} in a forked JVM.</p>
+ * <p>
+ * The task settings are read as properties from standard input.
+ * Results are written to standard output as a stream of records, which
+ * the forking task reads and merges with those of the other workers.
+ * Log messages go to standard error.
+ * </p>
+ */
+public final class ShardWorker {
+
+    private static final byte LOAD = 'L';
+
+    private static final byte START_LAG = 'S';
+
+    private static final byte LATENCIES = 'T';
+
+    private static final byte FAILURE = 'F';
+
+    private static final byte DURATION = 'D';
+
+    private static final byte OUTCOME = 'O';
+
+    private static final byte END = 'E';
+
+    /** Characters of a failure message written */
+    private static final int MAX_MESSAGE_LENGTH = 16 * 1024;
+
+    private final DataOutputStream out;
+
+    private boolean failed = false;
+
+    ShardWorker(DataOutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Runs the worker.
+     *
+     * @param args not used
+     */
+    public static void main(String[] args) {
+        // results own standard output
+        final PrintStream results = System.out;
+        System.setOut(System.err);
+        final ShardWorker worker = new ShardWorker(new DataOutputStream(new BufferedOutputStream(results)));
+        try {
+            final Properties config = new Properties();
+            config.load(System.in);
+
+            final Project project = new Project();
+            project.init();
+            final MailProtocolTestTask task = new MailProtocolTestTask();
+            task.setProject(project);
+            task.setTaskName("mpt");
+            task.configureShard(config, worker);
+
+            final DefaultLogger logger = new DefaultLogger();
+            logger.setOutputPrintStream(System.err);
+            logger.setErrorPrintStream(System.err);
+            // the forking task adds its own prefix
+            logger.setEmacsMode(true);
+            logger.setMessageOutputLevel(Project.MSG_INFO);
+            project.addBuildListener(logger);
+            try {
+                task.execute();
+            } catch (BuildException e) {
+                worker.failure(e.getMessage());
+            }
+            worker.end();
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(2);
+        }
+        System.exit(worker.failed ? 1 : 0);
+    }
+
+    /**
+     * Writes the outcome of a load.
+     * @param name script name, not null
+     * @param result not null
+     * @param startLag null when runs were not scheduled
+     */
+    synchronized void load(String name, LoadGenerator.Result result, Histogram startLag) throws IOException {
+        out.writeByte(LOAD);
+        out.writeUTF(name);
+        result.writeTo(out);
+        if (startLag != null) {
+            out.writeByte(START_LAG);
+            out.writeUTF(name);
+            startLag.writeTo(out);
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the latencies recorded.
+     * @param latencyRecorder not null
+     */
+    synchronized void latencies(LatencyRecorder latencyRecorder) throws IOException {
+        out.writeByte(LATENCIES);
+        latencyRecorder.writeTo(out);
+        out.flush();
+    }
+
+    /**
+     * Writes how long a script took.
+     * @param name script name, not null
+     * @param millis duration in milliseconds
+     */
+    synchronized void duration(String name, long millis) throws IOException {
+        out.writeByte(DURATION);
+        out.writeUTF(name);
+        out.writeLong(millis);
+        out.flush();
+    }
+
+    /**
+     * Writes whether a script passed.
+     * @param name script name, not null
+     * @param passed true when the script passed
+     */
+    synchronized void outcome(String name, boolean passed) throws IOException {
+        out.writeByte(OUTCOME);
+        out.writeUTF(name);
+        out.writeBoolean(passed);
+        out.flush();
+    }
+
+    /**
+     * Writes a failure.
+     * @param message not null
+     */
+    synchronized void failure(String message) throws IOException {
+        failed = true;
+        out.writeByte(FAILURE);
+        out.writeUTF(message.length() > MAX_MESSAGE_LENGTH ? message.substring(0, MAX_MESSAGE_LENGTH) + "..." : message);
+        out.flush();
+    }
+
+    synchronized void end() throws IOException {
+        out.writeByte(END);
+        out.flush();
+    }
+
+    /**
+     * The results read from the workers, merged.
+     * Safe to read into from several threads.
+     */
+    static final class Results {
+
+        private final Map<String, LoadGenerator.Result> loads = new LinkedHashMap<String, LoadGenerator.Result>();
+
+        private final Map<String, Histogram> startLags = new LinkedHashMap<String, Histogram>();
+
+        private final LatencyRecorder latencyRecorder = new LatencyRecorder();
+
+        private final List<String> failures = new ArrayList<String>();
+
+        private final Map<String, Long> durations = new LinkedHashMap<String, Long>();
+
+        private final Map<String, Boolean> outcomes = new LinkedHashMap<String, Boolean>();
+
+        /**
+         * Reads the results of a worker, until it ends.
+         *
+         * @param in standard output of the worker, not null
+         * @return true when the worker ended normally,
+         * false when the stream ended early
+         * @throws IOException
+         */
+        public boolean read(DataInputStream in) throws IOException {
+            try {
+                while (true) {
+                    final byte type = in.readByte();
+                    switch (type) {
+                        case LOAD:
+                            add(in.readUTF(), LoadGenerator.Result.readFrom(in));
+                            break;
+                        case START_LAG:
+                            add(in.readUTF(), Histogram.readFrom(in));
+                            break;
+                        case LATENCIES:
+                            latencyRecorder.readFrom(in);
+                            break;
+                        case FAILURE:
+                            addFailure(in.readUTF());
+                            break;
+                        case DURATION:
+                            add(in.readUTF(), in.readLong());
+                            break;
+                        case OUTCOME:
+                            add(in.readUTF(), in.readBoolean());
+                            break;
+                        case END:
+                            return true;
+                        default:
+                            throw new IOException("Unknown result record " + type);
+                    }
+                }
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        private synchronized void add(String name, LoadGenerator.Result result) {
+            final LoadGenerator.Result merged = loads.get(name);
+            if (merged == null) {
+                loads.put(name, result);
+            } else {
+                merged.add(result);
+            }
+        }
+
+        private synchronized void add(String name, Histogram startLag) {
+            final Histogram merged = startLags.get(name);
+            if (merged == null) {
+                startLags.put(name, startLag);
+            } else {
+                merged.add(startLag);
+            }
+        }
+
+        private synchronized void add(String name, long millis) {
+            // workers running the same script finish together
+            final Long merged = durations.get(name);
+            if (merged == null || merged.longValue() < millis) {
+                durations.put(name, millis);
+            }
+        }
+
+        private synchronized void add(String name, boolean passed) {
+            // a script passes only when it passed on every worker running it
+            final Boolean merged = outcomes.get(name);
+            outcomes.put(name, Boolean.valueOf(passed && (merged == null || merged.booleanValue())));
+        }
+
+        synchronized void addFailure(String message) {
+            failures.add(message);
+        }
+
+        /**
+         * @return merged outcome of each load, by script name, not null
+         */
+        public synchronized Map<String, LoadGenerator.Result> getLoads() {
+            return new LinkedHashMap<String, LoadGenerator.Result>(loads);
+        }
+
+        /**
+         * @param name script name, not null
+         * @return merged start lag, null when runs were not scheduled
+         */
+        public synchronized Histogram getStartLag(String name) {
+            return startLags.get(name);
+        }
+
+        /**
+         * @return latencies of every worker, not null
+         */
+        public LatencyRecorder getLatencyRecorder() {
+            return latencyRecorder;
+        }
+
+        /**
+         * @return how long each script took in milliseconds,
+         * by script name, not null
+         */
+        public synchronized Map<String, Long> getDurations() {
+            return new LinkedHashMap<String, Long>(durations);
+        }
+
+        /**
+         * @return whether each script reported passed on every worker
+         * running it, by script name, not null
+         */
+        public synchronized Map<String, Boolean> getOutcomes() {
+            return new LinkedHashMap<String, Boolean>(outcomes);
+        }
+
+        /**
+         * @return failure messages of the workers, not null
+         */
+        public synchronized List<String> getFailures() {
+            return new ArrayList<String>(failures);
+        }
+
+        /**
+         * Constructs a <code>String</code> with all attributes
+         * in name = value format.
+         *
+         * @return a <code>String</code> representation
+         * of this object.
+         */
+        public synchronized String toString()
+        {
+            final String TAB = " ";
+
+            String result  = "Results ( "
+                + "loads = " + this.loads.keySet() + TAB
+                + "failures = " + this.failures.size() + TAB
+                + " )";
+
+            return result;
+        }
+    }
+}
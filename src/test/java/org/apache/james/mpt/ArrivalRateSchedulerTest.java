@@ -0,0 +1,166 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+package org.apache.james.mpt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ArrivalRateSchedulerTest {
+
+    private ExecutorService executor;
+
+    private final AtomicInteger users = new AtomicInteger();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicInteger mostInFlight = new AtomicInteger();
+
+    private final List<Long> intendedStarts = Collections.synchronizedList(new ArrayList<Long>());
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Creates users whose runs take the given time.
+     */
+    private LoadGenerator.VirtualUserFactory factory(final long runMillis) {
+        return new LoadGenerator.VirtualUserFactory() {
+            public LoadGenerator.VirtualUser newUser(int index) {
+                users.incrementAndGet();
+                return new LoadGenerator.VirtualUser() {
+                    public void runIteration(long intendedStart) throws Exception {
+                        intendedStarts.add(intendedStart);
+                        final int now = inFlight.incrementAndGet();
+                        int most;
+                        while (now > (most = mostInFlight.get()) && !mostInFlight.compareAndSet(most, now)) {
+                            // retry
+                        }
+                        try {
+                            Thread.sleep(runMillis);
+                        } finally {
+                            inFlight.decrementAndGet();
+                        }
+                    }
+                };
+            }
+        };
+    }
+
+    @Test
+    public void runsOnceWithoutLimits() throws Exception {
+        final LoadGenerator.Result result = new ArrivalRateScheduler(10, new QuietMonitor()).run(factory(0), executor);
+        assertEquals(1, result.getPassed());
+        assertEquals(0, result.getFailed());
+    }
+
+    @Test
+    public void startsRunsOnSchedule() throws Exception {
+        final ArrivalRateScheduler scheduler = new ArrivalRateScheduler(100, new QuietMonitor());
+        scheduler.setIterations(20);
+        final LoadGenerator.Result result = scheduler.run(factory(0), executor);
+        assertEquals(20, result.getPassed());
+        assertTrue("Elapsed " + result.getElapsed(), result.getElapsed() >= 185);
+        final List<Long> starts = new ArrayList<Long>(intendedStarts);
+        Collections.sort(starts);
+        for (int i = 1; i < starts.size(); i++) {
+            assertEquals(TimeUnit.MILLISECONDS.toNanos(10), starts.get(i) - starts.get(i - 1), 1);
+        }
+        assertEquals(20, scheduler.getStartLag().getCount());
+    }
+
+    @Test
+    public void doesNotWaitForSlowRuns() throws Exception {
+        final ArrivalRateScheduler scheduler = new ArrivalRateScheduler(100, new QuietMonitor());
+        scheduler.setIterations(10);
+        final LoadGenerator.Result result = scheduler.run(factory(200), executor);
+        assertEquals(10, result.getPassed());
+        // one run after another would take two seconds
+        assertTrue("Elapsed " + result.getElapsed(), result.getElapsed() < 1000);
+        assertEquals(10, users.get());
+        assertTrue(mostInFlight.get() > 1);
+    }
+
+    @Test
+    public void reusesIdleUsers() throws Exception {
+        final ArrivalRateScheduler scheduler = new ArrivalRateScheduler(50, new QuietMonitor());
+        scheduler.setIterations(10);
+        scheduler.run(factory(0), executor);
+        assertTrue("Users " + users.get(), users.get() < 10);
+    }
+
+    @Test
+    public void limitsRunsInFlight() throws Exception {
+        final ArrivalRateScheduler scheduler = new ArrivalRateScheduler(1000, new QuietMonitor());
+        scheduler.setIterations(6);
+        scheduler.setMaxInFlight(2);
+        final LoadGenerator.Result result = scheduler.run(factory(50), executor);
+        assertEquals(6, result.getPassed());
+        assertTrue(mostInFlight.get() <= 2);
+        assertTrue(users.get() <= 2);
+        // runs waiting for a slot start late
+        assertTrue(scheduler.getStartLag().getMax() >= TimeUnit.MILLISECONDS.toMicros(40));
+    }
+
+    @Test
+    public void stopsStartingRunsAfterTheDuration() throws Exception {
+        final ArrivalRateScheduler scheduler = new ArrivalRateScheduler(100, new QuietMonitor());
+        scheduler.setDuration(100);
+        final LoadGenerator.Result result = scheduler.run(factory(0), executor);
+        assertEquals(10, result.getPassed());
+    }
+
+    @Test
+    public void countsFailedRuns() throws Exception {
+        final ArrivalRateScheduler scheduler = new ArrivalRateScheduler(1000, new QuietMonitor());
+        scheduler.setIterations(3);
+        final LoadGenerator.Result result = scheduler.run(new LoadGenerator.VirtualUserFactory() {
+            public LoadGenerator.VirtualUser newUser(int index) throws Exception {
+                throw new Exception("no user");
+            }
+        }, executor);
+        assertEquals(0, result.getPassed());
+        assertEquals(3, result.getFailed());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesRatesWhichAreNotPositive() {
+        new ArrivalRateScheduler(0, new QuietMonitor());
+    }
+}
@@ -0,0 +1,196 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+
+package org.apache.james.mpt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class AsyncMonitorTest {
+
+    /**
+     * Records what it is told, optionally waiting on a latch first.
+     */
+    private static class RecordingMonitor implements Monitor {
+
+        private final List<String> messages = new ArrayList<String>();
+
+        private final CountDownLatch release;
+
+        private final boolean noteEnabled;
+
+        public RecordingMonitor(CountDownLatch release, boolean noteEnabled) {
+            this.release = release;
+            this.noteEnabled = noteEnabled;
+        }
+
+        public void note(String message) {
+            add("note:" + message);
+        }
+
+        public void debug(char character) {
+            add("char:" + character);
+        }
+
+        public void debug(String message) {
+            add("debug:" + message);
+        }
+
+        private void add(String message) {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (messages) {
+                messages.add(message);
+            }
+        }
+
+        public List<String> getMessages() {
+            synchronized (messages) {
+                return new ArrayList<String>(messages);
+            }
+        }
+
+        public boolean isNoteEnabled() {
+            return noteEnabled;
+        }
+
+        public boolean isDebugEnabled() {
+            return true;
+        }
+    }
+
+    @Test
+    public void messagesArePassedOnInOrder() throws Exception {
+        final RecordingMonitor recording = new RecordingMonitor(new CountDownLatch(0), true);
+        final AsyncMonitor monitor = new AsyncMonitor(recording, 4);
+        final List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            monitor.note("n" + i);
+            monitor.debug("d" + i);
+            monitor.debug('c');
+            expected.add("note:n" + i);
+            expected.add("debug:d" + i);
+            expected.add("char:c");
+        }
+        monitor.flush();
+        assertEquals(expected, recording.getMessages());
+        monitor.close();
+    }
+
+    @Test
+    public void eachThreadKeepsItsOrder() throws Exception {
+        final RecordingMonitor recording = new RecordingMonitor(new CountDownLatch(0), true);
+        final AsyncMonitor monitor = new AsyncMonitor(recording, 8);
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final String name = "t" + t + "-";
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 500; i++) {
+                        monitor.note(name + i);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+        }
+        monitor.close();
+        final List<String> messages = recording.getMessages();
+        assertEquals(2000, messages.size());
+        final int[] next = new int[threads.length];
+        for (int i = 0; i < messages.size(); i++) {
+            final String message = messages.get(i);
+            final int thread = message.charAt("note:t".length()) - '0';
+            assertEquals(message, "note:t" + thread + "-" + next[thread], message);
+            next[thread]++;
+        }
+    }
+
+    @Test
+    public void fullBufferMakesCallersWait() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final RecordingMonitor recording = new RecordingMonitor(release, true);
+        final AsyncMonitor monitor = new AsyncMonitor(recording, 2);
+        final CountDownLatch added = new CountDownLatch(1);
+        final Thread caller = new Thread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < 10; i++) {
+                    monitor.note("n" + i);
+                }
+                added.countDown();
+            }
+        });
+        caller.start();
+        // one message held by the writer, two buffered, the rest waiting
+        assertFalse("Caller did not wait", added.await(200, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(added.await(5, TimeUnit.SECONDS));
+        monitor.close();
+        assertEquals(10, recording.getMessages().size());
+        assertEquals("note:n9", recording.getMessages().get(9));
+    }
+
+    @Test
+    public void closePassesOnBufferedMessages() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final RecordingMonitor recording = new RecordingMonitor(release, true);
+        final AsyncMonitor monitor = new AsyncMonitor(recording, 16);
+        for (int i = 0; i < 10; i++) {
+            monitor.note("n" + i);
+        }
+        assertEquals(0, recording.getMessages().size());
+        release.countDown();
+        monitor.close();
+        assertEquals(10, recording.getMessages().size());
+        // passed on by the caller once closed
+        monitor.debug("late");
+        assertEquals("debug:late", recording.getMessages().get(10));
+    }
+
+    @Test
+    public void disabledMessagesAreNotBuffered() throws Exception {
+        final RecordingMonitor recording = new RecordingMonitor(new CountDownLatch(0), false);
+        final AsyncMonitor monitor = new AsyncMonitor(recording, 4);
+        monitor.note("dropped");
+        monitor.debug("kept");
+        monitor.close();
+        assertEquals(Arrays.asList("debug:kept"), recording.getMessages());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBePositive() {
+        new AsyncMonitor(new QuietMonitor(), 0);
+    }
+}
@@ -0,0 +1,109 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+package org.apache.james.mpt;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncSessionTest {
+
+    private static final String BODY_LINE = "0123456789012345678901234567890123456789012345678901234567890123456789\r\n";
+
+    private ServerSocket server;
+
+    private Socket client;
+
+    private AsyncSession session;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0);
+        session = new AsyncSession("h1", new InetSocketAddress("127.0.0.1", server.getLocalPort()), new QuietMonitor(), null);
+        session.start();
+        client = server.accept();
+        while (!session.finishConnect()) {
+            Thread.sleep(1);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        session.stop();
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void binaryBodyIsNotBufferedWhileWaiting() throws Exception {
+        final Map<String, Session> sessions = new HashMap<String, Session>();
+        sessions.put("h1", session);
+        final ProtocolSession script = new ProtocolSession(sessions, new Properties());
+        script.SS("h1");
+        script.SL("Content-Type: multipart/mixed; boundary=\"b1\"", "t:1");
+        script.BINARY_RESPONSE("--b1--", "t:2", null);
+        script.SL("a1 OK done", "t:3");
+
+        send("Content-Type: multipart/mixed; boundary=\"b1\"\r\n");
+        assertFalse(script.resume());
+        final StringBuilder chunk = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            chunk.append(BODY_LINE);
+        }
+        for (int i = 0; i < 50; i++) {
+            // the last line of each chunk is incomplete
+            send(chunk + "0123");
+            assertFalse(script.resume());
+            assertTrue("Retained " + session.getRetained(), session.getRetained() < BODY_LINE.length());
+            send("\r\n");
+        }
+        send("--b1--\r\na1 OK done\r\n");
+        assertTrue(script.resume());
+    }
+
+    private void send(String data) throws Exception {
+        final OutputStream out = client.getOutputStream();
+        out.write(data.getBytes("US-ASCII"));
+        out.flush();
+        int remaining = data.length();
+        while (remaining > 0) {
+            final int read = session.read();
+            if (read < 0) {
+                throw new IllegalStateException("Connection closed");
+            }
+            remaining -= read;
+            if (read == 0) {
+                Thread.sleep(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+
+package org.apache.james.mpt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.james.mpt.ExpectedLine.Kind;
+import org.junit.Test;
+
+public class ExpectedLineTest {
+
+    private static final String META_CHARACTERS = "\\.^$|?*+()[]{}";
+
+    @Test
+    public void plainTextIsLiteral() {
+        assertEquals(Kind.LITERAL, ExpectedLine.compile("a1 OK LOGIN completed").getKind());
+        assertEquals(Kind.LITERAL, ExpectedLine.compile("").getKind());
+    }
+
+    @Test
+    public void escapedPunctuationIsLiteral() {
+        final ExpectedLine line = ExpectedLine.compile("\\* OK \\[READ-WRITE\\] SELECT completed\\.");
+        assertEquals(Kind.LITERAL, line.getKind());
+        assertTrue(line.matches("* OK [READ-WRITE] SELECT completed."));
+        assertFalse(line.matches("* OK [READ-WRITE] SELECT completedX"));
+    }
+
+    @Test
+    public void everyEscapedMetaCharacterIsLiteral() {
+        for (int i = 0; i < META_CHARACTERS.length(); i++) {
+            final char meta = META_CHARACTERS.charAt(i);
+            final ExpectedLine line = ExpectedLine.compile("a\\" + meta + "b");
+            assertEquals(String.valueOf(meta), Kind.LITERAL, line.getKind());
+            assertTrue(String.valueOf(meta), line.matches("a" + meta + "b"));
+        }
+    }
+
+    @Test
+    public void everyMetaCharacterIsRegex() {
+        final String[] expressions = { "a\\\\\\d", "a.b", "^ab", "ab$", "a|b", "ab?", "ab*", "ab+", "(ab)", "[ab]", "a{2}" };
+        for (int i = 0; i < expressions.length; i++) {
+            assertEquals(expressions[i], Kind.REGEX, ExpectedLine.compile(expressions[i]).getKind());
+        }
+        // every meta character is covered
+        for (int i = 0; i < META_CHARACTERS.length(); i++) {
+            boolean covered = false;
+            for (int j = 0; j < expressions.length; j++) {
+                covered |= expressions[j].indexOf(META_CHARACTERS.charAt(i)) >= 0;
+            }
+            assertTrue(String.valueOf(META_CHARACTERS.charAt(i)), covered);
+        }
+    }
+
+    @Test
+    public void escapedLettersAndDigitsAreRegex() {
+        assertEquals(Kind.REGEX, ExpectedLine.compile("\\* \\d+ EXISTS").getKind());
+        assertEquals(Kind.REGEX, ExpectedLine.compile("a\\Q.\\E").getKind());
+        assertEquals(Kind.REGEX, ExpectedLine.compile("(a)\\1").getKind());
+    }
+
+    @Test
+    public void trailingWildcardIsPrefix() {
+        final ExpectedLine any = ExpectedLine.compile("\\* OK .*");
+        assertEquals(Kind.PREFIX, any.getKind());
+        assertTrue(any.matches("* OK "));
+        assertTrue(any.matches("* OK ready"));
+        assertFalse(any.matches("* NO ready"));
+        final ExpectedLine some = ExpectedLine.compile("a1 OK .+");
+        assertEquals(Kind.PREFIX, some.getKind());
+        assertFalse(some.matches("a1 OK "));
+        assertTrue(some.matches("a1 OK done"));
+    }
+
+    @Test
+    public void escapedWildcardIsNotPrefix() {
+        // an escaped dot repeated
+        assertEquals(Kind.REGEX, ExpectedLine.compile("a1 \\.*").getKind());
+        // an escaped backslash, then any characters
+        final ExpectedLine line = ExpectedLine.compile("a1\\\\.*");
+        assertEquals(Kind.PREFIX, line.getKind());
+        assertTrue(line.matches("a1\\ rest"));
+    }
+
+    @Test
+    public void matchesAsTheRegularExpression() {
+        final String[] expected = { "a1 OK done", "\\* OK .*", "a1 OK .+", "\\* \\d+ EXISTS", "a1 (OK|NO) .*",
+                "\\+ Ready", "\\[x\\]", "a1\\\\.*" };
+        final String[] actual = { "a1 OK done", "a1 OK done ", "* OK ", "* OK\r\nx", "* OK x\ny", "a1 OK ", "a1 OK x",
+                "* 12 EXISTS", "* x EXISTS", "a1 NO no", "+ Ready", "+ Ready ", "[x]", "x", "", "a1\\", "a1\\\n" };
+        for (int i = 0; i < expected.length; i++) {
+            final ExpectedLine line = ExpectedLine.compile(expected[i]);
+            final Pattern pattern = Pattern.compile(expected[i]);
+            for (int j = 0; j < actual.length; j++) {
+                assertEquals(expected[i] + " ~ " + actual[j], pattern.matcher(actual[j]).matches(), line.matches(actual[j]));
+            }
+        }
+    }
+
+    @Test
+    public void capturesGroups() {
+        final Matcher matcher = ExpectedLine.compile("\\* 1 FETCH \\(UID (\\d+)\\)").matcher("* 1 FETCH (UID 42)");
+        assertTrue(matcher.find());
+        assertEquals("42", matcher.group(1));
+    }
+
+    @Test(expected = PatternSyntaxException.class)
+    public void invalidExpressionFailsToCompile() {
+        ExpectedLine.compile("a(b");
+    }
+}
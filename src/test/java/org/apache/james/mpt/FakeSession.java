@@ -0,0 +1,134 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A session answering with lines given in advance, recording what is sent.
+ * Lines are handed out as a reused buffer, as real sessions do, and every
+ * copy of a line into a <code>String</code> is counted.
+ */
+public class FakeSession implements Session {
+
+    private final LinkedList<String> responses = new LinkedList<String>();
+
+    private final List<String> sent = new ArrayList<String>();
+
+    private final CountingLine line = new CountingLine();
+
+    private int started = 0;
+
+    private int stopped = 0;
+
+    /**
+     * Queues lines for the session to read.
+     * @param lines not null
+     * @return this session
+     */
+    public FakeSession respond(String... lines) {
+        for (int i = 0; i < lines.length; i++) {
+            responses.add(lines[i]);
+        }
+        return this;
+    }
+
+    public String readLine() throws Exception {
+        return readLineSequence().toString();
+    }
+
+    public CharSequence readLineSequence() throws Exception {
+        if (responses.isEmpty()) {
+            throw new EOFException("No more responses");
+        }
+        line.text = responses.removeFirst();
+        return line;
+    }
+
+    public void writeLine(String line) throws Exception {
+        sent.add(line);
+    }
+
+    public void start() throws Exception {
+        started++;
+    }
+
+    public void stop() throws Exception {
+        stopped++;
+    }
+
+    public void writeData(Attachment attachment) throws IOException {
+        sent.add(new String(attachment.getData(), "ISO-8859-1"));
+    }
+
+    public WireCapture getWireCapture() {
+        return null;
+    }
+
+    /**
+     * @return lines written, in order
+     */
+    public List<String> getSent() {
+        return sent;
+    }
+
+    /**
+     * @return number of lines copied into a <code>String</code>
+     */
+    public int getCopies() {
+        return line.copies;
+    }
+
+    public int getStarted() {
+        return started;
+    }
+
+    public int getStopped() {
+        return stopped;
+    }
+
+    private static final class CountingLine implements CharSequence {
+
+        private String text;
+
+        private int copies = 0;
+
+        public int length() {
+            return text.length();
+        }
+
+        public char charAt(int index) {
+            return text.charAt(index);
+        }
+
+        public CharSequence subSequence(int start, int end) {
+            return text.subSequence(start, end);
+        }
+
+        public String toString() {
+            copies++;
+            return text;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+package org.apache.james.mpt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class HashedTimerWheelTest {
+
+    private final List<String> expired = new ArrayList<String>();
+
+    @Test
+    public void neverExpiresEarly() {
+        final HashedTimerWheel<String> wheel = new HashedTimerWheel<String>(10, 8, 1000);
+        wheel.schedule("a", 1105);
+        wheel.expire(1104, expired);
+        wheel.expire(1109, expired);
+        assertTrue(expired.isEmpty());
+        wheel.expire(1110, expired);
+        assertEquals(Arrays.asList("a"), expired);
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void laterRoundsStayInTheirBucket() {
+        final HashedTimerWheel<String> wheel = new HashedTimerWheel<String>(10, 4, 0);
+        // both hash to the same bucket
+        wheel.schedule("late", 50);
+        wheel.schedule("early", 10);
+        wheel.expire(10, expired);
+        assertEquals(Arrays.asList("early"), expired);
+        assertEquals(1, wheel.size());
+        wheel.expire(49, expired);
+        assertEquals(1, expired.size());
+        wheel.expire(50, expired);
+        assertEquals(Arrays.asList("early", "late"), expired);
+    }
+
+    @Test
+    public void expiresEverythingDueAfterFallingBehind() {
+        final HashedTimerWheel<Integer> wheel = new HashedTimerWheel<Integer>(1, 16, 0);
+        final List<Integer> due = new ArrayList<Integer>();
+        for (int i = 0; i < 100; i++) {
+            wheel.schedule(i, i * 7);
+        }
+        wheel.expire(350, due);
+        assertEquals(51, due.size());
+        assertEquals(49, wheel.size());
+        for (int i = 0; i < due.size(); i++) {
+            assertTrue(due.get(i) * 7 <= 350);
+        }
+        wheel.expire(10000, due);
+        assertEquals(100, due.size());
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void pastDeadlinesExpireAtTheNextTick() {
+        final HashedTimerWheel<String> wheel = new HashedTimerWheel<String>(10, 8, 0);
+        wheel.expire(100, expired);
+        wheel.schedule("past", 50);
+        wheel.expire(105, expired);
+        assertTrue(expired.isEmpty());
+        wheel.expire(110, expired);
+        assertEquals(Arrays.asList("past"), expired);
+    }
+
+    @Test
+    public void roundsBucketsUpToAPowerOfTwo() {
+        assertTrue(new HashedTimerWheel<String>(10, 5, 0).toString().contains("buckets = 8 "));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesTicksShorterThanAMillisecond() {
+        new HashedTimerWheel<String>(0, 8, 0);
+    }
+}
@@ -0,0 +1,179 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+package org.apache.james.mpt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+    private static final long HIGHEST = 3600L * 1000 * 1000;
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        final Histogram histogram = new Histogram(HIGHEST);
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getMean(), 0);
+        assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        final Histogram histogram = new Histogram(HIGHEST);
+        for (int i = 0; i < 128; i++) {
+            histogram.record(i);
+        }
+        assertEquals(128, histogram.getCount());
+        assertEquals(63, histogram.getValueAtPercentile(50));
+        assertEquals(126, histogram.getValueAtPercentile(99));
+        assertEquals(127, histogram.getValueAtPercentile(100));
+        assertEquals(63.5, histogram.getMean(), 0);
+    }
+
+    @Test
+    public void largeValuesAreWithinResolution() {
+        final long[] values = {128, 129, 1000, 4097, 1000000, 123456789};
+        for (int i = 0; i < values.length; i++) {
+            final Histogram histogram = new Histogram(HIGHEST);
+            histogram.record(values[i]);
+            histogram.record(HIGHEST);
+            final long reported = histogram.getValueAtPercentile(50);
+            assertTrue(values[i] + " reported as " + reported,
+                reported >= values[i] && reported <= values[i] + values[i] / 64);
+        }
+    }
+
+    @Test
+    public void everyValueIsWithinResolution() {
+        for (long value = 1; value < 100000; value++) {
+            final Histogram histogram = new Histogram(HIGHEST);
+            histogram.record(value);
+            histogram.record(HIGHEST);
+            final long reported = histogram.getValueAtPercentile(50);
+            assertTrue(value + " reported as " + reported, reported >= value && reported <= value + value / 64);
+        }
+    }
+
+    @Test
+    public void valuesAboveHighestAreClamped() {
+        final Histogram histogram = new Histogram(1000);
+        histogram.record(5000);
+        assertEquals(1000, histogram.getMax());
+        assertEquals(1000, histogram.getValueAtPercentile(50));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeValuesAreRefused() {
+        new Histogram(HIGHEST).record(-1);
+    }
+
+    @Test
+    public void recordsMissingValuesForStalls() {
+        final Histogram histogram = new Histogram(HIGHEST);
+        histogram.recordWithExpectedInterval(1000, 100);
+        // 1000, 900, ... 100
+        assertEquals(10, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertTrue(histogram.getValueAtPercentile(10) <= 100 + 100 / 64);
+    }
+
+    @Test
+    public void groupsMissingValuesSharingBuckets() {
+        final Histogram histogram = new Histogram(HIGHEST);
+        histogram.recordWithExpectedInterval(1000000, 1);
+        assertEquals(1000000, histogram.getCount());
+        final long median = histogram.getValueAtPercentile(50);
+        assertTrue("Median " + median, median >= 500000 && median <= 500000 + 500000 / 64);
+    }
+
+    @Test
+    public void recordsValueAloneWithoutStall() {
+        final Histogram histogram = new Histogram(HIGHEST);
+        histogram.recordWithExpectedInterval(150, 100);
+        histogram.recordWithExpectedInterval(1000, 0);
+        assertEquals(2, histogram.getCount());
+    }
+
+    @Test
+    public void addMergesValues() {
+        final Histogram first = new Histogram(HIGHEST);
+        final Histogram second = new Histogram(HIGHEST);
+        first.record(10);
+        second.record(20);
+        second.record(30);
+        first.add(second);
+        assertEquals(3, first.getCount());
+        assertEquals(30, first.getMax());
+        assertEquals(20, first.getMean(), 0);
+        assertEquals(20, first.getValueAtPercentile(50));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void addRefusesOtherRanges() {
+        new Histogram(HIGHEST).add(new Histogram(1000));
+    }
+
+    @Test
+    public void survivesWriteAndRead() throws Exception {
+        final Histogram histogram = new Histogram(HIGHEST);
+        for (long value = 1; value < 10000000; value *= 3) {
+            histogram.record(value, value % 7 + 1);
+        }
+        final Histogram read = Histogram.readFrom(new DataInputStream(new ByteArrayInputStream(write(histogram))));
+        assertEquals(histogram.getCount(), read.getCount());
+        assertEquals(histogram.getMax(), read.getMax());
+        assertEquals(histogram.getMean(), read.getMean(), 0);
+        for (int percentile = 0; percentile <= 100; percentile += 5) {
+            assertEquals(histogram.getValueAtPercentile(percentile), read.getValueAtPercentile(percentile));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void readRefusesBucketsOutOfRange() throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(1000);
+        out.writeLong(1);
+        out.writeLong(5);
+        out.writeLong(5);
+        out.writeInt(1);
+        out.writeInt(100000);
+        out.writeLong(1);
+        Histogram.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    private byte[] write(Histogram histogram) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        histogram.writeTo(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,132 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+package org.apache.james.mpt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LatencyRecorderTest {
+
+    private static final long STALL_MILLIS = 200;
+
+    /**
+     * Runs a hundred commands against a server which stalls the fiftieth.
+     */
+    private LatencyRecorder runStalledScript(long expectedLatencyMillis) throws Exception {
+        final FakeSession session = new FakeSession() {
+            public CharSequence readLineSequence() throws Exception {
+                final CharSequence result = super.readLineSequence();
+                if (result.length() > 4 && result.charAt(0) == 'a' && result.charAt(1) == '5' && result.charAt(2) == '0'
+                        && result.charAt(3) == ' ') {
+                    Thread.sleep(STALL_MILLIS);
+                }
+                return result;
+            }
+        };
+        final LatencyRecorder recorder = new LatencyRecorder();
+        final ProtocolSession script = newScript(session, recorder, expectedLatencyMillis);
+        for (int i = 1; i <= 100; i++) {
+            script.CL("a" + i + " NOOP");
+            script.SL("a" + i + " OK NOOP completed", "t:" + i);
+            session.respond("a" + i + " OK NOOP completed");
+        }
+        script.execute();
+        return recorder;
+    }
+
+    private ProtocolSession newScript(FakeSession session, LatencyRecorder recorder, long expectedLatencyMillis) throws Exception {
+        final Map<String, Session> sessions = new HashMap<String, Session>();
+        sessions.put("h1", session);
+        final ProtocolSession script = new ProtocolSession(sessions, new Properties());
+        recorder.setExpectedLatency(TimeUnit.MILLISECONDS.toNanos(expectedLatencyMillis));
+        script.setLatencyRecorder(recorder);
+        script.SS("h1");
+        return script;
+    }
+
+    @Test
+    public void stalledServerRaisesCorrectedPercentiles() throws Exception {
+        final LatencyRecorder recorder = runStalledScript(1);
+        final Histogram uncorrected = recorder.getLatencies("NOOP", false);
+        final Histogram corrected = recorder.getLatencies("NOOP", true);
+        final long stall = TimeUnit.MILLISECONDS.toMicros(STALL_MILLIS);
+        assertEquals(100, uncorrected.getCount());
+        assertEquals(100, corrected.getCount());
+        assertTrue("Uncorrected p90 " + uncorrected.getValueAtPercentile(90), uncorrected.getValueAtPercentile(90) < stall / 2);
+        // the commands after the stall were meant to be sent one expected latency apart
+        assertTrue("Corrected p90 " + corrected.getValueAtPercentile(90), corrected.getValueAtPercentile(90) >= stall / 2);
+    }
+
+    @Test
+    public void stallIsNotCorrectedWithoutExpectedLatency() throws Exception {
+        final LatencyRecorder recorder = runStalledScript(0);
+        final Histogram corrected = recorder.getLatencies("NOOP", true);
+        final long stall = TimeUnit.MILLISECONDS.toMicros(STALL_MILLIS);
+        assertEquals(100, corrected.getCount());
+        assertTrue("Corrected p90 " + corrected.getValueAtPercentile(90), corrected.getValueAtPercentile(90) < stall / 2);
+    }
+
+    @Test
+    public void thinkTimeMovesTheIntendedSendTime() throws Exception {
+        final FakeSession session = new FakeSession();
+        final LatencyRecorder recorder = new LatencyRecorder();
+        final ProtocolSession script = newScript(session, recorder, 1);
+        script.CL("a1 NOOP");
+        script.SL("a1 OK NOOP completed", "t:1");
+        script.SLEEP(STALL_MILLIS);
+        script.CL("a2 NOOP");
+        script.SL("a2 OK NOOP completed", "t:3");
+        session.respond("a1 OK NOOP completed", "a2 OK NOOP completed");
+        script.execute();
+        final Histogram corrected = recorder.getLatencies("NOOP", true);
+        assertTrue("Corrected max " + corrected.getMax(), corrected.getMax() < TimeUnit.MILLISECONDS.toMicros(STALL_MILLIS) / 2);
+    }
+
+    @Test
+    public void stalledCommandIsRecordedOnce() {
+        final LatencyRecorder recorder = new LatencyRecorder();
+        recorder.setExpectedLatency(TimeUnit.MILLISECONDS.toNanos(10));
+        recorder.record("NOOP", "t:1", TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(1, recorder.getLatencies("NOOP", true).getCount());
+        assertEquals(1, recorder.getLatencies("NOOP", false).getCount());
+    }
+
+    @Test
+    public void correctedLatencyIsNeverBelowUncorrected() {
+        final LatencyRecorder recorder = new LatencyRecorder();
+        recorder.record("NOOP", "t:1", TimeUnit.MILLISECONDS.toNanos(50), TimeUnit.MILLISECONDS.toNanos(5));
+        assertEquals(recorder.getLatencies("NOOP", false).getMax(), recorder.getLatencies("NOOP", true).getMax());
+    }
+
+    @Test
+    public void lateStartIsCorrected() {
+        final LatencyRecorder recorder = new LatencyRecorder();
+        recorder.record("NOOP", "t:1", TimeUnit.MILLISECONDS.toNanos(5), TimeUnit.MILLISECONDS.toNanos(500));
+        assertTrue(recorder.getLatencies("NOOP", true).getMax() > recorder.getLatencies("NOOP", false).getMax());
+    }
+}
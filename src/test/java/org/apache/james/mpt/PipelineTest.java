@@ -0,0 +1,102 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+package org.apache.james.mpt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.james.mpt.ProtocolSession.ProtocolElement;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PipelineTest {
+
+    private FakeSession session;
+
+    private ProtocolSession script;
+
+    @Before
+    public void setUp() throws Exception {
+        session = new FakeSession();
+        final Map<String, Session> sessions = new HashMap<String, Session>();
+        sessions.put("h1", session);
+        script = new ProtocolSession(sessions, new Properties());
+        script.setPipelineDepth(2);
+        script.SS("h1");
+        script.CL("a1 NOOP");
+        script.SL("a1 OK NOOP completed", "t:2");
+        script.CL("a2 NOOP");
+        script.SL("a2 OK NOOP completed", "t:4");
+    }
+
+    @Test
+    public void commandsAreSentBeforeResponsesAreRead() throws Exception {
+        try {
+            script.execute();
+            fail("Expected no responses");
+        } catch (InvalidServerResponseException e) {
+            // both sent before the first response was read
+        }
+        assertEquals(Arrays.asList("a1 NOOP", "a2 NOOP"), session.getSent());
+    }
+
+    @Test
+    public void elementsAreFoldedOnce() throws Exception {
+        final Iterator<ProtocolElement> first = script.elements();
+        final Iterator<ProtocolElement> second = script.elements();
+        while (first.hasNext()) {
+            assertSame(first.next(), second.next());
+        }
+    }
+
+    @Test
+    public void elementsAreFoldedAgainWhenAdded() throws Exception {
+        final int before = count(script.elements());
+        script.CL("a3 NOOP");
+        script.SL("a3 OK NOOP completed", "t:6");
+        assertEquals(before + 2, count(script.elements()));
+    }
+
+    @Test
+    public void runsAgainWithTheSameElements() throws Exception {
+        session.respond("a1 OK NOOP completed", "a2 OK NOOP completed");
+        script.execute();
+        session.respond("a1 OK NOOP completed", "a2 OK NOOP completed");
+        script.execute();
+        assertEquals(Arrays.asList("a1 NOOP", "a2 NOOP", "a1 NOOP", "a2 NOOP"), session.getSent());
+    }
+
+    private static int count(Iterator<ProtocolElement> elements) {
+        int result = 0;
+        while (elements.hasNext()) {
+            elements.next();
+            result++;
+        }
+        return result;
+    }
+}
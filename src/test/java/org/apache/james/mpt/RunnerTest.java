@@ -0,0 +1,107 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+package org.apache.james.mpt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.net.ServerSocket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RunnerTest {
+
+    private static final String SCRIPT = "SESSION: h1\nC: a1 NOOP\nS: a1 OK NOOP completed\n";
+
+    private FakeSession used;
+
+    private FakeSession unused;
+
+    private Map<String, Session> sessions;
+
+    @Before
+    public void setUp() {
+        used = new FakeSession();
+        unused = new FakeSession();
+        sessions = new HashMap<String, Session>();
+        sessions.put("h1", used);
+        sessions.put("h2", unused);
+    }
+
+    @Test
+    public void startsSessionsTheScriptUses() throws Exception {
+        used.respond("a1 OK NOOP completed");
+        final ProtocolInteractor script = new ProtocolSessionBuilder().buildProtocolSession("t.mpt", new StringReader(SCRIPT), sessions);
+        new Runner().runSessions(script);
+        assertEquals(1, used.getStarted());
+        assertEquals(0, unused.getStarted());
+        assertEquals(1, used.getStopped());
+    }
+
+    @Test
+    public void startsSessionsOfStreamingScripts() throws Exception {
+        used.respond("a1 OK NOOP completed");
+        final ProtocolInteractor script = new ProtocolSessionBuilder().buildStreamingProtocolSession("t.mpt", new StringReader(SCRIPT), sessions, 16);
+        new Runner().runSessions(script);
+        assertEquals(1, used.getStarted());
+        assertEquals(0, unused.getStarted());
+        assertEquals(1, used.getStopped());
+    }
+
+    @Test
+    public void startsSessionsOnceWhenSwitchedToAgain() throws Exception {
+        used.respond("a1 OK NOOP completed", "a2 OK NOOP completed");
+        unused.respond("b1 OK NOOP completed");
+        final String script = SCRIPT + "SESSION: h2\nC: b1 NOOP\nS: b1 OK NOOP completed\n"
+            + "SESSION: h1\nC: a2 NOOP\nS: a2 OK NOOP completed\n";
+        new Runner().runSessions(new ProtocolSessionBuilder().buildStreamingProtocolSession("t.mpt", new StringReader(script), sessions, 16));
+        assertEquals(1, used.getStarted());
+        assertEquals(1, unused.getStarted());
+    }
+
+    @Test
+    public void connectTimeExcludesScriptBeforeTheSessionIsUsed() throws Exception {
+        final ServerSocket server = new ServerSocket(0);
+        try {
+            final Map<String, Session> external = new HashMap<String, Session>();
+            external.put("h1", new ExternalSession("h1", "127.0.0.1", server.getLocalPort(), new QuietMonitor(), null));
+            external.put("h2", new ExternalSession("h2", "127.0.0.1", server.getLocalPort(), new QuietMonitor(), null));
+            final ProtocolSession script = new ProtocolSession(external, new Properties());
+            final LatencyRecorder recorder = new LatencyRecorder();
+            script.setLatencyRecorder(recorder);
+            script.SS("h1");
+            script.SLEEP(300);
+            script.SS("h2");
+            new Runner().runSessions(script);
+            final Histogram connects = recorder.getLatencies(LatencyRecorder.CONNECT, false);
+            assertEquals(2, connects.getCount());
+            assertTrue("Connect took " + connects.getMax() + "us", connects.getMax() < TimeUnit.MILLISECONDS.toMicros(200));
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+
+package org.apache.james.mpt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+public class ScriptCacheTest {
+
+    private static final String SCRIPT = "C: A1 NOOP\r\nS: A1 OK\r\n";
+
+    private final ProtocolSessionBuilder builder = new ProtocolSessionBuilder();
+
+    private ProtocolScript compile() throws Exception {
+        return builder.compileScript("test", new StringReader(SCRIPT));
+    }
+
+    private ProtocolScript compile(ScriptCache cache, long lastModified) throws Exception {
+        builder.setScriptCache(cache);
+        return builder.compileScript("test", lastModified, new ByteArrayInputStream(SCRIPT.getBytes("US-ASCII")));
+    }
+
+    @Test
+    public void leastRecentlyUsedScriptIsEvicted() throws Exception {
+        final ScriptCache cache = new ScriptCache(2);
+        final ProtocolScript a = compile();
+        final ProtocolScript b = compile();
+        final ProtocolScript c = compile();
+        cache.put("a", "1", a);
+        cache.put("b", "1", b);
+        assertSame(a, cache.get("a", "1"));
+        cache.put("c", "1", c);
+        assertEquals(2, cache.size());
+        assertSame(a, cache.get("a", "1"));
+        assertNull(cache.get("b", "1"));
+        assertSame(c, cache.get("c", "1"));
+    }
+
+    @Test
+    public void otherVersionIsNotReturned() throws Exception {
+        final ScriptCache cache = new ScriptCache(2);
+        final ProtocolScript a = compile();
+        cache.put("a", ScriptCache.version(1000), a);
+        assertNull(cache.get("a", ScriptCache.version(2000)));
+        final ProtocolScript b = compile();
+        cache.put("a", ScriptCache.version(2000), b);
+        assertEquals(1, cache.size());
+        assertSame(b, cache.get("a", ScriptCache.version(2000)));
+    }
+
+    @Test
+    public void zeroSizeCachesNothing() throws Exception {
+        final ScriptCache cache = new ScriptCache(0);
+        cache.put("a", "1", compile());
+        assertEquals(0, cache.size());
+        assertNull(cache.get("a", "1"));
+    }
+
+    @Test
+    public void unmodifiedScriptIsParsedOnce() throws Exception {
+        final ScriptCache cache = new ScriptCache(4);
+        final ProtocolScript first = compile(cache, 1000);
+        assertSame(first, compile(cache, 1000));
+        assertSame(first, builder.getCachedScript("test", 1000));
+    }
+
+    @Test
+    public void modifiedScriptIsParsedAgain() throws Exception {
+        final ScriptCache cache = new ScriptCache(4);
+        final ProtocolScript first = compile(cache, 1000);
+        assertNull(builder.getCachedScript("test", 2000));
+        final ProtocolScript second = compile(cache, 2000);
+        assertNotSame(first, second);
+        assertSame(second, compile(cache, 2000));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void unknownModificationTimeUsesContentHash() throws Exception {
+        final ScriptCache cache = new ScriptCache(4);
+        final ProtocolScript first = compile(cache, 0);
+        assertSame(first, compile(cache, 0));
+        assertNull(builder.getCachedScript("test", 0));
+    }
+
+    @Test
+    public void contentHashIsHex() {
+        assertEquals("md5:d41d8cd98f00b204e9800998ecf8427e", ScriptCache.version(new byte[0]));
+    }
+}
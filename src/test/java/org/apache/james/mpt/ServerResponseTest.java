@@ -0,0 +1,145 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ServerResponseTest {
+
+    private FakeSession session;
+
+    private ProtocolSession script;
+
+    @Before
+    public void setUp() throws Exception {
+        session = new FakeSession();
+        final Map<String, Session> sessions = new HashMap<String, Session>();
+        sessions.put("h1", session);
+        script = new ProtocolSession(sessions, new Properties());
+        script.SS("h1");
+    }
+
+    @Test
+    public void matchingLinesAreNotCopied() throws Exception {
+        session.respond("* OK ready", "* 1 EXISTS", "* 2 RECENT", "a1 OK SELECT completed");
+        script.SL("\\* OK ready", "t:1");
+        script.CL("a1 SELECT INBOX");
+        script.SUB(Arrays.asList("\\* 2 RECENT", "\\* 1 EXISTS"), "t:3");
+        script.SL("a1 OK .*", "t:5");
+        script.execute();
+        assertEquals(Arrays.asList("a1 SELECT INBOX"), session.getSent());
+        assertEquals(0, session.getCopies());
+    }
+
+    @Test
+    public void mismatchReportsActualLine() throws Exception {
+        session.respond("a1 NO failed");
+        script.SL("a1 OK .*", "t:1");
+        try {
+            script.execute();
+            fail("Expected a mismatch");
+        } catch (InvalidServerResponseException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Actual   : 'a1 NO failed'"));
+        }
+    }
+
+    @Test
+    public void capturesVariables() throws Exception {
+        final Properties variables = new Properties();
+        final Map<String, Session> sessions = new HashMap<String, Session>();
+        sessions.put("h1", session);
+        script = new ProtocolSession(sessions, variables);
+        script.SS("h1");
+        session.respond("* 1 FETCH (UID 42)", "a2 OK done");
+        script.SL("\\* 1 FETCH \\(UID (\\d+)\\)", "t:1", null, new String[] { "uid" });
+        script.CL("a2 UID FETCH ${uid} FLAGS");
+        script.SL("a2 OK done", "t:3");
+        script.execute();
+        assertEquals("42", variables.getProperty("uid"));
+        assertEquals("a2 UID FETCH 42 FLAGS", session.getSent().get(0));
+    }
+
+    @Test
+    public void boundaryLinesAreNotCopied() throws Exception {
+        session.respond("* 1 FETCH (BODY[] {10}", "Content-Type: multipart/mixed; boundary=\"b1\"", "a1 OK done");
+        script.SL(".*", "t:1");
+        script.SL(".*", "t:2");
+        script.SL("a1 OK done", "t:3");
+        script.execute();
+        assertEquals(0, session.getCopies());
+    }
+
+    @Test
+    public void substitutesVariablesWhenRun() throws Exception {
+        final Properties variables = new Properties();
+        final Map<String, Session> sessions = new HashMap<String, Session>();
+        sessions.put("h1", session);
+        script = new ProtocolSession(sessions, variables);
+        script.SS("h1");
+        session.respond("* 1 FETCH (UID 42)", "a2 OK 42 done");
+        script.SL("\\* 1 FETCH \\(UID (\\d+)\\)", "t:1", null, new String[] { "uid" });
+        script.SL("a2 OK ${uid} done", "t:2", null, true);
+        script.execute();
+    }
+
+    @Test
+    public void attachmentContinuationIsSubstitutedWhenRun() throws Exception {
+        final ProtocolSessionBuilder builder = new ProtocolSessionBuilder();
+        final ProtocolScript compiled = builder.compileScript("test", new StringReader(
+                "SESSION: h1\nATTACHMENT {\na1 APPEND ${box}\n\\+ ${ready}\nbody\n}\n"));
+        final Properties variables = new Properties();
+        variables.setProperty("box", "INBOX");
+        variables.setProperty("ready", "go");
+        final Map<String, Session> sessions = new HashMap<String, Session>();
+        sessions.put("h1", session);
+        session.respond("+ go");
+        compiled.newSession(sessions, variables).execute();
+        assertEquals(Arrays.asList("a1 APPEND INBOX {4}", "body"), session.getSent());
+    }
+
+    @Test
+    public void substitutedMismatchReportsSubstitutedLine() throws Exception {
+        final Properties variables = new Properties();
+        variables.setProperty("ready", "go");
+        final Map<String, Session> sessions = new HashMap<String, Session>();
+        sessions.put("h1", session);
+        script = new ProtocolSession(sessions, variables);
+        script.SS("h1");
+        session.respond("+ wait");
+        script.SL("\\+ ${ready}", "t:1", null, true);
+        try {
+            script.execute();
+            fail("Expected a mismatch");
+        } catch (InvalidServerResponseException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Expected: '\\+ go'"));
+        }
+    }
+}
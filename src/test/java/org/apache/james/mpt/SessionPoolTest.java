@@ -0,0 +1,243 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+package org.apache.james.mpt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SessionPoolTest {
+
+    private static final String LOGIN = "SESSION: h1\n"
+        + "S: \\* OK ready\n"
+        + "C: a1 LOGIN user secret\n"
+        + "S: a1 OK LOGIN completed\n";
+
+    private static final String NOOP = "SESSION: h1\n"
+        + "S: \\* OK ready\n"
+        + "C: a1 NOOP\n"
+        + "S: a1 OK NOOP completed\n";
+
+    private static final String LOGOUT = LOGIN
+        + "C: a2 LOGOUT\n"
+        + "S: \\* BYE logging out\n"
+        + "S: a2 OK LOGOUT completed\n";
+
+    private ServerSocket server;
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private final AtomicInteger logins = new AtomicInteger();
+
+    private final AtomicInteger logouts = new AtomicInteger();
+
+    private ExternalSession session;
+
+    private Map<String, Session> sessions;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0);
+        final Thread acceptor = new Thread() {
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = server.accept();
+                        connections.incrementAndGet();
+                        final Thread handler = new Thread() {
+                            public void run() {
+                                serve(socket);
+                            }
+                        };
+                        handler.setDaemon(true);
+                        handler.start();
+                    }
+                } catch (Exception e) {
+                    // closed
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        session = new ExternalSession("h1", "127.0.0.1", server.getLocalPort(), new QuietMonitor(), null);
+        session.setTimeout(5000);
+        sessions = new HashMap<String, Session>();
+        sessions.put("h1", session);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        session.stop();
+        server.close();
+    }
+
+    /**
+     * Answers as an IMAP server which refuses a second login.
+     * Never answers <code>WAIT</code>.
+     */
+    private void serve(Socket socket) {
+        try {
+            final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            final OutputStream out = socket.getOutputStream();
+            out.write("* OK ready\r\n".getBytes("US-ASCII"));
+            boolean authenticated = false;
+            String line;
+            while ((line = in.readLine()) != null) {
+                final String[] words = line.split(" ");
+                final String command = words[1];
+                if ("LOGIN".equals(command)) {
+                    if (authenticated) {
+                        out.write((words[0] + " BAD already logged in\r\n").getBytes("US-ASCII"));
+                    } else {
+                        logins.incrementAndGet();
+                        authenticated = true;
+                        out.write((words[0] + " OK LOGIN completed\r\n").getBytes("US-ASCII"));
+                    }
+                } else if ("UNAUTHENTICATE".equals(command)) {
+                    authenticated = false;
+                    out.write((words[0] + " OK UNAUTHENTICATE completed\r\n").getBytes("US-ASCII"));
+                } else if ("LOGOUT".equals(command)) {
+                    logouts.incrementAndGet();
+                    out.write(("* BYE logging out\r\n" + words[0] + " OK LOGOUT completed\r\n").getBytes("US-ASCII"));
+                    break;
+                } else if (!"WAIT".equals(command)) {
+                    out.write((words[0] + " OK " + command + " completed\r\n").getBytes("US-ASCII"));
+                }
+            }
+            socket.close();
+        } catch (Exception e) {
+            // client went away
+        }
+    }
+
+    private boolean run(SessionPool pool, String script) throws Exception {
+        final Runner runner = new Runner();
+        runner.setSessionPool(pool);
+        try {
+            runner.runSessions(new ProtocolSessionBuilder().buildProtocolSession("t.mpt", new StringReader(script), sessions));
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void reusesLoggedInConnectionsForScriptsNotLoggingIn() throws Exception {
+        final SessionPool pool = new SessionPool(Collections.singletonList("NOOP"), new QuietMonitor());
+        assertTrue(run(pool, LOGIN));
+        assertTrue(run(pool, NOOP));
+        assertTrue(run(pool, NOOP));
+        pool.close();
+        assertEquals(1, connections.get());
+        assertEquals(1, logins.get());
+    }
+
+    @Test
+    public void sendsEveryLoginToTheServer() throws Exception {
+        final SessionPool pool = new SessionPool(Collections.singletonList("NOOP"), new QuietMonitor());
+        for (int i = 0; i < 3; i++) {
+            assertTrue("Run " + i, run(pool, LOGIN));
+        }
+        pool.close();
+        // kept connections are logged in, so each login needs a new one
+        assertEquals(3, connections.get());
+        assertEquals(3, logins.get());
+    }
+
+    @Test
+    public void reusesConnectionsLoggedOutByTheReset() throws Exception {
+        final SessionPool pool = new SessionPool(Collections.singletonList("UNAUTHENTICATE"), new QuietMonitor());
+        for (int i = 0; i < 3; i++) {
+            assertTrue("Run " + i, run(pool, LOGIN));
+        }
+        pool.close();
+        assertEquals(1, connections.get());
+        assertEquals(3, logins.get());
+    }
+
+    @Test
+    public void sendsEveryLogoutToTheServer() throws Exception {
+        final SessionPool pool = new SessionPool(Collections.singletonList("UNAUTHENTICATE"), new QuietMonitor());
+        assertTrue(run(pool, LOGOUT));
+        assertTrue(run(pool, LOGOUT));
+        pool.close();
+        // the server closes connections which logged out
+        assertEquals(2, connections.get());
+        assertEquals(2, logouts.get());
+    }
+
+    @Test
+    public void connectsWhenTheFirstCommandIsNotKnown() throws Exception {
+        final SessionPool pool = new SessionPool(Collections.<String>emptyList(), new QuietMonitor());
+        assertTrue(run(pool, LOGIN));
+        final Runner runner = new Runner();
+        runner.setSessionPool(pool);
+        runner.runSessions(new ProtocolSessionBuilder().buildStreamingProtocolSession("t.mpt", new StringReader(NOOP), sessions, 16));
+        pool.close();
+        assertEquals(2, connections.get());
+    }
+
+    @Test
+    public void resetCommandsDeclareTheStateOfKeptConnections() {
+        assertTrue(new SessionPool(Collections.<String>emptyList(), new QuietMonitor()).isAuthenticated());
+        assertFalse(new SessionPool(Arrays.asList("UNSELECT", "UNAUTHENTICATE"), new QuietMonitor()).isAuthenticated());
+        assertTrue(new SessionPool(Arrays.asList("UNAUTHENTICATE", "LOGIN user secret"), new QuietMonitor()).isAuthenticated());
+    }
+
+    @Test
+    public void resetIsBoundedByTheTimeout() throws Exception {
+        final SessionPool pool = new SessionPool(Collections.singletonList("WAIT"), new QuietMonitor());
+        session.setTimeout(200);
+        final long start = System.currentTimeMillis();
+        assertTrue(run(pool, NOOP));
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        // the connection is not kept
+        assertFalse(session.isConnected());
+        assertEquals(200, session.getTimeout());
+    }
+
+    @Test
+    public void shabangReplacesOnlyTheFirstGreeting() throws Exception {
+        session = new ExternalSession("h1", "127.0.0.1", server.getLocalPort(), new QuietMonitor(), "* OK shabang");
+        sessions.put("h1", session);
+        final SessionPool pool = new SessionPool(Collections.<String>emptyList(), new QuietMonitor());
+        final String script = "SESSION: h1\nS: \\* OK shabang\nC: a1 NOOP\nS: a1 OK NOOP completed\n";
+        assertTrue(run(pool, script));
+        assertFalse(run(pool, script));
+        pool.close();
+    }
+}
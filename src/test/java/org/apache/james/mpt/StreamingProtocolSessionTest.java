@@ -0,0 +1,124 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+
+package org.apache.james.mpt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class StreamingProtocolSessionTest {
+
+    private static final int CAPACITY = 4;
+
+    private FakeSession session;
+
+    private Map<String, Session> sessions;
+
+    @Before
+    public void setUp() throws Exception {
+        session = new FakeSession();
+        sessions = new HashMap<String, Session>();
+        sessions.put("h1", session);
+    }
+
+    private ProtocolSession stream(String script) {
+        return (ProtocolSession) new ProtocolSessionBuilder().buildStreamingProtocolSession("test",
+                new StringReader(script), sessions, CAPACITY);
+    }
+
+    @Test
+    public void elementsAreDiscardedOnceRun() throws Exception {
+        final AtomicInteger parsed = new AtomicInteger();
+        final AtomicInteger furthestAhead = new AtomicInteger();
+        session = new FakeSession() {
+            public void writeLine(String line) throws Exception {
+                super.writeLine(line);
+                final int ahead = parsed.get() - getSent().size();
+                if (ahead > furthestAhead.get()) {
+                    furthestAhead.set(ahead);
+                }
+            }
+        };
+        sessions.put("h1", session);
+        final ProtocolSession script = new StreamingProtocolSession("test", new StreamingProtocolSession.Parser() {
+            public void parse(ProtocolInteractor session) throws Exception {
+                session.SS("h1");
+                for (int i = 1; i <= 1000; i++) {
+                    session.CL("a" + i + " NOOP");
+                    parsed.incrementAndGet();
+                }
+            }
+        }, CAPACITY, sessions, new Properties());
+        script.execute();
+        assertEquals(1000, session.getSent().size());
+        // queued elements and the one taken but not yet run
+        assertTrue("Parsed ahead " + furthestAhead.get(), furthestAhead.get() <= CAPACITY + 1);
+    }
+
+    @Test
+    public void parseFailureSurfacesAtTheFailingElement() throws Exception {
+        session.respond("a1 OK done");
+        final ProtocolSession script = stream("SESSION: h1\nC: a1 NOOP\nS: a1 OK done\nbogus\nC: a2 NOOP\n");
+        try {
+            script.execute();
+            fail("Expected a parse failure");
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Invalid line prefix"));
+        }
+        // run up to the failing line, then no further
+        assertEquals(Arrays.asList("a1 NOOP"), session.getSent());
+    }
+
+    @Test
+    public void runsScriptAsItIsParsed() throws Exception {
+        session.respond("a1 OK done", "a2 OK done");
+        stream("SESSION: h1\nC: a1 NOOP\nS: a1 OK done\nC: a2 NOOP\nS: a2 OK done\n").execute();
+        assertEquals(Arrays.asList("a1 NOOP", "a2 NOOP"), session.getSent());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void runsOnce() throws Exception {
+        final ProtocolSession script = stream("SESSION: h1\nC: a1 NOOP\n");
+        script.execute();
+        script.execute();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void cannotBeCompiled() throws Exception {
+        stream("SESSION: h1\nC: a1 NOOP\n").compile();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void cannotBeMultiplexed() throws Exception {
+        stream("SESSION: h1\nC: a1 NOOP\n").resume();
+    }
+}
@@ -0,0 +1,146 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+
+package org.apache.james.mpt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ThinkTimeTest {
+
+    private static final int SAMPLES = 20000;
+
+    private static long[] sample(String value) {
+        final ThinkTime thinkTime = ThinkTime.parse(value);
+        final Random random = new Random(42);
+        final long[] result = new long[SAMPLES];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = thinkTime.nextMillis(random);
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static double mean(long[] samples) {
+        double total = 0;
+        for (int i = 0; i < samples.length; i++) {
+            total += samples[i];
+        }
+        return total / samples.length;
+    }
+
+    @Test
+    public void durationsAreInSecondsUnlessSuffixed() {
+        assertEquals(2000, ThinkTime.parseMillis("2"));
+        assertEquals(500, ThinkTime.parseMillis("0.5"));
+        assertEquals(1500, ThinkTime.parseMillis("1.5s"));
+        assertEquals(250, ThinkTime.parseMillis(" 250 ms "));
+        assertEquals(0, ThinkTime.parseMillis("0ms"));
+    }
+
+    @Test
+    public void durationIsConstant() {
+        assertEquals(300, ThinkTime.parse("300ms").nextMillis(new Random()));
+        assertEquals(1000, ThinkTime.parse(" 1 ").nextMillis(new Random()));
+    }
+
+    @Test
+    public void badInputIsRejected() {
+        final String[] values = { "", "abc", "-1", "-5ms", "NaN", "Infinity", "1.5ms", "5 minutes",
+                "uniform(1s", "uniform(1s)", "uniform(1s, 2s, 3s)", "uniform(2s, 1s)", "uniform(-1s, 1s)",
+                "exponential()", "exponential(-1s)", "normal(1s)", "normal(1s, -1ms)",
+                "lognormal(1s, x)", "lognormal(1s, -0.5)", "lognormal(1s, NaN)", "gaussian(1s)" };
+        for (int i = 0; i < values.length; i++) {
+            try {
+                ThinkTime.parse(values[i]);
+                fail("Accepted " + values[i]);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void distributionNamesIgnoreCase() {
+        assertEquals("uniform(100ms, 2000ms)", ThinkTime.parse(" Uniform( 100ms , 2s ) ").toString());
+        assertEquals("lognormal(1000ms, 0.5)", ThinkTime.parse("LOGNORMAL(1s, 0.5)").toString());
+    }
+
+    @Test
+    public void uniformStaysWithinRange() {
+        final long[] samples = sample("uniform(100ms, 200ms)");
+        assertEquals(100, samples[0]);
+        assertEquals(200, samples[samples.length - 1]);
+        assertEquals(150, mean(samples), 2);
+    }
+
+    @Test
+    public void exponentialHasItsMean() {
+        final long[] samples = sample("exponential(500ms)");
+        assertTrue(samples[0] >= 0);
+        assertEquals(500, mean(samples), 25);
+        // the median of an exponential distribution is ln 2 times its mean
+        assertEquals(347, samples[samples.length / 2], 25);
+    }
+
+    @Test
+    public void normalIsNeverNegative() {
+        final long[] samples = sample("normal(100ms, 200ms)");
+        assertEquals(0, samples[0]);
+        final long[] narrow = sample("normal(1s, 100ms)");
+        assertEquals(1000, mean(narrow), 5);
+        assertTrue(narrow[0] > 500);
+        assertTrue(narrow[narrow.length - 1] < 1500);
+    }
+
+    @Test
+    public void logNormalHasItsMedian() {
+        final long[] samples = sample("lognormal(1s, 0.5)");
+        assertTrue(samples[0] > 0);
+        assertEquals(1000, samples[samples.length / 2], 30);
+        // long tail above the median
+        assertTrue(mean(samples) > 1000);
+    }
+
+    @Test
+    public void zeroSpreadIsConstant() {
+        assertEquals(500, sample("uniform(500ms, 500ms)")[SAMPLES - 1]);
+        assertEquals(500, sample("normal(500ms, 0ms)")[SAMPLES - 1]);
+        assertEquals(500, sample("lognormal(500ms, 0)")[0]);
+        assertEquals(0, sample("exponential(0ms)")[SAMPLES - 1]);
+    }
+
+    @Test
+    public void seededRandomRepeatsPauses() {
+        final ThinkTime thinkTime = ThinkTime.parse("exponential(1s)");
+        final Random first = new Random(7);
+        final Random second = new Random(7);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(thinkTime.nextMillis(first), thinkTime.nextMillis(second));
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+
+package org.apache.james.mpt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class WireCaptureTest {
+
+    /**
+     * Captures what it sends and reads, as external sessions do.
+     */
+    private static class CapturingSession extends FakeSession {
+
+        private final WireCapture capture = new WireCapture(64);
+
+        private boolean timeOut = false;
+
+        public CharSequence readLineSequence() throws Exception {
+            if (timeOut) {
+                throw new SocketTimeoutException("Read timed out");
+            }
+            final CharSequence line = super.readLineSequence();
+            capture.received(line);
+            return line;
+        }
+
+        public void writeLine(String line) throws Exception {
+            super.writeLine(line);
+            capture.sent(line);
+            if (timeOut) {
+                throw new SocketTimeoutException("Write timed out");
+            }
+        }
+
+        public WireCapture getWireCapture() {
+            return capture;
+        }
+    }
+
+    @Test
+    public void keepsLinesInOrder() {
+        final WireCapture capture = new WireCapture(64);
+        assertTrue(capture.isEmpty());
+        capture.sent("a1 NOOP");
+        capture.received("a1 OK done");
+        assertFalse(capture.isEmpty());
+        assertEquals("C: a1 NOOP\nS: a1 OK done\n", capture.dump());
+    }
+
+    @Test
+    public void keepsExactlyFullRing() {
+        final WireCapture capture = new WireCapture(11);
+        capture.sent("a1 NOOP");
+        assertEquals("C: a1 NOOP\n", capture.dump());
+    }
+
+    @Test
+    public void wrapsLeavingOutPartLines() {
+        final WireCapture capture = new WireCapture(30);
+        for (int i = 1; i <= 10; i++) {
+            capture.sent("a" + i + " NOOP");
+        }
+        // a10 and a9 fit, the end of a8 is left out
+        assertEquals("...\nC: a9 NOOP\nC: a10 NOOP\n", capture.dump());
+    }
+
+    @Test
+    public void wrapsAtTheEndOfALine() {
+        final WireCapture capture = new WireCapture(11);
+        capture.sent("a1 NOOP");
+        capture.sent("a2 NOOP");
+        assertEquals("...\nC: a2 NOOP\n", capture.dump());
+        capture.sent("a3");
+        assertEquals("...\nC: a3\n", capture.dump());
+    }
+
+    @Test
+    public void wrapsManyTimes() {
+        final WireCapture capture = new WireCapture(27);
+        for (int i = 0; i < 1000; i++) {
+            capture.received("* " + i);
+        }
+        assertEquals("...\nS: * 997\nS: * 998\nS: * 999\n", capture.dump());
+    }
+
+    @Test
+    public void clearForgetsEverything() {
+        final WireCapture capture = new WireCapture(8);
+        capture.sent("a1 NOOP");
+        capture.clear();
+        assertTrue(capture.isEmpty());
+        assertEquals("", capture.dump());
+        capture.received("ok");
+        assertEquals("S: ok\n", capture.dump());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBePositive() {
+        new WireCapture(0);
+    }
+
+    @Test
+    public void dumpsOnlySessionsWhichCapture() {
+        final CapturingSession capturing = new CapturingSession();
+        capturing.getWireCapture().sent("a1 NOOP");
+        final Map<String, Session> sessions = new LinkedHashMap<String, Session>();
+        sessions.put("h1", new FakeSession());
+        sessions.put("h2", capturing);
+        sessions.put("h3", new CapturingSession());
+        assertEquals("\nLast lines of session h2:\nC: a1 NOOP\n", WireCapture.dump(sessions));
+    }
+
+    private ProtocolSession newScript(CapturingSession session) throws Exception {
+        final Map<String, Session> sessions = new HashMap<String, Session>();
+        sessions.put("h1", session);
+        final ProtocolSession script = new ProtocolSession(sessions, new Properties());
+        script.SS("h1");
+        return script;
+    }
+
+    @Test
+    public void mismatchShowsLastLines() throws Exception {
+        final CapturingSession session = new CapturingSession();
+        session.respond("a1 OK done", "a2 NO failed");
+        final ProtocolSession script = newScript(session);
+        script.CL("a1 NOOP");
+        script.SL("a1 OK done", "t:2");
+        script.CL("a2 NOOP");
+        script.SL("a2 OK done", "t:4");
+        try {
+            script.execute();
+            fail("Expected a mismatch");
+        } catch (InvalidServerResponseException e) {
+            assertTrue(e.getMessage(), e.getMessage().endsWith(
+                    "\nLast lines of session h1:\nC: a1 NOOP\nS: a1 OK done\nC: a2 NOOP\nS: a2 NO failed\n"));
+        }
+    }
+
+    @Test
+    public void readTimeoutShowsLastLines() throws Exception {
+        final CapturingSession session = new CapturingSession() {
+            public CharSequence readLineSequence() throws Exception {
+                if (getSent().size() > 1) {
+                    throw new SocketTimeoutException("Read timed out");
+                }
+                return super.readLineSequence();
+            }
+        };
+        session.respond("a1 OK done");
+        final ProtocolSession script = newScript(session);
+        script.CL("a1 NOOP");
+        script.SL("a1 OK done", "t:2");
+        script.CL("a2 NOOP");
+        script.SL("a2 OK done", "t:4");
+        try {
+            script.execute();
+            fail("Expected a timeout");
+        } catch (InvalidServerResponseException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Server Timeout"));
+            assertTrue(e.getMessage(), e.getMessage().endsWith(
+                    "\nLast lines of session h1:\nC: a1 NOOP\nS: a1 OK done\nC: a2 NOOP\n"));
+        }
+    }
+
+    @Test
+    public void writeTimeoutShowsLastLines() throws Exception {
+        final CapturingSession session = new CapturingSession();
+        session.timeOut = true;
+        final ProtocolSession script = newScript(session);
+        script.CL("a1 NOOP");
+        try {
+            script.execute();
+            fail("Expected a timeout");
+        } catch (SocketTimeoutException e) {
+            assertEquals("Write timed out\nLast lines of session h1:\nC: a1 NOOP\n", e.getMessage());
+        }
+    }
+}
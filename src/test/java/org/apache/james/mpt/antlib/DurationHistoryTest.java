@@ -0,0 +1,143 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+package org.apache.james.mpt.antlib;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.tools.ant.types.Resource;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DurationHistoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final DurationHistory history = new DurationHistory();
+
+    @Test
+    public void unknownScriptsTakeTheAverage() {
+        assertEquals(1, history.estimate("new.mpt"));
+        history.record("a.mpt", 100);
+        history.record("b.mpt", 300);
+        assertEquals(200, history.estimate("new.mpt"));
+        assertEquals(100, history.estimate("a.mpt"));
+    }
+
+    @Test
+    public void earlierDurationsAreAveragedIn() {
+        history.record("a.mpt", 10);
+        history.record("a.mpt", 30);
+        assertEquals(20, history.estimate("a.mpt"));
+    }
+
+    @Test
+    public void estimatesArePositive() {
+        history.record("a.mpt", 0);
+        assertEquals(1, history.estimate("a.mpt"));
+    }
+
+    @Test
+    public void longestScriptsComeFirst() {
+        history.record("a.mpt", 10);
+        history.record("b.mpt", 50);
+        history.record("c.mpt", 10);
+        history.record("d.mpt", 30);
+        assertEquals(Arrays.asList("b.mpt", "d.mpt", "a.mpt", "c.mpt"), names(history.longestFirst(resources("a.mpt", "b.mpt", "c.mpt", "d.mpt"))));
+        // equal estimates keep their order
+        assertEquals(Arrays.asList("b.mpt", "d.mpt", "c.mpt", "a.mpt"), names(history.longestFirst(resources("c.mpt", "b.mpt", "a.mpt", "d.mpt"))));
+    }
+
+    @Test
+    public void workersShareTheLoadEvenly() {
+        history.record("a.mpt", 100);
+        history.record("b.mpt", 60);
+        history.record("c.mpt", 50);
+        history.record("d.mpt", 10);
+        final List<List<Resource>> shares = history.share(resources("d.mpt", "c.mpt", "b.mpt", "a.mpt"), 2);
+        assertEquals(2, shares.size());
+        assertEquals(Arrays.asList("a.mpt", "d.mpt"), names(shares.get(0)));
+        assertEquals(Arrays.asList("b.mpt", "c.mpt"), names(shares.get(1)));
+    }
+
+    @Test
+    public void workersWithoutScriptsGetEmptyShares() {
+        final List<List<Resource>> shares = history.share(resources("a.mpt"), 3);
+        assertEquals(3, shares.size());
+        assertEquals(1, shares.get(0).size());
+        assertEquals(0, shares.get(1).size());
+        assertEquals(0, shares.get(2).size());
+    }
+
+    @Test
+    public void durationsSurviveStoreAndLoad() throws Exception {
+        final File file = new File(folder.getRoot(), "durations.properties");
+        history.record("a.mpt", 42);
+        history.store(file);
+        final DurationHistory loaded = DurationHistory.load(file);
+        assertEquals(42, loaded.estimate("a.mpt"));
+        assertEquals(42, loaded.estimate("new.mpt"));
+    }
+
+    @Test
+    public void loadIgnoresValuesWhichAreNotDurations() throws Exception {
+        final File file = folder.newFile("durations.properties");
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write("a.mpt=42\nb.mpt=slow\n".getBytes("ISO-8859-1"));
+        } finally {
+            out.close();
+        }
+        final DurationHistory loaded = DurationHistory.load(file);
+        assertEquals(42, loaded.estimate("a.mpt"));
+        assertEquals(42, loaded.estimate("b.mpt"));
+    }
+
+    @Test
+    public void missingFileLoadsEmpty() throws Exception {
+        assertEquals(1, DurationHistory.load(new File(folder.getRoot(), "none")).estimate("a.mpt"));
+    }
+
+    private static List<Resource> resources(String... names) {
+        final List<Resource> result = new ArrayList<Resource>();
+        for (int i = 0; i < names.length; i++) {
+            result.add(new Resource(names[i]));
+        }
+        return result;
+    }
+
+    private static List<String> names(List<Resource> resources) {
+        final List<String> result = new ArrayList<String>();
+        for (Iterator<Resource> iterator = resources.iterator(); iterator.hasNext();) {
+            result.add(iterator.next().getName());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,115 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+package org.apache.james.mpt.antlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.tools.ant.types.resources.FileResource;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ResultStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void fingerprintFollowsScriptContent() throws Exception {
+        final File script = write("a.mpt", "C: a1 NOOP\nS: a1 OK\n");
+        final String before = ResultStore.fingerprint(new FileResource(script));
+        assertEquals(before, ResultStore.fingerprint(new FileResource(script)));
+        write("a.mpt", "C: a1 NOOP\nS: a1 NO\n");
+        assertNotEquals(before, ResultStore.fingerprint(new FileResource(script)));
+    }
+
+    @Test
+    public void fingerprintFollowsAttachedFiles() throws Exception {
+        final File attachment = write("message.eml", "Subject: one\r\n\r\nbody\r\n");
+        final File script = write("a.mpt", "C: a1 APPEND INBOX {22}\nFILE=" + attachment.getPath() + "\nS: a1 OK\n");
+        final String before = ResultStore.fingerprint(new FileResource(script));
+        write("message.eml", "Subject: two\r\n\r\nbody\r\n");
+        assertNotEquals(before, ResultStore.fingerprint(new FileResource(script)));
+    }
+
+    @Test
+    public void onlyUnchangedPassedScriptsArePassed() {
+        final ResultStore store = new ResultStore();
+        store.useHosts("h1 127.0.0.1:143");
+        store.record("a.mpt", "1234", true);
+        store.record("b.mpt", "5678", false);
+        assertTrue(store.isPassed("a.mpt", "1234"));
+        assertFalse(store.isPassed("a.mpt", "4321"));
+        assertFalse(store.isPassed("b.mpt", "5678"));
+        assertFalse(store.isPassed("c.mpt", "1234"));
+    }
+
+    @Test
+    public void failureReplacesPass() {
+        final ResultStore store = new ResultStore();
+        store.record("a.mpt", "1234", true);
+        store.record("a.mpt", "1234", false);
+        assertFalse(store.isPassed("a.mpt", "1234"));
+    }
+
+    @Test
+    public void outcomesAreForgottenWhenHostsChange() {
+        final ResultStore store = new ResultStore();
+        assertFalse(store.useHosts("h1 127.0.0.1:143"));
+        store.record("a.mpt", "1234", true);
+        assertTrue(store.useHosts("h1 127.0.0.1:143"));
+        assertTrue(store.isPassed("a.mpt", "1234"));
+        assertFalse(store.useHosts("h1 127.0.0.1:993"));
+        assertFalse(store.isPassed("a.mpt", "1234"));
+    }
+
+    @Test
+    public void outcomesAreKeptBetweenBuilds() throws Exception {
+        final File file = new File(folder.getRoot(), "outcomes.properties");
+        assertFalse(ResultStore.load(file).isPassed("a.mpt", "1234"));
+        final ResultStore store = new ResultStore();
+        store.useHosts("h1 127.0.0.1:143");
+        store.record("a.mpt", "1234", true);
+        store.store(file);
+        final ResultStore loaded = ResultStore.load(file);
+        assertTrue(loaded.useHosts("h1 127.0.0.1:143"));
+        assertTrue(loaded.isPassed("a.mpt", "1234"));
+    }
+
+    private File write(String name, String content) throws IOException {
+        final File file = new File(folder.getRoot(), name);
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
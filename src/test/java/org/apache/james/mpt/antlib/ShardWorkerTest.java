@@ -0,0 +1,141 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+package org.apache.james.mpt.antlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.james.mpt.Histogram;
+import org.apache.james.mpt.LatencyRecorder;
+import org.apache.james.mpt.LoadGenerator;
+import org.junit.Test;
+
+public class ShardWorkerTest {
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    private final ShardWorker worker = new ShardWorker(new DataOutputStream(bytes));
+
+    private final ShardWorker.Results results = new ShardWorker.Results();
+
+    @Test
+    public void outcomesAreReadBack() throws Exception {
+        worker.outcome("a.mpt", true);
+        worker.outcome("b.mpt", false);
+        worker.duration("a.mpt", 42);
+        worker.end();
+        assertTrue(read());
+        assertEquals(Boolean.TRUE, results.getOutcomes().get("a.mpt"));
+        assertEquals(Boolean.FALSE, results.getOutcomes().get("b.mpt"));
+        assertEquals(Long.valueOf(42), results.getDurations().get("a.mpt"));
+        assertFalse(results.getDurations().containsKey("b.mpt"));
+    }
+
+    @Test
+    public void scriptFailingOnAnyWorkerFails() throws Exception {
+        worker.outcome("a.mpt", true);
+        worker.end();
+        final ShardWorker other = new ShardWorker(new DataOutputStream(bytes));
+        other.outcome("a.mpt", false);
+        other.end();
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertTrue(results.read(in));
+        assertTrue(results.read(in));
+        assertEquals(Boolean.FALSE, results.getOutcomes().get("a.mpt"));
+    }
+
+    @Test
+    public void durationsKeepTheLongest() throws Exception {
+        worker.duration("a.mpt", 10);
+        worker.duration("a.mpt", 30);
+        worker.duration("a.mpt", 20);
+        worker.end();
+        assertTrue(read());
+        assertEquals(Long.valueOf(30), results.getDurations().get("a.mpt"));
+    }
+
+    @Test
+    public void loadsAndLatenciesAreMerged() throws Exception {
+        final LoadGenerator.Result load = new LoadGenerator.Result();
+        final Histogram startLag = new Histogram(1000000);
+        startLag.record(5);
+        final LatencyRecorder latencies = new LatencyRecorder();
+        latencies.record("NOOP", "t:1", 1000000);
+        worker.load("a.mpt", load, startLag);
+        worker.latencies(latencies);
+        worker.failure("user 1: broken");
+        worker.end();
+        assertTrue(read());
+        assertNotNull(results.getLoads().get("a.mpt"));
+        assertEquals(1, results.getStartLag("a.mpt").getCount());
+        assertFalse(results.getLatencyRecorder().isEmpty());
+        assertEquals(Arrays.asList("user 1: broken"), results.getFailures());
+    }
+
+    @Test
+    public void truncatedStreamIsReported() throws Exception {
+        worker.outcome("a.mpt", true);
+        assertFalse(read());
+        assertEquals(Boolean.TRUE, results.getOutcomes().get("a.mpt"));
+    }
+
+    @Test
+    public void longFailuresAreTruncated() throws Exception {
+        final StringBuilder message = new StringBuilder();
+        while (message.length() < 100000) {
+            message.append("failure ");
+        }
+        worker.failure(message.toString());
+        worker.end();
+        assertTrue(read());
+        final String read = results.getFailures().get(0);
+        assertTrue(read.length() < message.length());
+        assertTrue(read.endsWith("..."));
+        assertTrue(message.toString().startsWith(read.substring(0, read.length() - 3)));
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownRecordsAreRefused() throws Exception {
+        bytes.write('?');
+        read();
+    }
+
+    @Test
+    public void namesSurviveNonAsciiCharacters() throws Exception {
+        worker.outcome("d\u00e9j\u00e0 vu.mpt", true);
+        worker.end();
+        assertTrue(read());
+        assertEquals(Boolean.TRUE, results.getOutcomes().get("d\u00e9j\u00e0 vu.mpt"));
+    }
+
+    private boolean read() throws Exception {
+        return results.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+}